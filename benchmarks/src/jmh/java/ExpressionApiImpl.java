@@ -0,0 +1,51 @@
+import benchmarks.ExpressionApi;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Gives the benchmarks, which are in a named package, access to the
+ * evaluator. See {@link ExpressionApi}.
+ */
+public class ExpressionApiImpl implements ExpressionApi {
+
+    @Override
+    public Object parse(CharSequence expr) {
+        return new Expression(expr);
+    }
+
+    @Override
+    public int evaluate(Object expression) {
+        return ((Expression) expression).evaluate();
+    }
+
+    @Override
+    public String toPrefix(Object expression) {
+        return ((Expression) expression).toPrefix();
+    }
+
+    @Override
+    public String toPostfix(Object expression) {
+        return ((Expression) expression).toPostfix();
+    }
+
+    @Override
+    public String toLisp(Object expression) {
+        return ((Expression) expression).toLisp();
+    }
+
+    @Override
+    public String toInfix(Object expression) {
+        return ((Expression) expression).toInfix();
+    }
+
+    @Override
+    public IntSupplier toProgram(Object expression) {
+        Program program = ((Expression) expression).toProgram();
+        return program::evaluate;
+    }
+
+    @Override
+    public IntSupplier compile(Object expression) {
+        return ((Expression) expression).compile();
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Compares evaluating expressions by walking their trees against evaluating
+ * their compiled Programs and their generated classes.
+ * The expressions are evaluated round robin, as they would be in a
+ * service evaluating many different parsed expressions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(6)
+public class EngineBenchmark {
+
+    private static final ExpressionApi API = ExpressionApi.INSTANCE;
+
+    private static final String[] EXPRESSIONS = {
+            "1 + 2 * 3 - 4 + 5 * 6 * 7 - 8 + 9 * 10",
+            "(1 + 2) * (3 + 4) - (5 * 6) + 7",
+            "1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1",
+            "2 * (3 + (4 * (5 + (6 * 7))))",
+            "3 - 7 * ( 4 + ( 25 / (3 + 2)) - 2)",
+            "2 ^ 2 ^ 3"
+    };
+
+    private final Object[] expressions = new Object[EXPRESSIONS.length];
+    private final IntSupplier[] programs = new IntSupplier[EXPRESSIONS.length];
+    private final IntSupplier[] compiled = new IntSupplier[EXPRESSIONS.length];
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            expressions[i] = API.parse(EXPRESSIONS[i]);
+            programs[i] = API.toProgram(expressions[i]);
+            compiled[i] = API.compile(expressions[i]);
+        }
+    }
+
+    @Benchmark
+    public int tree() {
+        int sum = 0;
+        for (Object e : expressions)
+            sum += API.evaluate(e);
+        return sum;
+    }
+
+    @Benchmark
+    public int program() {
+        return evaluateAll(programs);
+    }
+
+    @Benchmark
+    public int compiled() {
+        return evaluateAll(compiled);
+    }
+
+    private static int evaluateAll(IntSupplier[] suppliers) {
+        int sum = 0;
+        for (IntSupplier s : suppliers)
+            sum += s.getAsInt();
+        return sum;
+    }
+}
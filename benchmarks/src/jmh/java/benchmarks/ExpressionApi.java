@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.function.IntSupplier;
+
+/**
+ * The parts of the evaluator which are benchmarked.
+ * <p>
+ * JMH only runs benchmarks which are in a named package, and classes in a
+ * named package can't refer to the evaluator's classes in the unnamed
+ * package. The benchmarks go through this interface instead, which is
+ * implemented in the unnamed package by ExpressionApiImpl. There is only
+ * one implementation, so the JIT inlines the calls.
+ */
+public interface ExpressionApi {
+
+    /**
+     * The implementation in the unnamed package
+     */
+    ExpressionApi INSTANCE = load();
+
+    /**
+     * @param expr an infix expression
+     * @return the parsed Expression
+     */
+    Object parse(CharSequence expr);
+
+    int evaluate(Object expression);
+
+    String toPrefix(Object expression);
+
+    String toPostfix(Object expression);
+
+    String toLisp(Object expression);
+
+    String toInfix(Object expression);
+
+    /**
+     * @return an evaluator for the expression's Program
+     */
+    IntSupplier toProgram(Object expression);
+
+    /**
+     * @return the expression compiled to a class
+     */
+    IntSupplier compile(Object expression);
+
+    private static ExpressionApi load() {
+        try {
+            return (ExpressionApi) Class.forName("ExpressionApiImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load the evaluator", e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing, evaluating and writing out expressions of each shape and size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+
+    private static final ExpressionApi API = ExpressionApi.INSTANCE;
+
+    @Param({"FLAT", "NESTED", "WIDE", "EXPONENT", "PARENS"})
+    public Shape shape;
+
+    @Param({"16", "1024"})
+    public int size;
+
+    private String text;
+    private Object expression;
+
+    @Setup
+    public void setUp() {
+        text = shape.generate(size);
+        expression = API.parse(text);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return API.parse(text);
+    }
+
+    @Benchmark
+    public int evaluate() {
+        return API.evaluate(expression);
+    }
+
+    @Benchmark
+    public String toPrefix() {
+        return API.toPrefix(expression);
+    }
+
+    @Benchmark
+    public String toPostfix() {
+        return API.toPostfix(expression);
+    }
+
+    @Benchmark
+    public String toLisp() {
+        return API.toLisp(expression);
+    }
+
+    @Benchmark
+    public String toInfix() {
+        return API.toInfix(expression);
+    }
+}
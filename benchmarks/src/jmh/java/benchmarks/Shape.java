@@ -0,0 +1,110 @@
+package benchmarks;
+
+/**
+ * The shapes of generated expressions. Each shape is generated with a given
+ * number of operands, using only literals and never dividing by zero, so
+ * every generated expression can be evaluated.
+ */
+public enum Shape {
+
+    /**
+     * A long chain of operators with mixed precedence, i.e. 1 + 2 * 3 - 4 / 5
+     */
+    FLAT {
+        @Override
+        void generate(StringBuilder out, int size) {
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    out.append(' ').append(OPERATORS[(i - 1) % OPERATORS.length]).append(' ');
+                out.append(operand(i));
+            }
+        }
+    },
+
+    /**
+     * Operations nested inside each other's right operand, i.e. 1 + (2 * (3 - 4))
+     */
+    NESTED {
+        @Override
+        void generate(StringBuilder out, int size) {
+            // Keep division out so that no divisor can be 0
+            for (int i = 0; i < size - 1; i++)
+                out.append(operand(i)).append(' ').append(OPERATORS[i % 3]).append(" (");
+            out.append(operand(size - 1));
+            for (int i = 0; i < size - 1; i++)
+                out.append(')');
+        }
+    },
+
+    /**
+     * A balanced tree, i.e. ((1 + 2) * (3 - 4)) / ((5 + 6) * (7 - 8))
+     */
+    WIDE {
+        @Override
+        void generate(StringBuilder out, int size) {
+            balanced(out, 0, size, 0);
+        }
+
+        private void balanced(StringBuilder out, int from, int to, int depth) {
+            if (to - from == 1) {
+                out.append(operand(from));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            out.append('(');
+            balanced(out, from, mid, depth + 1);
+            // Keep division out so that no divisor can be 0
+            out.append(' ').append(OPERATORS[depth % 3]).append(' ');
+            balanced(out, mid, to, depth + 1);
+            out.append(')');
+        }
+    },
+
+    /**
+     * Mostly exponents, which are right associative, i.e. 1 ^ 2 ^ 3 * 4 ^ 5 ^ 6
+     */
+    EXPONENT {
+        @Override
+        void generate(StringBuilder out, int size) {
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    out.append(i % 4 == 0 ? " * " : " ^ ");
+                out.append(operand(i));
+            }
+        }
+    },
+
+    /**
+     * Operands and operations wrapped in redundant parentheses, i.e. (((1)) + ((2)))
+     */
+    PARENS {
+        @Override
+        void generate(StringBuilder out, int size) {
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    out.append(' ').append(OPERATORS[(i - 1) % OPERATORS.length]).append(' ');
+                out.append("((((").append(operand(i)).append("))))");
+            }
+            out.insert(0, "((").append("))");
+        }
+    };
+
+    private static final char[] OPERATORS = {'+', '*', '-', '/'};
+
+    abstract void generate(StringBuilder out, int size);
+
+    /**
+     * @param size the number of operands
+     * @return an expression of this shape
+     */
+    public String generate(int size) {
+        StringBuilder out = new StringBuilder();
+        generate(out, size);
+        return out.toString();
+    }
+
+    // Operands from 1 to 9, so that divisors are never 0
+    private static int operand(int i) {
+        return i % 9 + 1;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * The results of evaluating a batch of expressions. Each expression either
+ * has an integer value or a failure, stored at the same index as the
+ * expression was given in.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class BatchResult {
+
+    private final int[] values;
+    private final InvalidExpressionException[] failures;
+
+    BatchResult(int size) {
+        values = new int[size];
+        failures = new InvalidExpressionException[size];
+    }
+
+    void setValue(int index, int value) {
+        values[index] = value;
+    }
+
+    void setFailure(int index, InvalidExpressionException failure) {
+        failures[index] = failure;
+    }
+
+    /**
+     * @return the number of expressions in the batch
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @param index the index of the expression
+     * @return true iff the expression was parsed and evaluated successfully
+     */
+    public boolean isSuccess(int index) {
+        return failures[index] == null;
+    }
+
+    /**
+     * @param index the index of the expression
+     * @return the value of the expression
+     * @throws InvalidExpressionException the expression's failure, if it failed
+     */
+    public int getValue(int index) throws InvalidExpressionException {
+        if (failures[index] != null)
+            throw failures[index];
+        return values[index];
+    }
+
+    /**
+     * @param index the index of the expression
+     * @return why the expression failed, or null if it succeeded
+     */
+    public InvalidExpressionException getFailure(int index) {
+        return failures[index];
+    }
+
+    /**
+     * @return the number of expressions which failed
+     */
+    public int getFailureCount() {
+        int count = 0;
+        for (InvalidExpressionException failure : failures) {
+            if (failure != null)
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Evaluates a file containing one infix expression per line and writes one
+ * result per line to an output channel. Line n of the output is either the
+ * value of the expression on line n of the input, or
+ * <p>
+ * ERROR: reason
+ * <p>
+ * if that expression could not be parsed or evaluated. Errors do not stop
+ * the run.
+ * <p>
+ * The input is memory mapped and parsed directly from the mapped ASCII bytes,
+ * so no String is created per line. Results are formatted straight into
+ * an output buffer. Files of any size are handled by mapping them one
+ * window at a time.
+ * <p>
+ * A BulkEvaluator may be reused, but not by multiple threads at once.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class BulkEvaluator {
+
+    // The largest region of the input mapped at once
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    // Longest possible formatted int, "-2147483648\n"
+    private static final int MAX_RESULT_LENGTH = 12;
+
+    private final int windowSize;
+    private final Parser parser = new Parser();
+    private final ByteSequence line = new ByteSequence();
+    private final ByteBuffer out = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+
+    private WritableByteChannel output;
+    private long lineCount;
+    private long errorCount;
+
+    public BulkEvaluator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize the largest number of bytes of the input to map at
+     *                   once. Also the length of the longest line that can
+     *                   be evaluated.
+     */
+    public BulkEvaluator(int windowSize) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Evaluates every line of the input file and writes the results to output.
+     *
+     * @param input  a file with one ASCII infix expression per line
+     * @param output the channel to write the results to
+     * @return a summary of the run
+     * @throws IOException if the input can't be read or the output written
+     */
+    public Summary evaluate(Path input, WritableByteChannel output) throws IOException {
+        this.output = output;
+        lineCount = 0;
+        errorCount = 0;
+        out.clear();
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            // Whether we are skipping the rest of a line which didn't fit in a window
+            boolean skipping = false;
+
+            while (position < size) {
+                int length = (int) Math.min(windowSize, size - position);
+                boolean lastWindow = position + length == size;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (window.get(i) == '\n') {
+                        if (skipping)
+                            skipping = false;
+                        else
+                            evaluateLine(window, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+
+                if (lastWindow) {
+                    // The last line doesn't need to end with a new line
+                    if (lineStart < length && !skipping)
+                        evaluateLine(window, lineStart, length);
+                    position = size;
+                } else if (lineStart == 0) {
+                    // Not even one line fits in the window
+                    if (!skipping)
+                        writeError("Line is longer than " + windowSize + " bytes.");
+                    skipping = true;
+                    position += length;
+                } else {
+                    // Map the next window from the start of the unfinished line
+                    position += lineStart;
+                }
+            }
+        }
+
+        flush();
+        this.output = null;
+        return new Summary(lineCount, errorCount);
+    }
+
+    /**
+     * Parses and evaluates one line of the input and writes its result
+     *
+     * @param window the mapped region of the input holding the line
+     * @param start  the index of the line's first byte in window
+     * @param end    the index of the line's new line character in window
+     */
+    private void evaluateLine(ByteBuffer window, int start, int end) throws IOException {
+        // Accept Windows line endings
+        if (end > start && window.get(end - 1) == '\r')
+            end--;
+        line.reset(window, start, end - start);
+
+        // Evaluated as it is parsed, without building a tree. Malformed
+        // lines are reported without an exception.
+        if (!parser.tryParseValue(line)) {
+            writeError(parser.getErrorMessage());
+            return;
+        }
+        int result;
+        try {
+            // There are no values to bind to variables in bulk mode
+            result = parser.getValue();
+        } catch (RuntimeException e) {
+            writeError(e.getLocalizedMessage());
+            return;
+        }
+        writeResult(result);
+    }
+
+    /**
+     * Formats an int as ASCII digits followed by a new line
+     *
+     * @param value the result to write
+     */
+    private void writeResult(int value) throws IOException {
+        lineCount++;
+        if (out.remaining() < MAX_RESULT_LENGTH)
+            flush();
+
+        // Work with the negative value so that Integer.MIN_VALUE has no special case
+        if (value < 0)
+            out.put((byte) '-');
+        else
+            value = -value;
+
+        int digits = 1;
+        for (int v = value; v <= -10; v /= 10)
+            digits++;
+        int end = out.position() + digits;
+        for (int i = end - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' - value % 10));
+            value /= 10;
+        }
+        out.position(end);
+        out.put((byte) '\n');
+    }
+
+    /**
+     * Writes an error line for the current input line
+     *
+     * @param reason why the line could not be evaluated
+     */
+    private void writeError(String reason) throws IOException {
+        lineCount++;
+        errorCount++;
+        byte[] message = ("ERROR: " + reason + "\n").getBytes(StandardCharsets.US_ASCII);
+        for (int offset = 0; offset < message.length; ) {
+            if (!out.hasRemaining())
+                flush();
+            int length = Math.min(out.remaining(), message.length - offset);
+            out.put(message, offset, length);
+            offset += length;
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            output.write(out);
+        out.clear();
+    }
+
+    /**
+     * The outcome of a bulk evaluation
+     */
+    public static class Summary {
+
+        private final long lineCount;
+        private final long errorCount;
+
+        Summary(long lineCount, long errorCount) {
+            this.lineCount = lineCount;
+            this.errorCount = errorCount;
+        }
+
+        /**
+         * @return the number of lines evaluated, including those with errors
+         */
+        public long getLineCount() {
+            return lineCount;
+        }
+
+        /**
+         * @return the number of lines which could not be evaluated
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+    }
+
+    /**
+     * A view of a region of a ByteBuffer as a CharSequence, treating each
+     * byte as an ASCII character. One instance is pointed at each line in turn.
+     */
+    private static class ByteSequence implements CharSequence {
+
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        void reset(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length)
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+            return (char) (buffer.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > length)
+                throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ")");
+            StringBuilder chars = new StringBuilder(end - start);
+            for (int i = start; i < end; i++)
+                chars.append(charAt(i));
+            return chars;
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.function.IntSupplier;
+
+/**
+ * An expression which has been compiled into JVM bytecode. Instances are
+ * created by {@link Expression#compile()}, each compiled expression is its
+ * own generated subclass whose compute method evaluates the expression
+ * directly, i.e. 1 + 2 * x becomes
+ * <p>
+ * iconst_1 iconst_2 aload_1 iconst_0 iaload imul iadd ireturn
+ * <p>
+ * so the JIT is able to optimize it like any other straight-line method.
+ * Compiled expressions hold no state and are safe to share between threads.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public abstract class CompiledExpression implements IntSupplier {
+
+    private final int variableCount;
+
+    protected CompiledExpression(int variableCount) {
+        this.variableCount = variableCount;
+    }
+
+    /**
+     * Evaluates the compiled expression, which must not contain variables.
+     *
+     * @return the result of the expression
+     * @throws IllegalArgumentException if the expression contains variables
+     */
+    @Override
+    public int getAsInt() {
+        return evaluate(Expression.NO_BINDINGS);
+    }
+
+    /**
+     * Evaluates the compiled expression with the given variable values.
+     *
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    public final int evaluate(int[] bindings) {
+        Expression.checkBindings(bindings, variableCount);
+        return compute(bindings);
+    }
+
+    /**
+     * Evaluates the expression. Implemented by the generated subclass.
+     *
+     * @param bindings the values of the variables, at least one per variable
+     * @return the result of the expression
+     */
+    protected abstract int compute(int[] bindings);
+}
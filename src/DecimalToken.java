@@ -0,0 +1,57 @@
+/**
+ * A token which stores a decimal literal, such as 2.5. Decimal literals
+ * only have a value as doubles, so an expression which contains one can
+ * only be evaluated with {@link Expression#evaluateDouble(double[])}.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class DecimalToken extends Token {
+
+    private final double operand;
+
+    public DecimalToken(double value) {
+        operand = value;
+    }
+
+    /**
+     * @return the literal value stored in this token
+     */
+    public double getValue() {
+        return operand;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, decimals aren't ints
+     */
+    @Override
+    public int evalToken(int[] bindings) {
+        throw notAnInteger();
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, decimals aren't longs
+     */
+    @Override
+    public long evalLong(long[] bindings) {
+        throw notAnInteger();
+    }
+
+    /**
+     * The evaluation of this token is simply its value.
+     *
+     * @param bindings unused, operands do not depend on variables
+     * @return the value of this token
+     */
+    @Override
+    public double evalDouble(double[] bindings) {
+        return operand;
+    }
+
+    private UnsupportedOperationException notAnInteger() {
+        return new UnsupportedOperationException("Decimal literal " + operand + " can only be evaluated as a double.");
+    }
+
+    public String toString() {
+        return operand + "";
+    }
+}
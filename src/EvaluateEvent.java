@@ -0,0 +1,14 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when an Expression is evaluated
+ *
+ * @author Samuel Laberge, 2020
+ */
+@Name("expression.Evaluate")
+@Label("Expression Evaluation")
+@Description("Evaluating an expression tree")
+class EvaluateEvent extends ExpressionEvent {
+}
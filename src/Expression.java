@@ -1,18 +1,71 @@
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class represents an infix expression, storing it as an AST, and
  * allows for evaluating the expression or converting it to prefix/postfix.
+ * <p>
+ * Expressions may contain variables (identifiers such as x or rate_2).
+ * Each distinct variable is given a slot, numbered from 0 in the order
+ * the variables first appear, and their values are passed to
+ * {@link #evaluate(int[])} as an array indexed by slot. So "x * y + x"
+ * is parsed once and evaluated for any x and y with evaluate(new int[]{x, y}).
+ * <p>
+ * Besides + - * / ^ and unary minus, expressions may call the functions
+ * min, max, abs and mod, as in max(x, -y). Other operators and functions
+ * can be added through an {@link OperatorRegistry}.
  *
  * @author Samuel Laberge, 2020
  */
 public class Expression {
 
     // A tree which represents the entire expression with correct
-    // precedence of operators
-    private Token expressionTree;
+    // precedence of operators. The tree is never modified after the
+    // constructor finishes, and being final guarantees every thread sees
+    // it fully built, so an Expression may be shared between threads.
+    private final Token expressionTree;
+
+    // The number of levels in the tree, or an upper bound on it
+    private final int height;
+
+    // The length of the infix expression and the number of tokens in the
+    // tree, reported by instrumentation
+    private final int length;
+    private final int nodeCount;
+
+    // The operators and functions the expression was parsed with, which
+    // are escaped from variable names when it is written
+    private final OperatorRegistry registry;
+
+    // Trees taller than this are evaluated without recursion, so that
+    // they can't overflow the call stack
+    private static final int MAX_RECURSION_DEPTH = 1000;
+
+    // The names of the variables in this expression, indexed by slot,
+    // and the reverse mapping. Only modified while parsing.
+    private final List<String> variables = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    // Bindings used when evaluating an expression without variables
+    static final int[] NO_BINDINGS = new int[0];
+    static final long[] NO_LONG_BINDINGS = new long[0];
+    static final double[] NO_DOUBLE_BINDINGS = new double[0];
+
+    // Parsers keep their stacks between parses, so each thread reuses one
+    private static final ThreadLocal<Parser> parsers = ThreadLocal.withInitial(Parser::new);
 
     /**
      * Creates an expression tree out of an infix expression string.
@@ -21,193 +74,659 @@ public class Expression {
      *             and parentheses.
      * @throws InvalidExpressionException if the expression is malformed.
      */
-    public Expression(String expr) throws InvalidExpressionException {
-        CharacterStream input = new CharacterStream(expr);
+    public Expression(CharSequence expr) throws InvalidExpressionException {
+        this(expr, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Creates an expression tree out of an infix expression string which
+     * may use the operators and functions of the given registry.
+     *
+     * @param expr     An infix expression. Can include operators, operands,
+     *                 function calls and parentheses.
+     * @param registry the operators and functions the expression may use
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public Expression(CharSequence expr, OperatorRegistry registry) throws InvalidExpressionException {
+        this(expr, TreeWriter.Notation.INFIX, registry);
+    }
+
+    /**
+     * Creates an expression tree out of an expression string in prefix or
+     * postfix notation, such as one written by {@link #toPrefix()} or
+     * {@link #toPostfix()}, or in infix notation. Prefix and postfix
+     * expressions are parsed in a single pass, without precedence.
+     *
+     * @param expr     An expression in the given notation
+     * @param notation the notation of the expression, which can't be LISP
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public Expression(CharSequence expr, TreeWriter.Notation notation) throws InvalidExpressionException {
+        this(expr, notation, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Creates an expression tree out of an expression string in the given
+     * notation which may use the operators and functions of the given
+     * registry.
+     *
+     * @param expr     An expression in the given notation
+     * @param notation the notation of the expression, which can't be LISP
+     * @param registry the operators and functions the expression may use
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public Expression(CharSequence expr, TreeWriter.Notation notation, OperatorRegistry registry)
+            throws InvalidExpressionException {
+        Instrumentation.Span span = null;
+        if (Instrumentation.isActive())
+            span = Instrumentation.begin(Metrics.Operation.PARSE);
+        Parser parser = getParser(registry);
         // Attempt to parse the expression into an AST
-        try {
-            expressionTree = getLastToken(input);
-        } catch (Exception e) {
-            // On failure, return an Exception with the caught exception's message.
+        expressionTree = parser.tryParse(expr, notation);
+        if (expressionTree == null) {
+            // On failure, return an Exception with the parser's reason.
             // Something like "Mismatch in number of operands and operators."
-            throw new InvalidExpressionException(e.getLocalizedMessage());
+            if (span != null)
+                span.end(expr.length(), 0, parser.getErrorMessage());
+            throw new InvalidExpressionException(parser.getErrorMessage());
         }
+        height = parser.getHeight();
+        nodeCount = parser.getNodeCount();
+        length = expr.length();
+        this.registry = registry;
+        for (String name : parser.getVariables()) {
+            slots.put(name, variables.size());
+            variables.add(name);
+        }
+        if (span != null)
+            span.end(length, nodeCount, null);
     }
 
     /**
-     * Will evaluate the expression tree and return the integer result.
+     * Parses an infix expression without throwing if it is malformed. A
+     * malformed expression costs no more to reject than a well formed one
+     * costs to parse, so this suits input which is often malformed.
      *
-     * @return the result of the evaluated expression
+     * @param expr An infix expression. Can include operators, operands
+     *             and parentheses.
+     * @return the parsed expression, or what is wrong with it and where
      */
-    public int evaluate() {
-        return expressionTree.evalToken();
-    }
-
-    /**
-     * Runs the operator-precedence algorithm until one token remains.
-     * This token is the root of the expression tree.
-     *
-     * @param input The input stream of the infix expression
-     * @return The root of the expression tree
-     */
-    private Token getLastToken(CharacterStream input) {
-        // The operator and operand stacks
-        Deque<OperatorToken> operators = new LinkedList<>();
-        Deque<Token> operands = new LinkedList<>();
-
-        while (hasNextToken(input)) {
-            Token tok = getNextToken(input);
-            // If tok is an Operand, simply push it to the operands stack
-            // and move on to the next token
-            if (tok instanceof OperandToken) {
-                operands.push(tok);
-            } else if (tok instanceof OperatorToken) {
-                // tok is an Operator
-                OperatorToken opTok = (OperatorToken) tok;
-                if (opTok.isOpenParen()) {
-                    // If the token is an open parenthesis, simply push it to the
-                    // operator stack
-                    operators.push(opTok);
-                } else if (opTok.isCloseParen()) {
-                    // If the token is a close parenthesis, reduce until we find the
-                    // opening parenthesis
-                    while (!operators.isEmpty() && !operators.peek().isOpenParen())
-                        reduce(operators, operands);
-
-                    if (operators.isEmpty())
-                        throw new IllegalArgumentException("No matching open parentheses found.");
-                    // We found it, now get rid of the opening parenthesis
-                    operators.pop();
-                } else {
-                    // For all other non-paren operators, reduce while the top of the operator
-                    // stack has a higher precedence than the next operator in the input
-                    while (!operators.isEmpty() && reduceForAssociativity(operators.peek(), opTok))
-                        reduce(operators, operands);
-
-                    operators.push(opTok);
-                }
-            } else {
-                throw new IllegalStateException("Unknown token: " + tok);
-            }
+    public static ParseResult tryParse(CharSequence expr) {
+        return tryParse(expr, TreeWriter.Notation.INFIX, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Parses an expression in the given notation which may use the
+     * operators and functions of the given registry without throwing if it
+     * is malformed. See {@link #tryParse(CharSequence)}.
+     *
+     * @param expr     An expression in the given notation
+     * @param notation the notation of the expression
+     * @param registry the operators and functions the expression may use
+     * @return the parsed expression, or what is wrong with it and where
+     */
+    public static ParseResult tryParse(CharSequence expr, TreeWriter.Notation notation, OperatorRegistry registry) {
+        Instrumentation.Span span = null;
+        if (Instrumentation.isActive())
+            span = Instrumentation.begin(Metrics.Operation.PARSE);
+        Parser parser = getParser(registry);
+        Token tree = parser.tryParse(expr, notation);
+        if (tree == null) {
+            if (span != null)
+                span.end(expr.length(), 0, parser.getErrorMessage());
+            return ParseResult.failure(parser);
         }
+        Expression expression = new Expression(tree, parser.getHeight(), parser.getNodeCount(), expr.length(),
+                parser.getVariables(), registry);
+        if (span != null)
+            span.end(expression.length, expression.nodeCount, null);
+        return ParseResult.success(expression);
+    }
 
-        // Once we've run out of tokens in the input, reduce until the operator
-        // stack is empty. At the end, there should be one operand remaining, the
-        // root of the expression tree
-        while (!operators.isEmpty())
-            reduce(operators, operands);
+    /**
+     * Checks whether an infix expression is well formed without building
+     * its tree or throwing. Nothing is allocated for a well formed
+     * expression, unless it has variables.
+     *
+     * @param expr An infix expression. Can include operators, operands
+     *             and parentheses.
+     * @return whether the expression is well formed, or what is wrong with it and where
+     */
+    public static ParseResult validate(CharSequence expr) {
+        return validate(expr, TreeWriter.Notation.INFIX, OperatorRegistry.getDefault());
+    }
 
-        if (operands.size() != 1)
-            throw new IllegalArgumentException("Mismatch in number of operands and operators.");
+    /**
+     * Checks whether an expression in the given notation which may use the
+     * operators and functions of the given registry is well formed. See
+     * {@link #validate(CharSequence)}.
+     *
+     * @param expr     An expression in the given notation
+     * @param notation the notation of the expression
+     * @param registry the operators and functions the expression may use
+     * @return whether the expression is well formed, or what is wrong with it and where
+     */
+    public static ParseResult validate(CharSequence expr, TreeWriter.Notation notation, OperatorRegistry registry) {
+        Parser parser = getParser(registry);
+        return parser.validate(expr, notation) ? ParseResult.VALID : ParseResult.failure(parser);
+    }
+
+    /**
+     * Parses an expression read from a Reader, such as a generated
+     * expression too large to hold as a String. The text is read through a
+     * small buffer and never held in memory as a whole.
+     *
+     * @param in the infix expression, which is read to the end but not closed
+     * @return the parsed expression
+     * @throws IOException                if reading fails
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public static Expression parse(Reader in) throws IOException {
+        return parse(in, OperatorRegistry.getDefault());
+    }
 
-        // Return the root of the tree
-        return operands.pop();
+    /**
+     * Parses an expression read from a channel as UTF-8. See {@link #parse(Reader)}.
+     *
+     * @param in the infix expression, which is read to the end but not closed
+     * @return the parsed expression
+     * @throws IOException                if reading fails
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public static Expression parse(ReadableByteChannel in) throws IOException {
+        return parse(Channels.newReader(in, StandardCharsets.UTF_8.newDecoder(), -1));
+    }
+
+    /**
+     * Parses an expression read from a Reader which may use the operators
+     * and functions of the given registry. See {@link #parse(Reader)}.
+     *
+     * @param in       the infix expression, which is read to the end but not closed
+     * @param registry the operators and functions the expression may use
+     * @return the parsed expression
+     * @throws IOException                if reading fails
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public static Expression parse(Reader in, OperatorRegistry registry) throws IOException {
+        Instrumentation.Span span = null;
+        if (Instrumentation.isActive())
+            span = Instrumentation.begin(Metrics.Operation.PARSE);
+        Parser parser = getParser(registry);
+        Token tree;
+        try {
+            tree = parser.tryParse(in);
+        } catch (IOException e) {
+            if (span != null)
+                span.end(0, 0, e.toString());
+            throw e;
+        }
+        if (tree == null) {
+            if (span != null)
+                span.end((int) Math.min(parser.getLength(), Integer.MAX_VALUE), 0, parser.getErrorMessage());
+            throw new InvalidExpressionException(parser.getErrorMessage());
+        }
+        // Reported lengths are ints, longer expressions are reported as the largest int
+        int length = (int) Math.min(parser.getLength(), Integer.MAX_VALUE);
+        Expression expression = new Expression(tree, parser.getHeight(), parser.getNodeCount(), length,
+                parser.getVariables(), registry);
+        if (span != null)
+            span.end(length, expression.nodeCount, null);
+        return expression;
     }
 
     /**
-     * Returns whether or not we should reduce based on the next operator in the input and
-     * the operator on the top of the operators stack. For left associative operators we want
-     * to reduce whenever the top of the stack has a precedence greater than or equal to the next operator.
-     * For right associative, we only reduce when the precedence of the top of the stack is strictly greater
-     * than the precedence of the next operator.
+     * Creates an expression from an already built tree.
      *
-     * @param operatorStackTop The operator on the top of the operator stack
-     * @param nextOperator     The next operator in the input
-     * @return true iff we should perform a reduce operation
+     * @param expressionTree the root of the tree
+     * @param height         the height of the tree, or an upper bound on it
+     * @param nodeCount      the number of tokens in the tree
+     * @param length         the length of the infix expression the tree came from
+     * @param variables      the names of the variables in the tree, indexed by slot
+     * @param registry       the operators and functions the tree may use
      */
-    private boolean reduceForAssociativity(OperatorToken operatorStackTop, OperatorToken nextOperator) {
-        if (nextOperator.isRightAssociative()) {
-            return operatorStackTop.getPrecedence() > nextOperator.getPrecedence();
+    Expression(Token expressionTree, int height, int nodeCount, int length, List<String> variables,
+               OperatorRegistry registry) {
+        this.expressionTree = expressionTree;
+        this.registry = registry;
+        this.height = height;
+        this.length = length;
+        this.nodeCount = nodeCount;
+        for (String name : variables) {
+            slots.put(name, this.variables.size());
+            this.variables.add(name);
         }
-        // Operator must be left associative
-        return operatorStackTop.getPrecedence() >= nextOperator.getPrecedence();
     }
 
     /**
-     * The reduce subroutine. In reduce, we pop the operator off the top of the operator stack and
-     * pair it with the two operands on the top of the operands stack. The resulting token is
-     * pushed to the operands stack.
+     * @param registry the operators and functions expressions may use
+     * @return this thread's parser for the default registry, otherwise a new parser
+     */
+    static Parser getParser(OperatorRegistry registry) {
+        return registry == OperatorRegistry.getDefault() ? parsers.get() : new Parser(registry);
+    }
+
+    /**
+     * Returns a parsed expression for the given infix string, reusing a
+     * previously parsed instance when the same string has been seen
+     * recently. The returned expression may be shared with other callers
+     * and other threads. See {@link ExpressionCache#getShared()}.
      *
-     * @param operators The operator stack. pre: !operators.isEmpty()
-     * @param operands  The operand stack. pre: operands.size() >= 2
+     * @param expr An infix expression. Can include operators, operands
+     *             and parentheses.
+     * @return the parsed expression
+     * @throws InvalidExpressionException if the expression is malformed.
      */
-    private void reduce(Deque<OperatorToken> operators, Deque<Token> operands) {
-        if (operators.isEmpty())
-            throw new IllegalStateException("Missing operator to reduce");
-        if (operands.isEmpty())
-            throw new IllegalStateException("Missing right hand side operand");
+    public static Expression of(String expr) throws InvalidExpressionException {
+        return ExpressionCache.getShared().get(expr);
+    }
 
-        OperatorToken opTok = operators.pop();
-        Token rhs = operands.pop();
+    /**
+     * Evaluates an infix expression without building its tree. Gives the
+     * same result, and throws the same exceptions, as
+     * new Expression(expr).evaluate(), but faster and without allocating.
+     * See {@link Parser#evaluate(CharSequence)}.
+     *
+     * @param expr an infix expression without variables
+     * @return the value of the expression
+     * @throws InvalidExpressionException if the expression is malformed.
+     * @throws IllegalArgumentException   if the expression contains variables
+     * @throws ArithmeticException        if evaluating the expression divides by zero
+     */
+    public static int evaluate(CharSequence expr) throws InvalidExpressionException {
+        return evaluate(expr, OperatorRegistry.getDefault());
+    }
 
-        if (operands.isEmpty())
-            throw new IllegalStateException("Missing left hand side operand");
+    /**
+     * Evaluates an infix expression which may use the operators and
+     * functions of the given registry without building its tree. See
+     * {@link #evaluate(CharSequence)}.
+     *
+     * @param expr     an infix expression without variables
+     * @param registry the operators and functions the expression may use
+     * @return the value of the expression
+     * @throws InvalidExpressionException if the expression is malformed.
+     * @throws IllegalArgumentException   if the expression contains variables
+     */
+    public static int evaluate(CharSequence expr, OperatorRegistry registry) throws InvalidExpressionException {
+        Instrumentation.Span span = null;
+        if (Instrumentation.isActive())
+            span = Instrumentation.begin(Metrics.Operation.EVALUATE);
+        Parser parser = getParser(registry);
+        int result;
+        try {
+            if (!parser.tryParseValue(expr))
+                throw new InvalidExpressionException(parser.getErrorMessage());
+            result = parser.getValue();
+        } catch (RuntimeException e) {
+            if (span != null)
+                span.end(expr.length(), parser.getNodeCount(), e.toString());
+            throw e;
+        }
+        if (span != null)
+            span.end(expr.length(), parser.getNodeCount(), null);
+        return result;
+    }
+
+    /**
+     * Parses and evaluates many expressions in parallel. A failure in one
+     * expression does not affect the others, it is recorded in the result.
+     * See {@link ParallelEvaluator}.
+     *
+     * @param expressions infix expressions without variables
+     * @return the results, in the same order as the expressions
+     */
+    public static BatchResult evaluateAll(List<? extends CharSequence> expressions) {
+        return ParallelEvaluator.evaluateAll(expressions);
+    }
 
-        Token lhs = operands.pop();
-        opTok.setChild(lhs);
-        lhs.setSibling(rhs);
-        operands.push(opTok);
+    /**
+     * Will evaluate the expression tree and return the integer result.
+     *
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if the expression contains variables
+     */
+    public int evaluate() {
+        return evaluate(NO_BINDINGS);
     }
 
     /**
-     * Will advance the character stream to skip all upcoming whitespace
+     * Will evaluate the expression tree with the given variable values
+     * and return the integer result.
      *
-     * @param input The input stream to advance
+     * @param bindings the values of the variables, indexed by slot.
+     *                 See {@link #getSlot(String)}.
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
      */
-    private void skipWhitespace(CharacterStream input) {
-        while (input.hasNext() && Character.isWhitespace(input.peekChar())) {
-            input.nextChar();
+    public int evaluate(int[] bindings) {
+        checkBindings(bindings, variables.size());
+        if (Instrumentation.isActive())
+            return evaluateInstrumented(bindings);
+        return evaluateTree(bindings);
+    }
+
+    private int evaluateTree(int[] bindings) {
+        if (height > MAX_RECURSION_DEPTH)
+            return TreeEvaluator.evaluate(expressionTree, bindings, height);
+        return expressionTree.evalToken(bindings);
+    }
+
+    private int evaluateInstrumented(int[] bindings) {
+        Instrumentation.Span span = Instrumentation.begin(Metrics.Operation.EVALUATE);
+        int result;
+        try {
+            result = evaluateTree(bindings);
+        } catch (RuntimeException e) {
+            span.end(length, nodeCount, e.toString());
+            throw e;
         }
+        span.end(length, nodeCount, null);
+        return result;
     }
 
     /**
-     * Checks whether or not there are any more tokens left in the input stream.
-     * (i.e. if there are any non-white-space characters left).
-     * This method has the side effect of advancing the input stream to the next
-     * non-white-space character.
+     * Evaluates the expression with 64-bit integer arithmetic. Literals which
+     * overflow an int keep their value, i.e. 3000000000 * 2 is 6000000000.
      *
-     * @param input The input stream to check for more tokens.
-     * @return true iff there are more tokens remaining
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException      if the expression contains variables
+     * @throws UnsupportedOperationException if the expression contains decimal literals
      */
-    private boolean hasNextToken(CharacterStream input) {
-        skipWhitespace(input);
-        return input.hasNext();
+    public long evaluateLong() {
+        return evaluateLong(NO_LONG_BINDINGS);
     }
 
     /**
-     * Creates a Token object for the next token in the input stream.
+     * Evaluates the expression with 64-bit integer arithmetic and the given
+     * variable values.
      *
-     * @param input The input stream to get tokens from
-     * @return the token object for the next token in the input.
-     * @throws NoSuchElementException if there are no more tokens in the input stream
+     * @param bindings the values of the variables, indexed by slot.
+     *                 See {@link #getSlot(String)}.
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException      if there are fewer bindings than variables
+     * @throws UnsupportedOperationException if the expression contains decimal literals
      */
-    private Token getNextToken(CharacterStream input) {
-        if (!hasNextToken(input))
-            throw new NoSuchElementException("No more tokens in input.");
+    public long evaluateLong(long[] bindings) {
+        checkBindings(bindings.length, variables.size());
+        if (Instrumentation.isActive())
+            return evaluateLongInstrumented(bindings);
+        return evaluateLongTree(bindings);
+    }
 
-        if (Character.isDigit(input.peekChar())) {
-            return new OperandToken(parseNumber(input));
-        } else if (BinaryOperator.isValidOperator(input.peekChar())) {
-            return new OperatorToken(input.nextChar());
-        } else {
-            throw new IllegalArgumentException("Unknown token: " + input.nextChar());
+    private long evaluateLongTree(long[] bindings) {
+        if (height > MAX_RECURSION_DEPTH)
+            return TreeEvaluator.evaluateLong(expressionTree, bindings, height);
+        return expressionTree.evalLong(bindings);
+    }
+
+    private long evaluateLongInstrumented(long[] bindings) {
+        Instrumentation.Span span = Instrumentation.begin(Metrics.Operation.EVALUATE);
+        long result;
+        try {
+            result = evaluateLongTree(bindings);
+        } catch (RuntimeException e) {
+            span.end(length, nodeCount, e.toString());
+            throw e;
         }
+        span.end(length, nodeCount, null);
+        return result;
     }
 
     /**
-     * Parses a positive integer String from the input stream.
+     * Evaluates the expression with double arithmetic. Division is not
+     * truncated and dividing by zero gives an infinity or NaN instead of
+     * throwing. Decimal literals such as 2.5 can only be evaluated this way.
      *
-     * @param input the input stream. Next character should be a digit
-     * @return the parsed integer
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if the expression contains variables
      */
-    private int parseNumber(CharacterStream input) {
-        if (!Character.isDigit(input.peekChar()))
-            throw new IllegalStateException("Expected a number, found: " + input.peekChar());
+    public double evaluateDouble() {
+        return evaluateDouble(NO_DOUBLE_BINDINGS);
+    }
 
-        int num = input.nextChar() - '0';
-        while (input.hasNext() && Character.isDigit(input.peekChar())) {
-            num = num * 10 + (input.nextChar() - '0');
+    /**
+     * Evaluates the expression with double arithmetic and the given
+     * variable values. See {@link #evaluateDouble()}.
+     *
+     * @param bindings the values of the variables, indexed by slot.
+     *                 See {@link #getSlot(String)}.
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    public double evaluateDouble(double[] bindings) {
+        checkBindings(bindings.length, variables.size());
+        if (Instrumentation.isActive())
+            return evaluateDoubleInstrumented(bindings);
+        return evaluateDoubleTree(bindings);
+    }
+
+    private double evaluateDoubleTree(double[] bindings) {
+        if (height > MAX_RECURSION_DEPTH)
+            return TreeEvaluator.evaluateDouble(expressionTree, bindings, height);
+        return expressionTree.evalDouble(bindings);
+    }
+
+    private double evaluateDoubleInstrumented(double[] bindings) {
+        Instrumentation.Span span = Instrumentation.begin(Metrics.Operation.EVALUATE);
+        double result;
+        try {
+            result = evaluateDoubleTree(bindings);
+        } catch (RuntimeException e) {
+            span.end(length, nodeCount, e.toString());
+            throw e;
         }
-        return num;
+        span.end(length, nodeCount, null);
+        return result;
+    }
+
+    /**
+     * Evaluates a very large expression using the common fork/join pool.
+     * See {@link #evaluateParallel(int[], ForkJoinPool, int)}.
+     *
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    public int evaluateParallel(int[] bindings) {
+        return evaluateParallel(bindings, ForkJoinPool.commonPool(), ForkJoinEvaluator.DEFAULT_SPLIT_SIZE);
+    }
+
+    /**
+     * Evaluates a very large expression by splitting its tree into
+     * fork/join tasks of at least splitSize nodes, giving the same result as
+     * {@link #evaluate(int[])}. Expressions too small to split are simply
+     * evaluated by {@link #evaluate(int[])}. See {@link ForkJoinEvaluator}.
+     *
+     * @param bindings  the values of the variables, indexed by slot
+     * @param pool      the pool to run the evaluation in
+     * @param splitSize the smallest subtree which is evaluated by a task of its own
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if there are fewer bindings than
+     *                                  variables, or splitSize isn't positive
+     */
+    public int evaluateParallel(int[] bindings, ForkJoinPool pool, int splitSize) {
+        if (splitSize < 1)
+            throw new IllegalArgumentException("Invalid split size: " + splitSize + ".");
+        if (nodeCount / 2 < splitSize)
+            return evaluate(bindings);
+        checkBindings(bindings, variables.size());
+        return ForkJoinEvaluator.evaluate(expressionTree, bindings, pool, splitSize);
+    }
+
+    /**
+     * Evaluates the expression for many rows of variable values at once.
+     * columns[slot][row] is the value of the variable in the given slot for
+     * the given row, and the result for that row is stored in out[row].
+     * Gives the same results as calling {@link #evaluate(int[])} once per row,
+     * but is much faster for large numbers of rows. See {@link ColumnEvaluator}.
+     *
+     * @param columns the values of the variables, indexed by slot then row
+     * @param out     the array to store the results in
+     * @param from    the first row to evaluate
+     * @param to      one past the last row to evaluate
+     * @throws IllegalArgumentException      if there are fewer columns than variables
+     * @throws IndexOutOfBoundsException     if a column or out has fewer than to rows
+     * @throws UnsupportedOperationException if the expression contains decimal literals
+     */
+    public void evaluate(int[][] columns, int[] out, int from, int to) {
+        ColumnEvaluator.evaluate(expressionTree, variables.size(), columns, out, from, to);
+    }
+
+    /**
+     * Checks that enough variable values were given to evaluate an expression
+     *
+     * @param bindings      the values of the variables, indexed by slot
+     * @param variableCount the number of variables in the expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    static void checkBindings(int[] bindings, int variableCount) {
+        checkBindings(bindings.length, variableCount);
+    }
+
+    static void checkBindings(int bindingCount, int variableCount) {
+        if (bindingCount < variableCount)
+            throw new IllegalArgumentException("Expected " + variableCount
+                    + " variable bindings, found " + bindingCount + ".");
+    }
+
+    /**
+     * @return the number of distinct variables in this expression
+     */
+    public int getVariableCount() {
+        return variables.size();
+    }
+
+    /**
+     * @return the names of the variables in this expression, indexed by slot
+     */
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(variables);
+    }
+
+    /**
+     * Gets the slot of a variable, i.e. the index of its value in the
+     * bindings passed to {@link #evaluate(int[])}
+     *
+     * @param name the name of the variable
+     * @return the slot of the variable, or -1 if it isn't in this expression
+     */
+    public int getSlot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Returns an optimized version of this expression, in which constant
+     * subexpressions have been folded and identity operations removed.
+     * The result evaluates to exactly the same values, variables keep
+     * their slots. See {@link Optimizer}.
+     *
+     * @return an optimized copy of this expression
+     */
+    public Expression optimize() {
+        // Optimizing never makes the tree taller
+        Token optimized = Optimizer.optimize(expressionTree);
+        return new Expression(optimized, height, countNodes(optimized), length, variables, registry);
+    }
+
+    /**
+     * Copies the expression tree into a NodePool, which stores its nodes in
+     * primitive arrays and takes a fraction of the memory of the tree. To
+     * avoid building the tree at all, see {@link NodePool#parse(CharSequence, boolean)}.
+     * With sharing enabled, repeated subexpressions such
+     * as the a + b in (a + b) * (a + b) are stored and evaluated only once.
+     *
+     * @param shareSubexpressions whether identical subtrees should be shared
+     * @return a NodePool which evaluates to the same values as this expression
+     */
+    public NodePool toNodePool(boolean shareSubexpressions) {
+        return NodePool.fromTree(expressionTree, registry, shareSubexpressions);
+    }
+
+    /**
+     * Lowers the expression tree into a flat Program which can be evaluated
+     * repeatedly without walking the tree. The returned Program gives the same
+     * results as {@link #evaluate(int[])}.
+     *
+     * @return a Program for this expression
+     */
+    public Program toProgram() {
+        return Program.compile(expressionTree);
+    }
+
+    /**
+     * Compiles the expression tree into a generated JVM class. The result
+     * is stateless and may be shared between threads, and its class is
+     * unloaded once the CompiledExpression is no longer referenced.
+     *
+     * @return a CompiledExpression which evaluates this expression
+     */
+    public CompiledExpression compile() {
+        return ExpressionCompiler.compile(expressionTree);
+    }
+
+    /**
+     * Writes the parsed expression in a compact binary form which loads
+     * much faster than parsing its text. See {@link ExpressionCodec}.
+     *
+     * @param out the stream to write to, which is not closed
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ExpressionCodec.write(Collections.singletonList(this), out);
+    }
+
+    /**
+     * Writes the parsed expression in a compact binary form at the
+     * buffer's position. See {@link ExpressionCodec}.
+     *
+     * @param out the buffer to write to
+     * @throws java.nio.BufferOverflowException if the buffer has too little space left
+     */
+    public void writeTo(ByteBuffer out) {
+        ExpressionCodec.write(Collections.singletonList(this), out);
+    }
+
+    /**
+     * Reads an expression written by {@link #writeTo(OutputStream)}
+     *
+     * @param in the stream to read, which is read to the end but not closed
+     * @return the expression
+     * @throws IOException if reading fails, or the data isn't a single encoded expression
+     */
+    public static Expression readFrom(InputStream in) throws IOException {
+        return single(ExpressionCodec.read(in));
+    }
+
+    /**
+     * Reads an expression written by {@link #writeTo(ByteBuffer)}
+     *
+     * @param in the buffer to read from its position
+     * @return the expression
+     * @throws IOException if the data isn't a single encoded expression
+     */
+    public static Expression readFrom(ByteBuffer in) throws IOException {
+        return single(ExpressionCodec.read(in));
+    }
+
+    private static Expression single(List<Expression> expressions) throws IOException {
+        if (expressions.size() != 1)
+            throw new IOException("Expected one expression, found " + expressions.size() + ".");
+        return expressions.get(0);
+    }
+
+    /**
+     * @return the root of the expression tree, which must not be modified
+     */
+    Token getTree() {
+        return expressionTree;
+    }
+
+    /**
+     * @return the length of the infix expression this was parsed from
+     */
+    int getLength() {
+        return length;
     }
 
     // Various methods for creating a String representation of the Expression
@@ -216,21 +735,21 @@ public class Expression {
      * @return a prefix representation of the expression with no parentheses
      */
     public String toPrefix() {
-        return expressionTree.prefixString();
+        return toString(TreeWriter.Notation.PREFIX);
     }
 
     /**
      * @return a prefix string with parentheses around operations
      */
     public String toLisp() {
-        return expressionTree.lispString();
+        return toString(TreeWriter.Notation.LISP);
     }
 
     /**
      * @return a postfix, or RPN, representation of the expression
      */
     public String toPostfix() {
-        return expressionTree.postfixString();
+        return toString(TreeWriter.Notation.POSTFIX);
     }
 
     /**
@@ -238,7 +757,104 @@ public class Expression {
      * have been added to clearly show precedence
      */
     public String toInfix() {
-        return expressionTree.infixString();
+        return toString(TreeWriter.Notation.INFIX);
     }
 
+    // The same representations, written to an Appendable such as a
+    // StringBuilder or Writer instead of building a String
+
+    /**
+     * Writes the prefix representation of the expression, see {@link #toPrefix()}
+     *
+     * @param out where to write the expression
+     * @throws IOException if out throws
+     */
+    public void writePrefix(Appendable out) throws IOException {
+        write(TreeWriter.Notation.PREFIX, out);
+    }
+
+    /**
+     * Writes the lisp representation of the expression, see {@link #toLisp()}
+     *
+     * @param out where to write the expression
+     * @throws IOException if out throws
+     */
+    public void writeLisp(Appendable out) throws IOException {
+        write(TreeWriter.Notation.LISP, out);
+    }
+
+    /**
+     * Writes the postfix representation of the expression, see {@link #toPostfix()}
+     *
+     * @param out where to write the expression
+     * @throws IOException if out throws
+     */
+    public void writePostfix(Appendable out) throws IOException {
+        write(TreeWriter.Notation.POSTFIX, out);
+    }
+
+    /**
+     * Writes the infix representation of the expression, see {@link #toInfix()}
+     *
+     * @param out where to write the expression
+     * @throws IOException if out throws
+     */
+    public void writeInfix(Appendable out) throws IOException {
+        write(TreeWriter.Notation.INFIX, out);
+    }
+
+    private String toString(TreeWriter.Notation notation) {
+        if (!Instrumentation.isActive())
+            return TreeWriter.toString(expressionTree, notation, registry);
+
+        Instrumentation.Span span = Instrumentation.begin(Metrics.Operation.SERIALIZE);
+        String result;
+        try {
+            result = TreeWriter.toString(expressionTree, notation, registry);
+        } catch (RuntimeException e) {
+            span.end(notation, length, nodeCount, e.toString());
+            throw e;
+        }
+        span.end(notation, length, nodeCount, null);
+        return result;
+    }
+
+    private void write(TreeWriter.Notation notation, Appendable out) throws IOException {
+        if (!Instrumentation.isActive()) {
+            TreeWriter.write(expressionTree, notation, registry, out);
+            return;
+        }
+
+        Instrumentation.Span span = Instrumentation.begin(Metrics.Operation.SERIALIZE);
+        try {
+            TreeWriter.write(expressionTree, notation, registry, out);
+        } catch (IOException | RuntimeException e) {
+            span.end(notation, length, nodeCount, e.toString());
+            throw e;
+        }
+        span.end(notation, length, nodeCount, null);
+    }
+
+    /**
+     * Counts the tokens in a tree without recursion
+     *
+     * @param root the root of the tree
+     * @return the number of tokens in the tree
+     */
+    private static int countNodes(Token root) {
+        int count = 0;
+        ArrayDeque<Token> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            count++;
+            Token tok = pending.pop();
+            if (tok instanceof OperatorToken) {
+                OperatorToken op = (OperatorToken) tok;
+                pending.push(op.getLeftOperand());
+                if (op.getRightOperand() != null)
+                    pending.push(op.getRightOperand());
+            }
+        }
+        return count;
+    }
 }
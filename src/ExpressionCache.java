@@ -0,0 +1,157 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe, size-bounded cache of parsed expressions keyed by their
+ * text. Lookups are a single ConcurrentHashMap read, and eviction uses the
+ * CLOCK algorithm (an approximation of LRU): entries sit in a queue in
+ * insertion order and are marked when they are read. When the cache is
+ * over its maximum size, entries are taken from the head of the queue;
+ * marked ones are unmarked and given another pass, unmarked ones are evicted.
+ * <p>
+ * Expressions are never modified once constructed, so the same instance can
+ * be returned to, and evaluated by, any number of threads.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ExpressionCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+    private static final ExpressionCache shared = new ExpressionCache(DEFAULT_MAXIMUM_SIZE);
+
+    private final int maximumSize;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maximumSize the maximum number of expressions to keep
+     */
+    public ExpressionCache(int maximumSize) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return the cache used by {@link Expression#of(String)}
+     */
+    public static ExpressionCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Returns the parsed expression for the given text, parsing and caching
+     * it if it is not already in the cache. Malformed expressions are not cached.
+     *
+     * @param expr An infix expression
+     * @return the parsed expression
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public Expression get(String expr) throws InvalidExpressionException {
+        Entry entry = entries.get(expr);
+        if (entry != null) {
+            hits.increment();
+            // Avoid writing to the entry when it is already marked, so that
+            // frequently read entries don't bounce between CPU caches
+            if (!entry.referenced)
+                entry.referenced = true;
+            return entry.expression;
+        }
+
+        misses.increment();
+        Entry created = new Entry(expr, new Expression(expr));
+        Entry existing = entries.putIfAbsent(expr, created);
+        if (existing != null) {
+            // Another thread parsed the same expression first
+            return existing.expression;
+        }
+        clock.add(created);
+        evictIfNeeded();
+        return created.expression;
+    }
+
+    /**
+     * Evicts entries until the cache is no larger than its maximum size.
+     */
+    private void evictIfNeeded() {
+        while (entries.size() > maximumSize) {
+            Entry candidate = clock.poll();
+            if (candidate == null)
+                return;
+
+            if (candidate.referenced) {
+                // Recently used, give it a second chance
+                candidate.referenced = false;
+                clock.add(candidate);
+            } else if (entries.remove(candidate.key, candidate)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes every expression from the cache. The counters are not reset.
+     */
+    public void clear() {
+        entries.clear();
+        clock.clear();
+    }
+
+    /**
+     * @return the number of expressions currently cached
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the maximum number of expressions this cache will hold
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return the number of lookups which found a cached expression
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups which had to parse the expression
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of expressions evicted to stay within the maximum size
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * A cached expression along with its CLOCK reference bit
+     */
+    private static class Entry {
+
+        final String key;
+        final Expression expression;
+        volatile boolean referenced;
+
+        Entry(String key, Expression expression) {
+            this.key = key;
+            this.expression = expression;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, versioned binary encoding of parsed expressions. Loading an
+ * expression from it rebuilds the tree directly, with no tokenizing or
+ * operator-precedence parsing, so a large corpus loads much faster than
+ * from its infix text. Optimized expressions are stored as they are, so
+ * optimizing before writing saves that work on every load too.
+ * <p>
+ * The encoding holds any number of expressions, and is laid out as:
+ * <p>
+ * magic "EXPR", version (1 byte)
+ * <br>operator table: count, then for each: kind (1 byte), arity (1 byte), symbol or name
+ * <br>name table: count, then each variable name
+ * <br>expression count, then for each: infix length, variable count, the
+ * name table index of each variable, node count, then the nodes in postfix order
+ * <p>
+ * Counts, lengths and indices are unsigned varints, strings are a varint
+ * byte length followed by UTF-8. Each node starts with a tag byte: an
+ * integer literal is followed by its zigzag varint value, a decimal by its
+ * 8 byte IEEE 754 bits and a variable by its slot. Tags from
+ * OPERATOR_SHORT are operators whose index in the operator table is
+ * (tag - OPERATOR_SHORT), larger indices use the OPERATOR tag followed by
+ * the index.
+ * <p>
+ * Operators are written by symbol or name rather than by id, since ids
+ * depend on the order operators were registered. When reading, they are
+ * looked up in the given registry. Variable names shared by many
+ * expressions are stored once.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ExpressionCodec {
+
+    private static final int MAGIC = 0x45585052; // "EXPR"
+    public static final int VERSION = 1;
+
+    // Operator kinds in the operator table
+    private static final int BINARY = 0;
+    private static final int UNARY = 1;
+    private static final int FUNCTION = 2;
+
+    // Node tags
+    private static final int INTEGER = 0;
+    private static final int DECIMAL = 1;
+    private static final int VARIABLE = 2;
+    private static final int OPERATOR = 3;
+    private static final int OPERATOR_SHORT = 16;
+
+    private ExpressionCodec() {
+    }
+
+    /**
+     * Writes expressions to a stream
+     *
+     * @param expressions the expressions to write
+     * @param out         the stream, which is not closed
+     * @throws IOException if writing fails
+     */
+    public static void write(List<Expression> expressions, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.encode(expressions);
+        out.write(encoder.bytes, 0, encoder.length);
+    }
+
+    /**
+     * Writes expressions to a buffer, starting at its position
+     *
+     * @param expressions the expressions to write
+     * @param out         the buffer, its position is moved past the encoding
+     * @throws java.nio.BufferOverflowException if the buffer has too little space left
+     */
+    public static void write(List<Expression> expressions, ByteBuffer out) {
+        Encoder encoder = new Encoder();
+        encoder.encode(expressions);
+        out.put(encoder.bytes, 0, encoder.length);
+    }
+
+    /**
+     * Reads expressions using the default operators
+     *
+     * @param in the stream, which is read to the end but not closed
+     * @return the expressions, in the order they were written
+     * @throws IOException if reading fails, or the data isn't a valid encoding
+     */
+    public static List<Expression> read(InputStream in) throws IOException {
+        return read(in, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Reads expressions using the given operators
+     *
+     * @param in       the stream, which is read to the end but not closed
+     * @param registry the registry to look the expressions' operators up in
+     * @return the expressions, in the order they were written
+     * @throws IOException if reading fails, or the data isn't a valid encoding
+     */
+    public static List<Expression> read(InputStream in, OperatorRegistry registry) throws IOException {
+        return read(ByteBuffer.wrap(in.readAllBytes()), registry);
+    }
+
+    /**
+     * Reads expressions using the default operators
+     *
+     * @param in the buffer, read from its position, which is moved past the encoding
+     * @return the expressions, in the order they were written
+     * @throws IOException if the data isn't a valid encoding
+     */
+    public static List<Expression> read(ByteBuffer in) throws IOException {
+        return read(in, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Reads expressions using the given operators
+     *
+     * @param in       the buffer, read from its position, which is moved past the encoding
+     * @param registry the registry to look the expressions' operators up in
+     * @return the expressions, in the order they were written
+     * @throws IOException if the data isn't a valid encoding
+     */
+    public static List<Expression> read(ByteBuffer in, OperatorRegistry registry) throws IOException {
+        ByteOrder order = in.order();
+        in.order(ByteOrder.BIG_ENDIAN);
+        try {
+            return new Decoder(in, registry).decode();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated expression data.", e);
+        } finally {
+            in.order(order);
+        }
+    }
+
+    /**
+     * Loads a whole corpus of expressions from a file using the default operators
+     *
+     * @param file a file written by {@link #write(List, OutputStream)}
+     * @return the expressions, in the order they were written
+     * @throws IOException if reading fails, or the file isn't a valid encoding
+     */
+    public static List<Expression> read(Path file) throws IOException {
+        return read(file, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Loads a whole corpus of expressions from a file, which is memory
+     * mapped rather than copied into the heap
+     *
+     * @param file     a file written by {@link #write(List, OutputStream)}
+     * @param registry the registry to look the expressions' operators up in
+     * @return the expressions, in the order they were written
+     * @throws IOException if reading fails, or the file isn't a valid encoding
+     */
+    public static List<Expression> read(Path file, OperatorRegistry registry) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Expression file is too large to map: " + channel.size() + " bytes.");
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), registry);
+        }
+    }
+
+    /**
+     * Gets the kind an operator is stored as, along with its arity and
+     * symbol or name
+     *
+     * @param op the operator
+     * @return the operator's kind, BINARY, UNARY or FUNCTION
+     */
+    static int getKind(Operator op) {
+        return op.isFunction() ? FUNCTION : op.getArity() == 1 ? UNARY : BINARY;
+    }
+
+    /**
+     * Looks up a stored operator in a registry
+     *
+     * @param registry the registry to look the operator up in
+     * @param kind     the operator's kind, see {@link #getKind(Operator)}
+     * @param arity    the operator's arity
+     * @param symbol   the operator's symbol or function name
+     * @return the registry's operator
+     * @throws IOException if the registry has no such operator
+     */
+    static Operator findOperator(OperatorRegistry registry, int kind, int arity, String symbol) throws IOException {
+        Operator op = null;
+        if (kind == FUNCTION)
+            op = registry.getFunction(symbol);
+        else if (symbol.length() == 1 && kind == BINARY)
+            op = registry.getBinary(symbol.charAt(0));
+        else if (symbol.length() == 1 && kind == UNARY)
+            op = registry.getUnary(symbol.charAt(0));
+        if (op == null || op.getArity() != arity)
+            throw new IOException("Unknown operator: " + symbol + ".");
+        return op;
+    }
+
+    /**
+     * Encodes expressions into a growable byte array. The operator and name
+     * tables are only complete once every expression has been seen, so the
+     * expressions are encoded into a separate body first.
+     */
+    private static class Encoder {
+
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        private final Map<Operator, Integer> operatorIndices = new IdentityHashMap<>();
+        private final List<Operator> operators = new ArrayList<>();
+        private final Map<String, Integer> nameIndices = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        void encode(List<Expression> expressions) {
+            writeVarint(expressions.size());
+            for (Expression expression : expressions)
+                encode(expression);
+            byte[] body = bytes;
+            int bodyLength = length;
+
+            bytes = new byte[bodyLength + 64];
+            length = 0;
+            writeInt(MAGIC);
+            writeByte(VERSION);
+            writeVarint(operators.size());
+            for (Operator op : operators) {
+                writeByte(getKind(op));
+                writeByte(op.getArity());
+                writeString(op.getSymbol());
+            }
+            writeVarint(names.size());
+            for (String name : names)
+                writeString(name);
+            ensureCapacity(bodyLength);
+            System.arraycopy(body, 0, bytes, length, bodyLength);
+            length += bodyLength;
+        }
+
+        private void encode(Expression expression) {
+            writeVarint(expression.getLength());
+            List<String> variables = expression.getVariableNames();
+            writeVarint(variables.size());
+            for (String name : variables) {
+                Integer index = nameIndices.get(name);
+                if (index == null) {
+                    index = names.size();
+                    nameIndices.put(name, index);
+                    names.add(name);
+                }
+                writeVarint(index);
+            }
+
+            List<Token> postfix = postfix(expression.getTree());
+            writeVarint(postfix.size());
+            for (Token tok : postfix)
+                writeNode(tok);
+        }
+
+        /**
+         * Lists a tree's tokens in postfix order without recursion. This is
+         * the reverse of visiting each token before its children, last
+         * child first.
+         */
+        private static List<Token> postfix(Token root) {
+            ArrayList<Token> order = new ArrayList<>();
+            ArrayDeque<Token> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Token tok = pending.pop();
+                order.add(tok);
+                if (tok instanceof OperatorToken) {
+                    OperatorToken op = (OperatorToken) tok;
+                    pending.push(op.getLeftOperand());
+                    if (op.getRightOperand() != null)
+                        pending.push(op.getRightOperand());
+                }
+            }
+            Collections.reverse(order);
+            return order;
+        }
+
+        private void writeNode(Token tok) {
+            if (tok instanceof OperandToken) {
+                writeByte(INTEGER);
+                long value = ((OperandToken) tok).getLongValue();
+                writeVarint((value << 1) ^ (value >> 63));
+            } else if (tok instanceof DecimalToken) {
+                writeByte(DECIMAL);
+                long bits = Double.doubleToRawLongBits(((DecimalToken) tok).getValue());
+                writeInt((int) (bits >>> 32));
+                writeInt((int) bits);
+            } else if (tok instanceof VariableToken) {
+                writeByte(VARIABLE);
+                writeVarint(((VariableToken) tok).getSlot());
+            } else if (tok instanceof OperatorToken) {
+                Operator op = ((OperatorToken) tok).getOperator();
+                Integer index = operatorIndices.get(op);
+                if (index == null) {
+                    index = operators.size();
+                    operatorIndices.put(op, index);
+                    operators.add(op);
+                }
+                if (index < 256 - OPERATOR_SHORT) {
+                    writeByte(OPERATOR_SHORT + index);
+                } else {
+                    writeByte(OPERATOR);
+                    writeVarint(index);
+                }
+            } else {
+                throw new IllegalStateException("Unknown token: " + tok);
+            }
+        }
+
+        private void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        private void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void writeInt(int value) {
+            ensureCapacity(4);
+            bytes[length++] = (byte) (value >>> 24);
+            bytes[length++] = (byte) (value >>> 16);
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) value;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Rebuilds expressions from their encoding. Trees are built from the
+     * postfix nodes with an operand stack, the same way the parser builds
+     * them, so deep trees don't need recursion.
+     */
+    private static class Decoder {
+
+        private final ByteBuffer in;
+        private final OperatorRegistry registry;
+        private Operator[] operators;
+        private String[] names;
+
+        private Token[] operands = new Token[16];
+
+        Decoder(ByteBuffer in, OperatorRegistry registry) {
+            this.in = in;
+            this.registry = registry;
+        }
+
+        List<Expression> decode() throws IOException {
+            if (in.remaining() < 5 || in.getInt() != MAGIC)
+                throw new IOException("Not an expression encoding.");
+            int version = in.get() & 0xFF;
+            if (version != VERSION)
+                throw new IOException("Unsupported expression encoding version: " + version + ".");
+
+            operators = new Operator[readEntryCount()];
+            for (int i = 0; i < operators.length; i++)
+                operators[i] = readOperator();
+            names = new String[readEntryCount()];
+            for (int i = 0; i < names.length; i++)
+                names[i] = readString();
+
+            int count = readEntryCount();
+            List<Expression> expressions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                expressions.add(readExpression());
+            return expressions;
+        }
+
+        private Operator readOperator() throws IOException {
+            int kind = in.get();
+            int arity = in.get();
+            return findOperator(registry, kind, arity, readString());
+        }
+
+        private Expression readExpression() throws IOException {
+            int length = readCount();
+            List<String> variables = new ArrayList<>();
+            int variableCount = readEntryCount();
+            for (int slot = 0; slot < variableCount; slot++) {
+                int index = readCount();
+                if (index >= names.length)
+                    throw new IOException("Invalid variable name index: " + index + ".");
+                variables.add(names[index]);
+            }
+
+            int nodeCount = readEntryCount();
+            int operandCount = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                int tag = in.get() & 0xFF;
+                Token tok;
+                if (tag == INTEGER) {
+                    long zigzag = readVarint();
+                    tok = new OperandToken((zigzag >>> 1) ^ -(zigzag & 1));
+                } else if (tag == DECIMAL) {
+                    tok = new DecimalToken(Double.longBitsToDouble(in.getLong()));
+                } else if (tag == VARIABLE) {
+                    int slot = readCount();
+                    if (slot >= variableCount)
+                        throw new IOException("Invalid variable slot: " + slot + ".");
+                    tok = new VariableToken(variables.get(slot), slot);
+                } else if (tag == OPERATOR || tag >= OPERATOR_SHORT) {
+                    int index = tag == OPERATOR ? readCount() : tag - OPERATOR_SHORT;
+                    if (index >= operators.length)
+                        throw new IOException("Invalid operator index: " + index + ".");
+                    Operator op = operators[index];
+                    if (operandCount < op.getArity())
+                        throw new IOException("Missing operands for " + op + ".");
+                    operandCount -= op.getArity();
+                    Token rhs = null;
+                    if (op.getArity() == 2) {
+                        rhs = operands[operandCount + 1];
+                        operands[operandCount + 1] = null;
+                    }
+                    tok = new OperatorToken(op, operands[operandCount], rhs);
+                } else {
+                    throw new IOException("Invalid node tag: " + tag + ".");
+                }
+
+                if (operandCount == operands.length)
+                    operands = Arrays.copyOf(operands, operandCount * 2);
+                operands[operandCount++] = tok;
+            }
+            if (operandCount != 1)
+                throw new IOException("Expression has " + operandCount + " roots.");
+
+            Token root = operands[0];
+            operands[0] = null;
+            return new Expression(root, OperatorToken.heightOf(root), nodeCount, length, variables, registry);
+        }
+
+        private String readString() throws IOException {
+            int length = readCount();
+            if (length > in.remaining())
+                throw new BufferUnderflowException();
+            String value;
+            if (in.hasArray()) {
+                value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            } else {
+                byte[] utf8 = new byte[length];
+                in.get(utf8);
+                value = new String(utf8, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        /**
+         * Reads a varint which must fit in a non-negative int
+         */
+        private int readCount() throws IOException {
+            long value = readVarint();
+            if (value > Integer.MAX_VALUE)
+                throw new IOException("Invalid count: " + value + ".");
+            return (int) value;
+        }
+
+        /**
+         * Reads the number of entries which follow. Every entry takes at
+         * least one byte, so a corrupt count is rejected before anything is
+         * allocated for it.
+         */
+        private int readEntryCount() throws IOException {
+            int count = readCount();
+            if (count > in.remaining())
+                throw new IOException("Invalid count: " + count + ", only " + in.remaining() + " bytes remain.");
+            return count;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint.");
+        }
+    }
+}
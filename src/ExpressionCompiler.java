@@ -0,0 +1,428 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Generates a JVM class for an expression tree at runtime. The generated
+ * class extends CompiledExpression and its compute method evaluates the
+ * tree with plain int instructions (iadd, isub, imul, idiv, ineg), array
+ * loads for variables and static calls for ^ and the standard functions.
+ * Operators added to an OperatorRegistry have no bytecode form, so
+ * expressions using them are not turned into bytecode.
+ * <p>
+ * Every generated class is defined by its own class loader. Nothing else
+ * references that loader, so once the CompiledExpression is unreachable the
+ * class and its loader can be unloaded by the garbage collector. Compiling
+ * many distinct expressions over the life of a process does not leak metaspace.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ExpressionCompiler {
+
+    // HotSpot does not JIT compile methods with more bytes of bytecode than
+    // this (see -XX:-DontCompileHugeMethods). Larger expressions would run
+    // in the bytecode interpreter, which is slower than walking the tree.
+    private static final int MAX_CODE_LENGTH = 8000;
+
+    // Trees taller than this fall back to TreeEvaluator rather than evalToken
+    private static final int MAX_RECURSION_DEPTH = 1000;
+
+    private static final String CLASS_NAME = "GeneratedExpression";
+    private static final String SUPER_CLASS_NAME = "CompiledExpression";
+
+    // Class file constants
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int JAVA_8_VERSION = 52;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PROTECTED = 0x0004;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int IALOAD = 0x2e;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int IDIV = 0x6c;
+    private static final int INEG = 0x74;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    /**
+     * Compiles an expression tree into a generated class and returns
+     * an instance of it. Trees too large to be compiled by the JIT, or using
+     * operators which have no bytecode form, are not turned into bytecode,
+     * their CompiledExpression walks the tree instead.
+     *
+     * @param root the root of the expression tree
+     * @return a CompiledExpression which evaluates to the same value as the tree
+     */
+    public static CompiledExpression compile(Token root) {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        byte[] classFile = compiler.generate(root);
+        if (classFile == null) {
+            int height = OperatorToken.heightOf(root);
+            return new CompiledExpression(compiler.variableCount) {
+                @Override
+                protected int compute(int[] bindings) {
+                    if (height > MAX_RECURSION_DEPTH)
+                        return TreeEvaluator.evaluate(root, bindings, height);
+                    return root.evalToken(bindings);
+                }
+            };
+        }
+
+        Class<?> generated = new GeneratedClassLoader().define(classFile);
+        try {
+            return (CompiledExpression) generated.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not instantiate compiled expression", e);
+        }
+    }
+
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private final HashMap<Integer, Integer> integerConstants = new HashMap<>();
+    private int constantCount = 1;
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int depth;
+    private int maxDepth;
+    private int variableCount;
+
+    // Method refs in the constant pool, by owner, name and descriptor
+    private final HashMap<String, Integer> methodRefs = new HashMap<>();
+    private boolean unsupported;
+
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * Builds the class file for the given tree.
+     *
+     * @param root the root of the expression tree
+     * @return the bytes of the class file, or null if the tree is too large
+     * or uses an operator without a bytecode form
+     */
+    private byte[] generate(Token root) {
+        int thisClass = addClass(CLASS_NAME);
+        int superClass = addClass(SUPER_CLASS_NAME);
+        int initName = addUtf8("<init>");
+        int voidDescriptor = addUtf8("()V");
+        int superInit = addMethodRef(superClass, initName, addUtf8("(I)V"));
+        int computeName = addUtf8("compute");
+        int computeDescriptor = addUtf8("([I)I");
+        int codeAttribute = addUtf8("Code");
+
+        // Every token emits at least one byte, so larger trees can't fit
+        if (OperatorToken.sizeOf(root) > MAX_CODE_LENGTH)
+            return null;
+        emitTree(root);
+        code.write(IRETURN);
+        if (unsupported || code.size() > MAX_CODE_LENGTH)
+            return null;
+        int variableCountRef = addInteger(variableCount);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(JAVA_8_VERSION);
+            out.writeShort(constantCount);
+            constantPool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces, IntSupplier comes from the superclass
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            // public GeneratedExpression() { super(variableCount); }
+            byte[] initCode = {
+                    (byte) ALOAD_0,
+                    (byte) LDC_W, (byte) (variableCountRef >> 8), (byte) variableCountRef,
+                    (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit,
+                    (byte) RETURN
+            };
+            writeMethod(out, ACC_PUBLIC, initName, voidDescriptor, codeAttribute, 2, 1, initCode);
+
+            // protected final int compute(int[] bindings) { return <expression>; }
+            writeMethod(out, ACC_PROTECTED | ACC_FINAL, computeName, computeDescriptor, codeAttribute,
+                    maxDepth, 2, code.toByteArray());
+
+            out.writeShort(0); // class attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to a ByteArrayOutputStream never fails
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Emits bytecode which leaves the value of the given tree on the operand
+     * stack. Operands are evaluated left to right, the same as evalToken.
+     * The tree is walked with an explicit stack, so it may be of any depth.
+     * Emitting stops early once the code is too long or uses an operator
+     * without a bytecode form.
+     *
+     * @param root the root of the tree to emit
+     */
+    private void emitTree(Token root) {
+        // The stack of operators whose operands are being emitted and, for
+        // each, the next operand to emit
+        OperatorToken[] pending = new OperatorToken[16];
+        Token[] nextOperands = new Token[16];
+        int top = 0;
+
+        Token tok = root;
+        while (true) {
+            while (tok instanceof OperatorToken) {
+                if (top == pending.length) {
+                    pending = Arrays.copyOf(pending, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                }
+                pending[top] = (OperatorToken) tok;
+                nextOperands[top] = pending[top].getRightOperand();
+                top++;
+                tok = ((OperatorToken) tok).getLeftOperand();
+            }
+            emitLeaf(tok);
+            // Stop as soon as the tree can't be compiled, generate gives up on it
+            if (unsupported || code.size() > MAX_CODE_LENGTH)
+                return;
+
+            while (top > 0 && nextOperands[top - 1] == null) {
+                top--;
+                emitOperator(pending[top].getOperator());
+                pending[top] = null;
+            }
+            if (top == 0)
+                return;
+
+            tok = nextOperands[top - 1];
+            nextOperands[top - 1] = null;
+        }
+    }
+
+    /**
+     * Emits bytecode which pushes the value of a literal or variable
+     *
+     * @param tok the token to emit
+     */
+    private void emitLeaf(Token tok) {
+        if (tok instanceof OperandToken) {
+            emitInt(((OperandToken) tok).getValue());
+        } else if (tok instanceof VariableToken) {
+            // bindings[slot]
+            int slot = ((VariableToken) tok).getSlot();
+            variableCount = Math.max(variableCount, slot + 1);
+            emit(ALOAD_1, 1);
+            emitInt(slot);
+            emit(IALOAD, -1);
+        } else if (tok instanceof DecimalToken) {
+            throw new UnsupportedOperationException("Decimal literal " + ((DecimalToken) tok).getValue()
+                    + " can only be evaluated as a double.");
+        } else {
+            throw new IllegalStateException("Unknown token: " + tok);
+        }
+    }
+
+    /**
+     * Emits the instructions applying an operator to the operands on top
+     * of the operand stack
+     *
+     * @param op the operator
+     */
+    private void emitOperator(Operator op) {
+        switch (op.getId()) {
+            case Operator.ADD:
+                emit(IADD, -1);
+                break;
+            case Operator.SUBTRACT:
+                emit(ISUB, -1);
+                break;
+            case Operator.MULTIPLY:
+                emit(IMUL, -1);
+                break;
+            case Operator.DIVIDE:
+                emit(IDIV, -1);
+                break;
+            case Operator.NEGATE:
+                emit(INEG, 0);
+                break;
+            case Operator.POWER:
+                emitStatic("Operator", "pow", "(II)I", -1);
+                break;
+            case Operator.MIN:
+                emitStatic("java/lang/Math", "min", "(II)I", -1);
+                break;
+            case Operator.MAX:
+                emitStatic("java/lang/Math", "max", "(II)I", -1);
+                break;
+            case Operator.ABS:
+                emitStatic("java/lang/Math", "abs", "(I)I", 0);
+                break;
+            case Operator.MOD:
+                emitStatic("java/lang/Math", "floorMod", "(II)I", -1);
+                break;
+            default:
+                // Only reachable through a lambda, walk the tree instead
+                unsupported = true;
+                break;
+        }
+    }
+
+    /**
+     * Emits a call to a static method
+     *
+     * @param owner      the internal name of the method's class
+     * @param name       the method's name
+     * @param descriptor the method's descriptor
+     * @param stackDelta the change in operand stack size, in slots
+     */
+    private void emitStatic(String owner, String name, String descriptor, int stackDelta) {
+        String key = owner + '.' + name + descriptor;
+        Integer ref = methodRefs.get(key);
+        if (ref == null) {
+            ref = addMethodRef(addClass(owner), addUtf8(name), addUtf8(descriptor));
+            methodRefs.put(key, ref);
+        }
+        emit(INVOKESTATIC, stackDelta);
+        writeShort(ref);
+    }
+
+    /**
+     * Emits the shortest instruction which pushes the given int constant
+     *
+     * @param value the constant to push
+     */
+    private void emitInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(BIPUSH, 1);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(SIPUSH, 1);
+            writeShort(value);
+        } else {
+            emit(LDC_W, 1);
+            writeShort(addInteger(value));
+        }
+    }
+
+    /**
+     * Writes an instruction and tracks its effect on the operand stack
+     *
+     * @param opcode     the instruction
+     * @param stackDelta the change in operand stack size, in slots
+     */
+    private void emit(int opcode, int stackDelta) {
+        code.write(opcode);
+        depth += stackDelta;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor,
+                                    int codeAttribute, int maxStack, int maxLocals,
+                                    byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1); // attributes
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // code attributes
+    }
+
+    // Constant pool helpers. Each returns the index of the new entry.
+
+    private int addUtf8(String value) {
+        constantPool.write(CONSTANT_UTF8);
+        // Only ever used for ASCII names, so the modified UTF-8 is the same as ASCII
+        writePoolShort(value.length());
+        for (int i = 0; i < value.length(); i++)
+            constantPool.write(value.charAt(i));
+        return constantCount++;
+    }
+
+    private int addClass(String name) {
+        int nameIndex = addUtf8(name);
+        constantPool.write(CONSTANT_CLASS);
+        writePoolShort(nameIndex);
+        return constantCount++;
+    }
+
+    private int addMethodRef(int classIndex, int nameIndex, int descriptorIndex) {
+        constantPool.write(CONSTANT_NAME_AND_TYPE);
+        writePoolShort(nameIndex);
+        writePoolShort(descriptorIndex);
+        int nameAndType = constantCount++;
+
+        constantPool.write(CONSTANT_METHOD_REF);
+        writePoolShort(classIndex);
+        writePoolShort(nameAndType);
+        return constantCount++;
+    }
+
+    private int addInteger(int value) {
+        Integer index = integerConstants.get(value);
+        if (index != null)
+            return index;
+
+        constantPool.write(CONSTANT_INTEGER);
+        constantPool.write(value >>> 24);
+        constantPool.write(value >>> 16);
+        constantPool.write(value >>> 8);
+        constantPool.write(value);
+        integerConstants.put(value, constantCount);
+        return constantCount++;
+    }
+
+    private void writePoolShort(int value) {
+        constantPool.write(value >> 8);
+        constantPool.write(value);
+    }
+
+    /**
+     * A class loader which defines exactly one generated class. The loader is
+     * only reachable through that class, so both are unloaded together.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+
+        GeneratedClassLoader() {
+            super(CompiledExpression.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(CLASS_NAME, classFile, 0, classFile.length);
+        }
+    }
+}
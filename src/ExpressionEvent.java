@@ -0,0 +1,29 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fields shared by the Flight Recorder events of parsing, evaluating
+ * and serializing an Expression. The duration of each event is the time
+ * the operation took.
+ *
+ * @author Samuel Laberge, 2020
+ */
+@Category("Expression Evaluator")
+@StackTrace(false)
+abstract class ExpressionEvent extends Event {
+
+    @Label("Expression Length")
+    @Description("The number of characters in the infix expression")
+    int length;
+
+    @Label("Node Count")
+    @Description("The number of tokens in the expression tree, 0 if it failed to parse")
+    int nodeCount;
+
+    @Label("Failure")
+    @Description("Why the operation failed, or null if it succeeded")
+    String failure;
+}
@@ -0,0 +1,723 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds a large number of compiled expressions outside of the Java heap.
+ * Each expression is lowered to its {@link Program} code, which is copied
+ * into direct or memory mapped buffers and evaluated straight from there.
+ * The garbage collector never sees the expressions, only a handful of
+ * buffers and one long per expression locating it, so holding tens of
+ * millions of them doesn't lengthen GC pauses.
+ * <p>
+ * A store is either allocated in memory with {@link #allocate()}, or backed
+ * by a file with {@link #create(Path)}. A file backed store is mapped rather
+ * than read, and can be reopened with {@link #open(Path)} after a restart
+ * without parsing or compiling any expression again.
+ * <p>
+ * The store is split into segments, which are allocated or mapped as it
+ * grows. Segment 0 starts with the header:
+ * <p>
+ * magic "EXPS", version, segment size, expression count, end of the data
+ * (segment, position)
+ * <p>
+ * followed by records, each starting with its length in bytes and its
+ * type. An OPERATOR record holds an operator the following expressions
+ * call, stored by kind, arity and symbol as in {@link ExpressionCodec}. An
+ * EXPRESSION record holds its variable count, its maximum stack depth, the
+ * length and ints of its code, and the names of its variables. Records
+ * never cross a segment, a PADDING record fills the rest of a segment
+ * which had too little room for the next one. All values are little
+ * endian ints, and records are aligned on 4 bytes.
+ * <p>
+ * The header is updated after each record is written, so a file store
+ * which wasn't closed properly reopens with every expression added before
+ * the last one was started.
+ * <p>
+ * Closing a store releases its buffers, after which it can't be used.
+ * Java 11 can't free direct buffers or unmap files on demand, so their
+ * memory is returned once the garbage collector finds them unreachable.
+ * Expressions may be evaluated by multiple threads at once, but not while
+ * another thread adds to or closes the store.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ExpressionStore implements Closeable {
+
+    private static final int MAGIC = 0x53505845; // "EXPS", little endian
+    public static final int VERSION = 1;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int MIN_SEGMENT_SIZE = 256;
+
+    // Header fields, at the start of segment 0
+    private static final int VERSION_OFFSET = 4;
+    private static final int SEGMENT_SIZE_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int END_SEGMENT_OFFSET = 16;
+    private static final int END_POSITION_OFFSET = 20;
+    private static final int HEADER_SIZE = 24;
+
+    // Record types
+    private static final int PADDING = 0;
+    private static final int OPERATOR = 1;
+    private static final int EXPRESSION = 2;
+
+    // Fields of an EXPRESSION record, after its length and type
+    private static final int VARIABLE_COUNT_OFFSET = 8;
+    private static final int MAX_STACK_OFFSET = 12;
+    private static final int CODE_LENGTH_OFFSET = 16;
+    private static final int CODE_OFFSET = 20;
+
+    // An operand stack for each thread evaluating, grown as needed
+    private static final ThreadLocal<int[]> stacks = ThreadLocal.withInitial(() -> new int[16]);
+
+    private final int segmentSize;
+    private final FileChannel channel;
+    private ByteBuffer[] segments;
+    private int segmentCount;
+    // The end of the data in the last segment
+    private int position;
+
+    // The segment of each expression's record in the high int, and its
+    // position in the low int
+    private long[] offsets = new long[16];
+    private int count;
+
+    private Operator[] operators = new Operator[0];
+    private final Map<Operator, Integer> operatorIndices = new IdentityHashMap<>();
+
+    private ExpressionStore(int segmentSize, FileChannel channel) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize % 4 != 0)
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize + ".");
+        this.segmentSize = segmentSize;
+        this.channel = channel;
+        this.segments = new ByteBuffer[4];
+    }
+
+    /**
+     * Creates an empty store in direct memory, outside of the heap
+     *
+     * @return an empty store
+     */
+    public static ExpressionStore allocate() {
+        return allocate(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an empty store in direct memory, outside of the heap
+     *
+     * @param segmentSize the most bytes allocated at once, which is also
+     *                    the largest an expression's record can be
+     * @return an empty store
+     */
+    public static ExpressionStore allocate(int segmentSize) {
+        ExpressionStore store = new ExpressionStore(segmentSize, null);
+        store.addSegment(Math.min(segmentSize, 4096));
+        store.position = HEADER_SIZE;
+        store.writeHeader();
+        return store;
+    }
+
+    /**
+     * Creates an empty store backed by a file, which is replaced if it exists
+     *
+     * @param file the file to store the expressions in
+     * @return an empty store
+     * @throws IOException if the file can't be created or mapped
+     */
+    public static ExpressionStore create(Path file) throws IOException {
+        return create(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an empty store backed by a file, which is replaced if it exists
+     *
+     * @param file        the file to store the expressions in
+     * @param segmentSize the size of each mapping of the file, which is also
+     *                    the largest an expression's record can be
+     * @return an empty store
+     * @throws IOException if the file can't be created or mapped
+     */
+    public static ExpressionStore create(Path file, int segmentSize) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ExpressionStore store = new ExpressionStore(segmentSize, channel);
+            store.mapSegment();
+            store.position = HEADER_SIZE;
+            store.writeHeader();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reopens a store created by {@link #create(Path)}, whose expressions
+     * only use the default operators
+     *
+     * @param file the store's file
+     * @return the store, to which more expressions may be added
+     * @throws IOException if the file can't be mapped or isn't a valid store
+     */
+    public static ExpressionStore open(Path file) throws IOException {
+        return open(file, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Reopens a store created by {@link #create(Path)}. Each expression's
+     * code is checked so that evaluating it can trust it, but is used as it
+     * is in the file rather than compiled again.
+     *
+     * @param file     the store's file
+     * @param registry the registry to look the expressions' operators up in
+     * @return the store, to which more expressions may be added
+     * @throws IOException if the file can't be mapped or isn't a valid store
+     */
+    public static ExpressionStore open(Path file, OperatorRegistry registry) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException("Not an expression store.");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("Not an expression store.");
+            }
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("Not an expression store.");
+            int version = header.getInt(VERSION_OFFSET);
+            if (version != VERSION)
+                throw new IOException("Unsupported expression store version: " + version + ".");
+            int segmentSize = header.getInt(SEGMENT_SIZE_OFFSET);
+            if (segmentSize < MIN_SEGMENT_SIZE || segmentSize % 4 != 0)
+                throw new IOException("Invalid segment size: " + segmentSize + ".");
+
+            ExpressionStore store = new ExpressionStore(segmentSize, channel);
+            store.load(header.getInt(COUNT_OFFSET), header.getInt(END_SEGMENT_OFFSET),
+                    header.getInt(END_POSITION_OFFSET), registry);
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the records of a reopened store, mapping each of its segments
+     */
+    private void load(int expectedCount, int endSegment, int endPosition, OperatorRegistry registry)
+            throws IOException {
+        if (endSegment < 0 || endPosition < HEADER_SIZE || endPosition > segmentSize
+                || (long) endSegment * segmentSize + endPosition > channel.size())
+            throw new IOException("Corrupt expression store.");
+        for (int i = 0; i <= endSegment; i++)
+            mapSegment();
+
+        int segment = 0;
+        int pos = HEADER_SIZE;
+        while (segment < endSegment || pos < endPosition) {
+            ByteBuffer buffer = segments[segment];
+            int length = pos + 8 <= segmentSize ? buffer.getInt(pos) : 0;
+            int type = length != 0 ? buffer.getInt(pos + 4) : PADDING;
+            if (type == PADDING) {
+                if (segment == endSegment)
+                    throw new IOException("Corrupt expression store.");
+                segment++;
+                pos = 0;
+                continue;
+            }
+            if (length < 8 || length % 4 != 0 || length > segmentSize - pos
+                    || (segment == endSegment && pos + length > endPosition))
+                throw new IOException("Corrupt expression store.");
+
+            if (type == OPERATOR) {
+                int symbolLength = buffer.getInt(pos + 16);
+                if (symbolLength < 0 || symbolLength > length - 20)
+                    throw new IOException("Corrupt expression store.");
+                String symbol = readString(buffer, pos + 20, symbolLength);
+                addOperator(ExpressionCodec.findOperator(registry, buffer.getInt(pos + 8),
+                        buffer.getInt(pos + 12), symbol));
+            } else if (type == EXPRESSION) {
+                checkExpression(buffer, pos, length);
+                addOffset(segment, pos);
+            } else {
+                throw new IOException("Invalid record type: " + type + ".");
+            }
+            pos += length;
+        }
+        position = endPosition;
+        if (count != expectedCount)
+            throw new IOException("Expected " + expectedCount + " expressions, found " + count + ".");
+    }
+
+    /**
+     * Checks that an expression's code stays within its record and only
+     * calls operators the store knows about, so that evaluating it can
+     * trust the code
+     */
+    private void checkExpression(ByteBuffer buffer, int pos, int length) throws IOException {
+        int variableCount = buffer.getInt(pos + VARIABLE_COUNT_OFFSET);
+        int maxStack = buffer.getInt(pos + MAX_STACK_OFFSET);
+        int codeLength = buffer.getInt(pos + CODE_LENGTH_OFFSET);
+        int end = pos + length;
+        if (length < CODE_OFFSET || variableCount < 0 || codeLength < 1 || codeLength > (length - CODE_OFFSET) / 4)
+            throw new IOException("Corrupt expression store.");
+
+        // Every instruction after the first leaves at least one value on
+        // the stack, which holds the previous top, and one value at the end
+        int pc = pos + CODE_OFFSET;
+        int codeEnd = pc + codeLength * 4;
+        int depth = 0;
+        while (pc < codeEnd) {
+            int opcode = buffer.getInt(pc);
+            pc += 4;
+            if (hasOperand(opcode)) {
+                if (pc == codeEnd)
+                    throw new IOException("Corrupt expression store.");
+                int operand = buffer.getInt(pc);
+                pc += 4;
+                if ((opcode == Program.CALL_UNARY || opcode == Program.CALL_BINARY)
+                        && (operand < 0 || operand >= operators.length))
+                    throw new IOException("Invalid operator index: " + operand + ".");
+                if ((opcode == Program.LOAD || opcode >= Program.ADD_VARIABLE && opcode <= Program.POW_VARIABLE)
+                        && (operand < 0 || operand >= variableCount))
+                    throw new IOException("Invalid variable slot: " + operand + ".");
+            }
+            depth += stackEffect(opcode);
+            if (depth < 1 || depth > maxStack)
+                throw new IOException("Corrupt expression store.");
+        }
+        if (depth != 1)
+            throw new IOException("Corrupt expression store.");
+
+        for (int i = 0; i < variableCount; i++) {
+            int nameLength = pc + 4 <= end ? buffer.getInt(pc) : -1;
+            if (nameLength < 0 || nameLength > end - pc - 4)
+                throw new IOException("Corrupt expression store.");
+            pc += 4 + align(nameLength);
+        }
+    }
+
+    /**
+     * Compiles an expression and copies it into the store
+     *
+     * @param expression the expression to add
+     * @return the expression's index in the store
+     * @throws UnsupportedOperationException if the expression contains decimal literals
+     * @throws IllegalArgumentException      if the expression's record is larger than a segment
+     */
+    public int add(Expression expression) {
+        checkOpen();
+        Program program = expression.toProgram();
+        for (Operator op : program.getOperators()) {
+            if (!operatorIndices.containsKey(op))
+                writeOperator(op);
+        }
+
+        int[] code = program.getCode();
+        List<String> names = expression.getVariableNames();
+        byte[][] utf8 = new byte[names.size()][];
+        int length = CODE_OFFSET + code.length * 4;
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + align(utf8[i].length);
+        }
+        ByteBuffer buffer = reserve(length);
+        int pos = position;
+        buffer.putInt(pos, length);
+        buffer.putInt(pos + 4, EXPRESSION);
+        buffer.putInt(pos + VARIABLE_COUNT_OFFSET, names.size());
+        buffer.putInt(pos + MAX_STACK_OFFSET, program.getMaxStack());
+        buffer.putInt(pos + CODE_LENGTH_OFFSET, code.length);
+
+        Operator[] programOperators = program.getOperators();
+        int pc = pos + CODE_OFFSET;
+        for (int i = 0; i < code.length; i++) {
+            int opcode = code[i];
+            buffer.putInt(pc, opcode);
+            pc += 4;
+            if (hasOperand(opcode)) {
+                int operand = code[++i];
+                // Calls refer to the program's operator table, which is
+                // translated to the store's
+                if (opcode == Program.CALL_UNARY || opcode == Program.CALL_BINARY)
+                    operand = operatorIndices.get(programOperators[operand]);
+                buffer.putInt(pc, operand);
+                pc += 4;
+            }
+        }
+        for (byte[] name : utf8) {
+            buffer.putInt(pc, name.length);
+            putBytes(buffer, pc + 4, name);
+            pc += 4 + align(name.length);
+        }
+
+        position += length;
+        addOffset(segmentCount - 1, pos);
+        writeHeader();
+        return count - 1;
+    }
+
+    /**
+     * Evaluates a stored expression with no variables
+     *
+     * @param index the expression's index in the store
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if the expression contains variables
+     */
+    public int evaluate(int index) {
+        return evaluate(index, Expression.NO_BINDINGS);
+    }
+
+    /**
+     * Evaluates a stored expression straight from its code in the store,
+     * giving the same result as {@link Expression#evaluate(int[])}
+     *
+     * @param index    the expression's index in the store
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    public int evaluate(int index, int[] bindings) {
+        long offset = offsetOf(index);
+        final ByteBuffer code = segments[(int) (offset >>> 32)];
+        final Operator[] operators = this.operators;
+        int record = (int) offset;
+        Expression.checkBindings(bindings, code.getInt(record + VARIABLE_COUNT_OFFSET));
+        int[] stack = stacks.get();
+        int maxStack = code.getInt(record + MAX_STACK_OFFSET);
+        if (maxStack > stack.length) {
+            stack = new int[Math.max(maxStack, stack.length * 2)];
+            stacks.set(stack);
+        }
+
+        // The same machine as Program.evaluate, reading the code from the buffer
+        int top = 0;
+        int sp = 0;
+        int pc = record + CODE_OFFSET;
+        final int end = pc + code.getInt(record + CODE_LENGTH_OFFSET) * 4;
+        while (pc < end) {
+            int opcode = code.getInt(pc);
+            pc += 4;
+            switch (opcode) {
+                case Program.PUSH:
+                    stack[sp++] = top;
+                    top = code.getInt(pc);
+                    pc += 4;
+                    break;
+                case Program.LOAD:
+                    stack[sp++] = top;
+                    top = bindings[code.getInt(pc)];
+                    pc += 4;
+                    break;
+                case Program.ADD:
+                    top = stack[--sp] + top;
+                    break;
+                case Program.SUB:
+                    top = stack[--sp] - top;
+                    break;
+                case Program.MUL:
+                    top = stack[--sp] * top;
+                    break;
+                case Program.DIV:
+                    top = stack[--sp] / top;
+                    break;
+                case Program.POW:
+                    top = Operator.pow(stack[--sp], top);
+                    break;
+                case Program.NEG:
+                    top = -top;
+                    break;
+                case Program.CALL_UNARY:
+                    top = operators[code.getInt(pc)].applyAsInt(top);
+                    pc += 4;
+                    break;
+                case Program.CALL_BINARY:
+                    top = operators[code.getInt(pc)].applyAsInt(stack[--sp], top);
+                    pc += 4;
+                    break;
+                case Program.ADD_LITERAL:
+                    top = top + code.getInt(pc);
+                    pc += 4;
+                    break;
+                case Program.SUB_LITERAL:
+                    top = top - code.getInt(pc);
+                    pc += 4;
+                    break;
+                case Program.MUL_LITERAL:
+                    top = top * code.getInt(pc);
+                    pc += 4;
+                    break;
+                case Program.DIV_LITERAL:
+                    top = top / code.getInt(pc);
+                    pc += 4;
+                    break;
+                case Program.POW_LITERAL:
+                    top = Operator.pow(top, code.getInt(pc));
+                    pc += 4;
+                    break;
+                case Program.ADD_VARIABLE:
+                    top = top + bindings[code.getInt(pc)];
+                    pc += 4;
+                    break;
+                case Program.SUB_VARIABLE:
+                    top = top - bindings[code.getInt(pc)];
+                    pc += 4;
+                    break;
+                case Program.MUL_VARIABLE:
+                    top = top * bindings[code.getInt(pc)];
+                    pc += 4;
+                    break;
+                case Program.DIV_VARIABLE:
+                    top = top / bindings[code.getInt(pc)];
+                    pc += 4;
+                    break;
+                case Program.POW_VARIABLE:
+                    top = Operator.pow(top, bindings[code.getInt(pc)]);
+                    pc += 4;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + opcode);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @return the number of expressions in the store
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index the expression's index in the store
+     * @return the number of variables the expression has
+     */
+    public int getVariableCount(int index) {
+        long offset = offsetOf(index);
+        return segments[(int) (offset >>> 32)].getInt((int) offset + VARIABLE_COUNT_OFFSET);
+    }
+
+    /**
+     * @param index the expression's index in the store
+     * @return the names of the expression's variables, indexed by slot
+     */
+    public List<String> getVariableNames(int index) {
+        long offset = offsetOf(index);
+        ByteBuffer buffer = segments[(int) (offset >>> 32)];
+        int record = (int) offset;
+        int variableCount = buffer.getInt(record + VARIABLE_COUNT_OFFSET);
+        int pos = record + CODE_OFFSET + buffer.getInt(record + CODE_LENGTH_OFFSET) * 4;
+        List<String> names = new ArrayList<>(variableCount);
+        for (int i = 0; i < variableCount; i++) {
+            int length = buffer.getInt(pos);
+            names.add(readString(buffer, pos + 4, length));
+            pos += 4 + align(length);
+        }
+        return names;
+    }
+
+    /**
+     * @return the number of bytes holding the store's header and records,
+     * not counting space allocated for future records
+     */
+    public long getByteSize() {
+        long size = position;
+        for (int i = 0; i < segmentCount - 1; i++)
+            size += segments[i].capacity();
+        return size;
+    }
+
+    /**
+     * Writes a file backed store's changes to the file and releases the
+     * store's buffers. Does nothing if the store is already closed.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (segments == null)
+            return;
+        if (channel != null) {
+            for (int i = 0; i < segmentCount; i++)
+                ((MappedByteBuffer) segments[i]).force();
+            channel.close();
+        }
+        segments = null;
+        segmentCount = 0;
+    }
+
+    private void checkOpen() {
+        if (segments == null)
+            throw new IllegalStateException("Expression store is closed.");
+    }
+
+    private long offsetOf(int index) {
+        checkOpen();
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("No expression " + index + " in a store of " + count + ".");
+        return offsets[index];
+    }
+
+    private void addOffset(int segment, int pos) {
+        if (count == offsets.length)
+            offsets = Arrays.copyOf(offsets, count * 2);
+        offsets[count++] = (long) segment << 32 | pos;
+    }
+
+    private void writeOperator(Operator op) {
+        byte[] symbol = op.getSymbol().getBytes(StandardCharsets.UTF_8);
+        int length = 20 + align(symbol.length);
+        ByteBuffer buffer = reserve(length);
+        buffer.putInt(position, length);
+        buffer.putInt(position + 4, OPERATOR);
+        buffer.putInt(position + 8, ExpressionCodec.getKind(op));
+        buffer.putInt(position + 12, op.getArity());
+        buffer.putInt(position + 16, symbol.length);
+        putBytes(buffer, position + 20, symbol);
+        position += length;
+        addOperator(op);
+    }
+
+    private void addOperator(Operator op) {
+        operatorIndices.put(op, operators.length);
+        operators = Arrays.copyOf(operators, operators.length + 1);
+        operators[operators.length - 1] = op;
+    }
+
+    /**
+     * Makes room for a record of the given length at the end of the store
+     *
+     * @return the buffer to write the record in, at position
+     */
+    private ByteBuffer reserve(int length) {
+        if (length > segmentSize)
+            throw new IllegalArgumentException("Expression of " + length
+                    + " bytes is larger than the store's segments.");
+        ByteBuffer last = segments[segmentCount - 1];
+        if (position + length <= last.capacity())
+            return last;
+
+        if (channel == null && position + length <= segmentSize) {
+            // In memory segments start small and grow up to the segment size
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.min(segmentSize,
+                    Math.max(last.capacity() * 2, position + length))).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < position; i += 4)
+                grown.putInt(i, last.getInt(i));
+            segments[segmentCount - 1] = grown;
+            return grown;
+        }
+
+        if (position + 8 <= last.capacity()) {
+            last.putInt(position, last.capacity() - position);
+            last.putInt(position + 4, PADDING);
+        }
+        if (channel == null) {
+            addSegment(Math.min(segmentSize, Math.max(4096, length)));
+        } else {
+            try {
+                mapSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        position = 0;
+        return segments[segmentCount - 1];
+    }
+
+    private void addSegment(int capacity) {
+        if (segmentCount == segments.length)
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        segments[segmentCount++] = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void mapSegment() throws IOException {
+        if (segmentCount == segments.length)
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        // Mapping past the end of the file extends it
+        segments[segmentCount] = channel.map(FileChannel.MapMode.READ_WRITE,
+                (long) segmentCount * segmentSize, segmentSize).order(ByteOrder.LITTLE_ENDIAN);
+        segmentCount++;
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = segments[0];
+        header.putInt(0, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(SEGMENT_SIZE_OFFSET, segmentSize);
+        header.putInt(COUNT_OFFSET, count);
+        header.putInt(END_SEGMENT_OFFSET, segmentCount - 1);
+        header.putInt(END_POSITION_OFFSET, position);
+    }
+
+    private static boolean hasOperand(int opcode) {
+        // PUSH, LOAD, the LITERAL and VARIABLE forms and the calls
+        return opcode == Program.PUSH || opcode == Program.LOAD || opcode > Program.NEG;
+    }
+
+    /**
+     * @return how much an instruction changes the depth of the stack, or
+     * Integer.MIN_VALUE for an unknown opcode
+     */
+    private static int stackEffect(int opcode) {
+        switch (opcode) {
+            case Program.PUSH:
+            case Program.LOAD:
+                return 1;
+            case Program.ADD:
+            case Program.SUB:
+            case Program.MUL:
+            case Program.DIV:
+            case Program.POW:
+            case Program.CALL_BINARY:
+                return -1;
+            case Program.NEG:
+            case Program.CALL_UNARY:
+            case Program.ADD_LITERAL:
+            case Program.SUB_LITERAL:
+            case Program.MUL_LITERAL:
+            case Program.DIV_LITERAL:
+            case Program.POW_LITERAL:
+            case Program.ADD_VARIABLE:
+            case Program.SUB_VARIABLE:
+            case Program.MUL_VARIABLE:
+            case Program.DIV_VARIABLE:
+            case Program.POW_VARIABLE:
+                return 0;
+            default:
+                return Integer.MIN_VALUE;
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void putBytes(ByteBuffer buffer, int pos, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            buffer.put(pos + i, bytes[i]);
+    }
+
+    private static String readString(ByteBuffer buffer, int pos, int length) {
+        byte[] utf8 = new byte[length];
+        for (int i = 0; i < length; i++)
+            utf8[i] = buffer.get(pos + i);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
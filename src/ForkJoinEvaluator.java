@@ -0,0 +1,132 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates a single very large expression tree in parallel using
+ * fork/join. Wherever both operands of an operator are subtrees of at
+ * least the split size, the smaller one is evaluated by a forked task while
+ * the current task carries on down the larger one. Subtrees smaller than
+ * the split size are evaluated sequentially, so a task always does enough
+ * work to pay for itself.
+ * <p>
+ * Only balanced subtrees are split. Operators with a single large operand,
+ * like the chain in ((big + 1) * 2) - x, are followed down to the large
+ * operand without recursion, so the split points below them are still
+ * found.
+ * <p>
+ * The decision to split has to be cheap, so it reads the sizes of the
+ * subtrees from their OperatorTokens, which compute them when they are
+ * created. Trees are immutable, so any number of evaluations may share one.
+ * <p>
+ * Evaluation gives the same result as Token.evalToken. If evaluating more
+ * than one operand would throw, which of the exceptions is thrown may
+ * differ.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ForkJoinEvaluator {
+
+    // The default smallest subtree worth a task of its own. Evaluating this
+    // many nodes takes tens of microseconds, far more than forking a task.
+    public static final int DEFAULT_SPLIT_SIZE = 10_000;
+
+    // Subtrees at most this high are evaluated recursively, higher ones by TreeEvaluator
+    private static final int MAX_RECURSION_DEPTH = 1000;
+
+    /**
+     * Evaluates a tree in the given pool
+     *
+     * @param root      the root of the tree
+     * @param bindings  the values of the variables, indexed by slot
+     * @param pool      the pool to run the evaluation in
+     * @param splitSize the smallest subtree which is evaluated by a task of its own
+     * @return the result of the evaluation
+     */
+    public static int evaluate(Token root, int[] bindings, ForkJoinPool pool, int splitSize) {
+        if (splitSize < 1)
+            throw new IllegalArgumentException("Invalid split size: " + splitSize + ".");
+        if (OperatorToken.sizeOf(root) / 2 < splitSize)
+            return evaluateSequential(root, bindings);
+        return pool.invoke(new EvaluateTask(root, bindings, splitSize));
+    }
+
+    private static int evaluateSequential(Token tok, int[] bindings) {
+        if (!(tok instanceof OperatorToken))
+            return tok.evalToken(bindings);
+        int height = ((OperatorToken) tok).getHeight();
+        if (height > MAX_RECURSION_DEPTH)
+            return TreeEvaluator.evaluate(tok, bindings, height);
+        return tok.evalToken(bindings);
+    }
+
+    /**
+     * Evaluates a subtree by following its larger operands down, forking a
+     * task for every smaller operand of at least the split size.
+     */
+    private static class EvaluateTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Token root;
+        private final int[] bindings;
+        private final int splitSize;
+
+        EvaluateTask(Token root, int[] bindings, int splitSize) {
+            this.root = root;
+            this.bindings = bindings;
+            this.splitSize = splitSize;
+        }
+
+        @Override
+        protected Integer compute() {
+            // The operators on the way down the larger operands to a subtree
+            // small enough to evaluate, and the value or task of the smaller
+            // operand of each
+            OperatorToken[] path = new OperatorToken[16];
+            int[] otherValues = new int[16];
+            EvaluateTask[] otherTasks = new EvaluateTask[16];
+            boolean[] largeIsLeft = new boolean[16];
+            int length = 0;
+
+            Token tok = root;
+            while (OperatorToken.sizeOf(tok) / 2 >= splitSize) {
+                OperatorToken op = (OperatorToken) tok;
+                Token lhs = op.getLeftOperand();
+                Token rhs = op.getRightOperand();
+
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, length * 2);
+                    otherValues = Arrays.copyOf(otherValues, length * 2);
+                    otherTasks = Arrays.copyOf(otherTasks, length * 2);
+                    largeIsLeft = Arrays.copyOf(largeIsLeft, length * 2);
+                }
+                path[length] = op;
+                largeIsLeft[length] = rhs == null || OperatorToken.sizeOf(lhs) >= OperatorToken.sizeOf(rhs);
+                Token small = largeIsLeft[length] ? rhs : lhs;
+                // A task only forks subtrees at most half its size, so tasks
+                // waiting on each other nest at most log2(size) deep
+                if (small != null && OperatorToken.sizeOf(small) >= splitSize)
+                    otherTasks[length] = (EvaluateTask) new EvaluateTask(small, bindings, splitSize).fork();
+                else if (small != null)
+                    otherValues[length] = evaluateSequential(small, bindings);
+                tok = largeIsLeft[length] ? lhs : rhs;
+                length++;
+            }
+            int value = evaluateSequential(tok, bindings);
+
+            // Apply the operators on the path back up
+            while (length > 0) {
+                length--;
+                OperatorToken op = path[length];
+                if (op.getOperator().getArity() == 1) {
+                    value = op.apply(value);
+                    continue;
+                }
+                int other = otherTasks[length] != null ? otherTasks[length].join() : otherValues[length];
+                value = largeIsLeft[length] ? op.apply(value, other) : op.apply(other, value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates many expressions over a shared set of named inputs, and after
+ * inputs change, re-evaluates only what depends on them. This is how a
+ * spreadsheet recalculates: with thousands of formulas and a few inputs
+ * changing between reads, almost every node keeps its last value.
+ * <p>
+ * The formulas are stored together the same way as a NodePool, as nodes in
+ * parallel primitive arrays, with identical subtrees shared between all
+ * formulas. Every node caches its last value and is marked dirty when an
+ * input below it changes:
+ * <p>
+ * IncrementalEvaluator sheet = new IncrementalEvaluator();
+ * int total = sheet.add(new Expression("price * quantity + shipping"));
+ * sheet.set("price", 12);
+ * sheet.get(total);   // evaluates every node
+ * sheet.set("shipping", 5);
+ * sheet.get(total);   // only evaluates the outer +, price * quantity is cached
+ * <p>
+ * Setting an input marks the nodes which use it, and the nodes above them,
+ * dirty. Reading a formula evaluates only its dirty nodes. An input which
+ * is set to the value it already has invalidates nothing.
+ * <p>
+ * Inputs which have never been set are 0. Operators have the same
+ * semantics as in {@link Expression#evaluate(int[])}. An IncrementalEvaluator
+ * must not be used by multiple threads at once.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class IncrementalEvaluator {
+
+    private static final int NO_NODE = -1;
+
+    // The nodes of every formula, stored as in NodePool. For LOAD nodes
+    // values[i] is the input's index.
+    private byte[] opcodes = new byte[16];
+    private int[] left = new int[16];
+    private int[] right = new int[16];
+    private int[] values = new int[16];
+    private int size;
+    private Operator[] operators = new Operator[0];
+
+    // The cached value of each node, only meaningful while it isn't dirty.
+    // A dirty node's parents are always dirty too.
+    private int[] results = new int[16];
+    private boolean[] dirty = new boolean[16];
+
+    // The nodes which use each node as an operand, as linked lists:
+    // firstParent[node] is an edge, parentOf[edge] the parent and
+    // nextParent[edge] the next edge, or NO_NODE at the end of the list
+    private int[] firstParent = new int[16];
+    private int[] parentOf = new int[16];
+    private int[] nextParent = new int[16];
+    private int edgeCount;
+
+    // Open addressing hash table of node index + 1, 0 marks an empty bucket
+    private int[] internTable = new int[32];
+
+    private final Map<String, Integer> inputs = new HashMap<>();
+    private final List<String> inputNames = new ArrayList<>();
+    private int[] inputValues = new int[8];
+    // The LOAD node of each input, or NO_NODE if no formula uses it yet
+    private int[] inputNodes = new int[8];
+
+    private int[] formulas = new int[8];
+    private int formulaCount;
+
+    // Reused by get, holds the nodes waiting for their operands
+    private int[] stack = new int[16];
+
+    private long evaluatedNodeCount;
+
+    /**
+     * Adds a formula. Its variables become inputs of the same name, shared
+     * with every other formula which uses them.
+     *
+     * @param expression the formula
+     * @return the index of the formula, to pass to {@link #get(int)}
+     * @throws UnsupportedOperationException if the formula contains a decimal literal
+     */
+    public int add(Expression expression) {
+        List<String> variables = expression.getVariableNames();
+        int[] slotInputs = new int[variables.size()];
+        for (int slot = 0; slot < slotInputs.length; slot++)
+            slotInputs[slot] = getInput(variables.get(slot));
+
+        Builder builder = new Builder(slotInputs);
+        Parser.replay(expression.getTree(), builder);
+        int root = builder.root();
+        if (formulaCount == formulas.length)
+            formulas = Arrays.copyOf(formulas, formulaCount * 2);
+        formulas[formulaCount] = root;
+        return formulaCount++;
+    }
+
+    /**
+     * Gets the index of an input, creating it with the value 0 if no formula
+     * uses it yet. Setting inputs by index avoids looking up their names.
+     *
+     * @param name the name of the input
+     * @return the index of the input
+     */
+    public int getInput(String name) {
+        Integer input = inputs.get(name);
+        if (input != null)
+            return input;
+
+        int index = inputNames.size();
+        if (index == inputValues.length) {
+            inputValues = Arrays.copyOf(inputValues, index * 2);
+            inputNodes = Arrays.copyOf(inputNodes, index * 2);
+        }
+        inputNodes[index] = NO_NODE;
+        inputs.put(name, index);
+        inputNames.add(name);
+        return index;
+    }
+
+    /**
+     * Sets the value of an input by name
+     *
+     * @param name  the name of the input
+     * @param value the new value
+     */
+    public void set(String name, int value) {
+        set(getInput(name), value);
+    }
+
+    /**
+     * Sets the value of an input, invalidating every node which depends on it
+     *
+     * @param input the index of the input
+     * @param value the new value
+     * @throws IndexOutOfBoundsException if there is no such input
+     */
+    public void set(int input, int value) {
+        checkIndex(input, inputNames.size(), "input");
+        if (inputValues[input] == value)
+            return;
+        inputValues[input] = value;
+        if (inputNodes[input] != NO_NODE)
+            invalidate(inputNodes[input]);
+    }
+
+    /**
+     * @param input the index of an input
+     * @return the input's current value
+     */
+    public int getValue(int input) {
+        checkIndex(input, inputNames.size(), "input");
+        return inputValues[input];
+    }
+
+    /**
+     * Gets the value of a formula, evaluating only the nodes whose inputs
+     * have changed since they were last evaluated.
+     *
+     * @param formula the index of the formula
+     * @return the value of the formula
+     * @throws IndexOutOfBoundsException if there is no such formula
+     * @throws ArithmeticException       if the formula divides by zero
+     */
+    public int get(int formula) {
+        checkIndex(formula, formulaCount, "formula");
+        int root = formulas[formula];
+        if (dirty[root])
+            recompute(root);
+        return results[root];
+    }
+
+    /**
+     * @param formula the index of a formula
+     * @return whether the formula's value has to be evaluated again before
+     * it is read, because one of its inputs changed
+     */
+    public boolean isStale(int formula) {
+        checkIndex(formula, formulaCount, "formula");
+        return dirty[formulas[formula]];
+    }
+
+    /**
+     * @return the number of formulas
+     */
+    public int getFormulaCount() {
+        return formulaCount;
+    }
+
+    /**
+     * @return the names of the inputs, indexed by input
+     */
+    public List<String> getInputNames() {
+        return inputNames;
+    }
+
+    /**
+     * @return the number of distinct nodes in all the formulas
+     */
+    public int getNodeCount() {
+        return size;
+    }
+
+    /**
+     * @return the number of nodes evaluated so far, across every call to get
+     */
+    public long getEvaluatedNodeCount() {
+        return evaluatedNodeCount;
+    }
+
+    /**
+     * Marks a node and every node above it dirty. A node which is already
+     * dirty has dirty parents, so the walk stops there.
+     *
+     * @param node the node whose value changed
+     */
+    private void invalidate(int node) {
+        int top = 0;
+        stack[top++] = node;
+        dirty[node] = true;
+        while (top > 0) {
+            int current = stack[--top];
+            for (int edge = firstParent[current]; edge != NO_NODE; edge = nextParent[edge]) {
+                int parent = parentOf[edge];
+                if (!dirty[parent]) {
+                    dirty[parent] = true;
+                    stack[top++] = parent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates the dirty nodes below and including a node, operands first.
+     * Clean operands are not visited. Uses an explicit stack, so deep
+     * formulas don't overflow the call stack.
+     *
+     * @param root the dirty node to evaluate
+     */
+    private void recompute(int root) {
+        final byte[] opcodes = this.opcodes;
+        final int[] left = this.left;
+        final int[] right = this.right;
+        final int[] results = this.results;
+        final boolean[] dirty = this.dirty;
+        final int[] stack = this.stack;
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[top - 1];
+            int lhs = left[node];
+            int rhs = right[node];
+            if (lhs != NO_NODE && dirty[lhs]) {
+                stack[top++] = lhs;
+                continue;
+            }
+            if (rhs != NO_NODE && dirty[rhs]) {
+                stack[top++] = rhs;
+                continue;
+            }
+
+            top--;
+            switch (opcodes[node]) {
+                case Program.PUSH:
+                    results[node] = values[node];
+                    break;
+                case Program.LOAD:
+                    results[node] = inputValues[values[node]];
+                    break;
+                case Program.ADD:
+                    results[node] = results[lhs] + results[rhs];
+                    break;
+                case Program.SUB:
+                    results[node] = results[lhs] - results[rhs];
+                    break;
+                case Program.MUL:
+                    results[node] = results[lhs] * results[rhs];
+                    break;
+                case Program.DIV:
+                    results[node] = results[lhs] / results[rhs];
+                    break;
+                case Program.POW:
+                    results[node] = Operator.pow(results[lhs], results[rhs]);
+                    break;
+                case Program.NEG:
+                    results[node] = -results[lhs];
+                    break;
+                case Program.CALL_UNARY:
+                    results[node] = operators[values[node]].applyAsInt(results[lhs]);
+                    break;
+                case Program.CALL_BINARY:
+                    results[node] = operators[values[node]].applyAsInt(results[lhs], results[rhs]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + opcodes[node]);
+            }
+            dirty[node] = false;
+            evaluatedNodeCount++;
+        }
+    }
+
+    /**
+     * Adds the nodes of a formula, operands first, as they are replayed in
+     * postfix order. Replaying walks the tree with an explicit stack, so
+     * formulas of any depth can be added.
+     */
+    private class Builder implements Parser.Builder {
+
+        private final int[] slotInputs;
+        private int[] operands = new int[16];
+        private int operandCount;
+
+        /**
+         * @param slotInputs the input of each of the expression's variable slots
+         */
+        Builder(int[] slotInputs) {
+            this.slotInputs = slotInputs;
+        }
+
+        @Override
+        public void literal(long value) {
+            push(addNode(Program.PUSH, NO_NODE, NO_NODE, (int) value));
+        }
+
+        @Override
+        public void decimal(double value) {
+            throw new UnsupportedOperationException("Decimal literal " + value + " can only be evaluated as a double.");
+        }
+
+        @Override
+        public void variable(String name, int slot) {
+            int input = slotInputs[slot];
+            int node = addNode(Program.LOAD, NO_NODE, NO_NODE, input);
+            inputNodes[input] = node;
+            push(node);
+        }
+
+        @Override
+        public void operation(Operator op) {
+            int opcode = Program.getOpcode(op);
+            int value = 0;
+            if (opcode < 0) {
+                opcode = op.getArity() == 1 ? Program.CALL_UNARY : Program.CALL_BINARY;
+                value = indexOf(op);
+            }
+            if (op.getArity() == 1) {
+                operands[operandCount - 1] = addNode(opcode, operands[operandCount - 1], NO_NODE, value);
+            } else {
+                int rhs = operands[--operandCount];
+                operands[operandCount - 1] = addNode(opcode, operands[operandCount - 1], rhs, value);
+            }
+        }
+
+        private void push(int node) {
+            if (operandCount == operands.length)
+                operands = Arrays.copyOf(operands, operandCount * 2);
+            operands[operandCount++] = node;
+        }
+
+        /**
+         * @return the index of the root of a completely added formula
+         */
+        int root() {
+            return operands[0];
+        }
+    }
+
+    /**
+     * @param op an operator without an opcode of its own
+     * @return the index of the operator in the operator table, adding it if needed
+     */
+    private int indexOf(Operator op) {
+        for (int i = 0; i < operators.length; i++) {
+            if (operators[i] == op)
+                return i;
+        }
+        operators = Arrays.copyOf(operators, operators.length + 1);
+        operators[operators.length - 1] = op;
+        return operators.length - 1;
+    }
+
+    /**
+     * Finds the identical node already added by any formula, or adds a new
+     * dirty node and records it as a parent of its operands
+     *
+     * @param opcode the node's opcode
+     * @param lhs    the index of the left operand, or NO_NODE
+     * @param rhs    the index of the right operand, or NO_NODE
+     * @param value  the literal value, input or operator table index
+     * @return the index of the node
+     */
+    private int addNode(int opcode, int lhs, int rhs, int value) {
+        int mask = internTable.length - 1;
+        int bucket = hash(opcode, lhs, rhs, value) & mask;
+        // Linear probing until we find the node or an empty bucket
+        while (internTable[bucket] != 0) {
+            int node = internTable[bucket] - 1;
+            if (opcodes[node] == opcode && left[node] == lhs && right[node] == rhs && values[node] == value)
+                return node;
+            bucket = (bucket + 1) & mask;
+        }
+
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            values = Arrays.copyOf(values, capacity);
+            results = Arrays.copyOf(results, capacity);
+            dirty = Arrays.copyOf(dirty, capacity);
+            firstParent = Arrays.copyOf(firstParent, capacity);
+            stack = Arrays.copyOf(stack, capacity);
+        }
+        int node = size++;
+        opcodes[node] = (byte) opcode;
+        left[node] = lhs;
+        right[node] = rhs;
+        values[node] = value;
+        dirty[node] = true;
+        firstParent[node] = NO_NODE;
+        if (lhs != NO_NODE)
+            addParent(lhs, node);
+        if (rhs != NO_NODE && rhs != lhs)
+            addParent(rhs, node);
+
+        internTable[bucket] = node + 1;
+        // Keep the table at most half full
+        if (size * 2 > internTable.length)
+            rehash();
+        return node;
+    }
+
+    private void addParent(int node, int parent) {
+        if (edgeCount == parentOf.length) {
+            parentOf = Arrays.copyOf(parentOf, edgeCount * 2);
+            nextParent = Arrays.copyOf(nextParent, edgeCount * 2);
+        }
+        parentOf[edgeCount] = parent;
+        nextParent[edgeCount] = firstParent[node];
+        firstParent[node] = edgeCount++;
+    }
+
+    /**
+     * Doubles the size of the intern table
+     */
+    private void rehash() {
+        internTable = new int[internTable.length * 2];
+        int mask = internTable.length - 1;
+        for (int node = 0; node < size; node++) {
+            int bucket = hash(opcodes[node], left[node], right[node], values[node]) & mask;
+            while (internTable[bucket] != 0)
+                bucket = (bucket + 1) & mask;
+            internTable[bucket] = node + 1;
+        }
+    }
+
+    private static int hash(int opcode, int lhs, int rhs, int value) {
+        int h = opcode;
+        h = h * 31 + lhs;
+        h = h * 31 + rhs;
+        h = h * 31 + value;
+        // Spread the high bits, the table index only uses the low bits
+        return h ^ (h >>> 16);
+    }
+
+    private static void checkIndex(int index, int count, String kind) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("No " + kind + " with index " + index + ".");
+    }
+}
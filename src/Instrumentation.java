@@ -0,0 +1,121 @@
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Measures operations on Expressions for {@link Metrics} and for the
+ * Flight Recorder.
+ * <p>
+ * Instrumentation is only active while metrics are enabled or a flight
+ * recording is running. Callers check {@link #isActive()}, a volatile read,
+ * and only then create a Span, so inactive instrumentation allocates
+ * nothing and never reads the clock.
+ *
+ * @author Samuel Laberge, 2020
+ */
+final class Instrumentation {
+
+    // Whether any flight recording is running, kept up to date by a listener
+    private static volatile boolean recording;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording r) {
+                updateRecording();
+            }
+        });
+        // Recordings started before the listener was added, i.e. with -XX:StartFlightRecording
+        updateRecording();
+    }
+
+    private Instrumentation() {
+    }
+
+    /**
+     * @return true iff operations should be measured
+     */
+    static boolean isActive() {
+        return recording || Metrics.isEnabled();
+    }
+
+    /**
+     * Starts measuring an operation
+     *
+     * @param op the operation which is starting
+     * @return a Span to end once the operation finishes
+     */
+    static Span begin(Metrics.Operation op) {
+        return new Span(op);
+    }
+
+    private static void updateRecording() {
+        // Don't initialize the Flight Recorder just to find out it isn't recording
+        if (!FlightRecorder.isInitialized()) {
+            recording = false;
+            return;
+        }
+        boolean running = false;
+        for (Recording r : FlightRecorder.getFlightRecorder().getRecordings())
+            running |= r.getState() == RecordingState.RUNNING;
+        recording = running;
+    }
+
+    /**
+     * One measured operation
+     */
+    static final class Span {
+        private final Metrics.Operation op;
+        private final ExpressionEvent event;
+        private final long start;
+
+        private Span(Metrics.Operation op) {
+            this.op = op;
+            switch (op) {
+                case PARSE:
+                    event = new ParseEvent();
+                    break;
+                case EVALUATE:
+                    event = new EvaluateEvent();
+                    break;
+                default:
+                    event = new SerializeEvent();
+                    break;
+            }
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        /**
+         * Ends a serialization
+         *
+         * @param notation the notation written
+         * @see #end(int, int, String)
+         */
+        void end(TreeWriter.Notation notation, int length, int nodeCount, String failure) {
+            ((SerializeEvent) event).notation = notation.name();
+            end(length, nodeCount, failure);
+        }
+
+        /**
+         * Ends the operation, recording it
+         *
+         * @param length    the length of the infix expression
+         * @param nodeCount the number of tokens in the tree, 0 if it wasn't parsed
+         * @param failure   why the operation failed, or null if it succeeded
+         */
+        void end(int length, int nodeCount, String failure) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (Metrics.isEnabled())
+                Metrics.record(op, nanos, failure != null);
+            if (event.shouldCommit()) {
+                event.length = length;
+                event.nodeCount = nodeCount;
+                event.failure = failure;
+                event.commit();
+            }
+        }
+    }
+}
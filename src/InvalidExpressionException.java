@@ -4,7 +4,35 @@
  * @author Samuel Laberge, 2020
  */
 public class InvalidExpressionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    // Where the error was found, or -1 if it isn't known
+    private final int offset;
+
     public InvalidExpressionException(String reason){
         super("Invalid expression.\nReason: " + reason);
+        offset = -1;
+    }
+
+    /**
+     * Creates the exception recorded for one expression of a batch. Batches
+     * may hold many failures, so no stack trace is captured and creating
+     * one costs no more than its message.
+     *
+     * @param reason why the expression failed
+     * @param offset where the error was found, or -1 if it isn't known
+     */
+    InvalidExpressionException(String reason, int offset) {
+        super("Invalid expression.\nReason: " + reason, null, false, false);
+        this.offset = offset;
+    }
+
+    /**
+     * @return the index in the expression where the error was found, see
+     * {@link ParseResult#getOffset()}, or -1 if it isn't known
+     */
+    public int getOffset() {
+        return offset;
     }
 }
@@ -0,0 +1,169 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process counters and latency histograms for parsing, evaluating and
+ * serializing Expressions. Metrics are disabled by default, and while they
+ * are disabled (and no flight recording is running) recording costs a
+ * single volatile read per operation.
+ * <p>
+ * Latencies are counted in power of two buckets: bucket 0 holds operations
+ * which took 0ns, and bucket i holds those which took at least 2^(i-1)ns
+ * and less than 2^i ns.
+ * <p>
+ * All methods are thread-safe. Counters are LongAdders, so threads
+ * recording at the same time don't contend.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class Metrics {
+
+    /**
+     * The operations which are measured
+     */
+    public enum Operation {
+        PARSE, EVALUATE, SERIALIZE
+    }
+
+    /**
+     * The number of latency buckets, enough for any long number of nanoseconds
+     */
+    public static final int BUCKET_COUNT = 65;
+
+    private static volatile boolean enabled;
+
+    private static final Stats[] stats = new Stats[Operation.values().length];
+
+    static {
+        for (int i = 0; i < stats.length; i++)
+            stats[i] = new Stats();
+    }
+
+    private Metrics() {
+    }
+
+    private static final class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+        Stats() {
+            for (int i = 0; i < BUCKET_COUNT; i++)
+                buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Starts or stops recording metrics. Values recorded so far are kept.
+     *
+     * @param enabled whether operations should be recorded
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * @return true iff operations are being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records one operation
+     *
+     * @param op     the operation
+     * @param nanos  how long it took
+     * @param failed whether it threw
+     */
+    static void record(Operation op, long nanos, boolean failed) {
+        Stats s = stats[op.ordinal()];
+        s.count.increment();
+        if (failed)
+            s.failures.increment();
+        s.nanos.add(nanos);
+        s.buckets[bucket(nanos)].increment();
+    }
+
+    private static int bucket(long nanos) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(nanos, 0));
+    }
+
+    /**
+     * @param op the operation
+     * @return the number of times the operation was recorded
+     */
+    public static long getCount(Operation op) {
+        return stats[op.ordinal()].count.sum();
+    }
+
+    /**
+     * @param op the operation
+     * @return the number of times the operation threw
+     */
+    public static long getFailureCount(Operation op) {
+        return stats[op.ordinal()].failures.sum();
+    }
+
+    /**
+     * @param op the operation
+     * @return the total time spent in the operation, in nanoseconds
+     */
+    public static long getTotalNanos(Operation op) {
+        return stats[op.ordinal()].nanos.sum();
+    }
+
+    /**
+     * @param op the operation
+     * @return a copy of the operation's latency histogram, see {@link Metrics}
+     */
+    public static long[] getLatencyHistogram(Operation op) {
+        LongAdder[] buckets = stats[op.ordinal()].buckets;
+        long[] histogram = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            histogram[i] = buckets[i].sum();
+        return histogram;
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram. The estimate is
+     * the upper bound of the bucket the percentile falls in, so it is at
+     * most twice the real value.
+     *
+     * @param op         the operation
+     * @param percentile between 0 and 100, i.e. 99 for the 99th percentile
+     * @return the estimated latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public static long getLatencyPercentile(Operation op, double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, found " + percentile + ".");
+        long[] histogram = getLatencyHistogram(op);
+        long total = 0;
+        for (long count : histogram)
+            total += count;
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += histogram[i];
+            if (seen >= rank)
+                return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Sets every counter and histogram back to 0
+     */
+    public static void reset() {
+        for (Stats s : stats) {
+            s.count.reset();
+            s.failures.reset();
+            s.nanos.reset();
+            for (LongAdder bucket : s.buckets)
+                bucket.reset();
+        }
+    }
+}
@@ -0,0 +1,741 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact representation of an expression, storing its nodes in parallel
+ * primitive arrays rather than as Token objects. Node i is described by
+ * opcodes[i] (one of the Program opcodes PUSH, LOAD, ADD, SUB, MUL, DIV,
+ * POW, NEG, CALL_UNARY or CALL_BINARY, or PUSH_LONG or PUSH_DECIMAL), the
+ * indices of its operands left[i] and right[i], and for literals and
+ * variables, its literal value or slot in values[i]. For calls, values[i]
+ * is the index of the operator in the pool's operator table. Literals
+ * which don't fit in an int are kept in a table of constants, and
+ * values[i] is their index in it.
+ * <p>
+ * A node takes 13 bytes, against 24 to 40 bytes for a Token object and
+ * the reference to it, so holding many expressions as NodePools takes a
+ * fraction of the memory. The arrays are also contiguous, so evaluating
+ * doesn't chase pointers around the heap. Expressions can be parsed
+ * straight into a NodePool without creating any Tokens, evaluated as int,
+ * long or double, and written in all four notations.
+ * <p>
+ * Nodes are always added after their operands, so evaluating them in index
+ * order evaluates every operand before it is used, without recursion.
+ * <p>
+ * When interning is enabled, structurally identical subtrees are stored
+ * once (hash-consing), turning the tree into a DAG. In
+ * (a + b) * (a + b) + (a + b), a + b is a single node which every use
+ * refers to, and it is evaluated once per evaluation. Both the memory used
+ * and the cost of evaluating grow with the number of distinct
+ * subexpressions rather than the size of the tree.
+ * <p>
+ * A NodePool keeps a scratch array of node values, so a single instance
+ * must not be evaluated by multiple threads at once.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class NodePool {
+
+    private static final int NO_NODE = -1;
+
+    // Literals which don't fit in an int. values[i] is the literal's index
+    // in constants, which holds the long, or the bits of the double.
+    public static final int PUSH_LONG = 40;
+    public static final int PUSH_DECIMAL = 41;
+
+    private byte[] opcodes;
+    private int[] left;
+    private int[] right;
+    private int[] values;
+    private long[] constants = new long[0];
+    private Operator[] operators = new Operator[0];
+    private String[] variables = new String[0];
+    private int size;
+    // The number of constants and operators in use. Both tables grow
+    // geometrically while nodes are added and are trimmed afterwards.
+    private int constantCount;
+    private int operatorCount;
+    private int root;
+    private int variableCount;
+
+    // The operators and functions the pool was parsed with, which are
+    // escaped from variable names when it is written
+    private final OperatorRegistry registry;
+
+    // Open addressing hash table of node index + 1, 0 marks an empty bucket,
+    // and the index of each constant. Null when interning is disabled.
+    private int[] internTable;
+    private HashMap<Long, Integer> constantIndices;
+
+    // The value of each node during evaluation, allocated by the first
+    // evaluation of each type
+    private int[] results;
+    private long[] longResults;
+    private double[] doubleResults;
+
+    /**
+     * Creates an empty pool
+     *
+     * @param registry the operators and functions the pool may use
+     * @param intern   whether identical subtrees should be shared
+     */
+    private NodePool(OperatorRegistry registry, boolean intern) {
+        this.registry = registry;
+        opcodes = new byte[16];
+        left = new int[16];
+        right = new int[16];
+        values = new int[16];
+        if (intern) {
+            internTable = new int[32];
+            constantIndices = new HashMap<>();
+        }
+    }
+
+    /**
+     * Copies an expression tree into a new pool
+     *
+     * @param root   the root of the expression tree
+     * @param intern whether identical subtrees should be shared
+     * @return a pool holding the tree
+     */
+    public static NodePool fromTree(Token root, boolean intern) {
+        return fromTree(root, OperatorRegistry.getDefault(), intern);
+    }
+
+    /**
+     * Copies an expression tree which uses the operators and functions of
+     * the given registry into a new pool
+     *
+     * @param root     the root of the expression tree
+     * @param registry the operators and functions the tree may use
+     * @param intern   whether identical subtrees should be shared
+     * @return a pool holding the tree
+     */
+    public static NodePool fromTree(Token root, OperatorRegistry registry, boolean intern) {
+        NodePool pool = new NodePool(registry, intern);
+        Builder builder = pool.new Builder();
+        Parser.replay(root, builder);
+        pool.root = builder.root();
+        pool.trim();
+        return pool;
+    }
+
+    /**
+     * Parses an infix expression straight into a new pool, without
+     * creating any Tokens
+     *
+     * @param expr   an infix expression
+     * @param intern whether identical subtrees should be shared
+     * @return a pool holding the expression
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public static NodePool parse(CharSequence expr, boolean intern) throws InvalidExpressionException {
+        return parse(expr, OperatorRegistry.getDefault(), intern);
+    }
+
+    /**
+     * Parses an infix expression which may use the operators and functions
+     * of the given registry straight into a new pool
+     *
+     * @param expr     an infix expression
+     * @param registry the operators and functions the expression may use
+     * @param intern   whether identical subtrees should be shared
+     * @return a pool holding the expression
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public static NodePool parse(CharSequence expr, OperatorRegistry registry, boolean intern)
+            throws InvalidExpressionException {
+        NodePool pool = new NodePool(registry, intern);
+        Builder builder = pool.new Builder();
+        Parser parser = Expression.getParser(registry);
+        // The same messages as parsing an Expression
+        if (!parser.tryParse(expr, TreeWriter.Notation.INFIX, builder))
+            throw new InvalidExpressionException(parser.getErrorMessage());
+        pool.root = builder.root();
+        pool.trim();
+        return pool;
+    }
+
+    /**
+     * Parses an infix expression read from a Reader straight into a new
+     * pool. Neither the text nor any Tokens are held in memory, only the
+     * pool and the parser's stacks, so this suits expressions too large to
+     * hold as Strings.
+     *
+     * @param in       the infix expression, which is read to the end but not closed
+     * @param registry the operators and functions the expression may use
+     * @param intern   whether identical subtrees should be shared
+     * @return a pool holding the expression
+     * @throws IOException                if reading fails
+     * @throws InvalidExpressionException if the expression is malformed.
+     */
+    public static NodePool parse(Reader in, OperatorRegistry registry, boolean intern) throws IOException {
+        NodePool pool = new NodePool(registry, intern);
+        Builder builder = pool.new Builder();
+        Parser parser = Expression.getParser(registry);
+        if (!parser.tryParse(in, builder))
+            throw new InvalidExpressionException(parser.getErrorMessage());
+        pool.root = builder.root();
+        pool.trim();
+        return pool;
+    }
+
+    /**
+     * Releases the space only needed while adding nodes
+     */
+    private void trim() {
+        opcodes = Arrays.copyOf(opcodes, size);
+        left = Arrays.copyOf(left, size);
+        right = Arrays.copyOf(right, size);
+        values = Arrays.copyOf(values, size);
+        variables = Arrays.copyOf(variables, variableCount);
+        constants = Arrays.copyOf(constants, constantCount);
+        operators = Arrays.copyOf(operators, operatorCount);
+        internTable = null;
+        constantIndices = null;
+    }
+
+    /**
+     * Adds a node to the pool, or when interning, finds the identical node
+     * already in the pool
+     *
+     * @param opcode the node's opcode
+     * @param lhs    the index of the left operand, or NO_NODE
+     * @param rhs    the index of the right operand, or NO_NODE
+     * @param value  the literal value, variable slot or table index
+     * @return the index of the node
+     */
+    private int addNode(int opcode, int lhs, int rhs, int value) {
+        int bucket = 0;
+        if (internTable != null) {
+            int mask = internTable.length - 1;
+            bucket = hash(opcode, lhs, rhs, value) & mask;
+            // Linear probing until we find the node or an empty bucket
+            while (internTable[bucket] != 0) {
+                int node = internTable[bucket] - 1;
+                if (opcodes[node] == opcode && left[node] == lhs
+                        && right[node] == rhs && values[node] == value)
+                    return node;
+                bucket = (bucket + 1) & mask;
+            }
+        }
+
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        int node = size++;
+        opcodes[node] = (byte) opcode;
+        left[node] = lhs;
+        right[node] = rhs;
+        values[node] = value;
+
+        if (internTable != null) {
+            internTable[bucket] = node + 1;
+            // Keep the table at most half full
+            if (size * 2 > internTable.length)
+                rehash();
+        }
+        return node;
+    }
+
+    /**
+     * @param constant a long, or the bits of a double
+     * @return the index of the constant in the table of constants, adding it
+     * if needed. Constants are only shared when interning.
+     */
+    private int constantIndex(long constant) {
+        if (constantIndices != null) {
+            Integer index = constantIndices.get(constant);
+            if (index != null)
+                return index;
+            constantIndices.put(constant, constantCount);
+        }
+        if (constantCount == constants.length)
+            constants = Arrays.copyOf(constants, Math.max(4, constantCount * 2));
+        constants[constantCount] = constant;
+        return constantCount++;
+    }
+
+    /**
+     * @param op an operator without an opcode of its own
+     * @return the index of the operator in the operator table, adding it if needed
+     */
+    private int operatorIndex(Operator op) {
+        for (int i = 0; i < operatorCount; i++) {
+            if (operators[i] == op)
+                return i;
+        }
+        if (operatorCount == operators.length)
+            operators = Arrays.copyOf(operators, Math.max(4, operatorCount * 2));
+        operators[operatorCount] = op;
+        return operatorCount++;
+    }
+
+    /**
+     * Doubles the size of the intern table
+     */
+    private void rehash() {
+        internTable = new int[internTable.length * 2];
+        int mask = internTable.length - 1;
+        for (int node = 0; node < size; node++) {
+            int bucket = hash(opcodes[node], left[node], right[node], values[node]) & mask;
+            while (internTable[bucket] != 0)
+                bucket = (bucket + 1) & mask;
+            internTable[bucket] = node + 1;
+        }
+    }
+
+    private static int hash(int opcode, int lhs, int rhs, int value) {
+        int h = opcode;
+        h = h * 31 + lhs;
+        h = h * 31 + rhs;
+        h = h * 31 + value;
+        // Mix every bit into the low bits the table index uses. Without this,
+        // the consecutive literals and operations of a long chain hash to
+        // long runs of adjacent buckets, and linear probing becomes quadratic.
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Evaluates the expression, which must not contain variables.
+     *
+     * @return the result of the expression
+     * @throws IllegalArgumentException if the expression contains variables
+     */
+    public int evaluate() {
+        return evaluate(Expression.NO_BINDINGS);
+    }
+
+    /**
+     * Evaluates every node once, in index order, and returns the value of
+     * the root. Operators have the same semantics as their int lambdas.
+     *
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the expression
+     * @throws IllegalArgumentException      if there are fewer bindings than variables
+     * @throws UnsupportedOperationException if the expression contains a decimal literal
+     */
+    public int evaluate(int[] bindings) {
+        Expression.checkBindings(bindings, variableCount);
+        if (results == null)
+            results = new int[size];
+        final byte[] opcodes = this.opcodes;
+        final int[] left = this.left;
+        final int[] right = this.right;
+        final int[] values = this.values;
+        final int[] results = this.results;
+        final Operator[] operators = this.operators;
+        for (int i = 0; i < size; i++) {
+            switch (opcodes[i]) {
+                case Program.PUSH:
+                    results[i] = values[i];
+                    break;
+                case PUSH_LONG:
+                    results[i] = (int) constants[values[i]];
+                    break;
+                case PUSH_DECIMAL:
+                    throw notAnInteger(i);
+                case Program.LOAD:
+                    results[i] = bindings[values[i]];
+                    break;
+                case Program.ADD:
+                    results[i] = results[left[i]] + results[right[i]];
+                    break;
+                case Program.SUB:
+                    results[i] = results[left[i]] - results[right[i]];
+                    break;
+                case Program.MUL:
+                    results[i] = results[left[i]] * results[right[i]];
+                    break;
+                case Program.DIV:
+                    results[i] = results[left[i]] / results[right[i]];
+                    break;
+                case Program.POW:
+                    results[i] = Operator.pow(results[left[i]], results[right[i]]);
+                    break;
+                case Program.NEG:
+                    results[i] = -results[left[i]];
+                    break;
+                case Program.CALL_UNARY:
+                    results[i] = operators[values[i]].applyAsInt(results[left[i]]);
+                    break;
+                case Program.CALL_BINARY:
+                    results[i] = operators[values[i]].applyAsInt(results[left[i]], results[right[i]]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + opcodes[i]);
+            }
+        }
+        return results[root];
+    }
+
+    /**
+     * Evaluates the expression with 64-bit integer arithmetic. Operators
+     * have the same semantics as their long lambdas.
+     *
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the expression
+     * @throws IllegalArgumentException      if there are fewer bindings than variables
+     * @throws UnsupportedOperationException if the expression contains a decimal literal
+     */
+    public long evaluateLong(long[] bindings) {
+        Expression.checkBindings(bindings.length, variableCount);
+        if (longResults == null)
+            longResults = new long[size];
+        final byte[] opcodes = this.opcodes;
+        final int[] left = this.left;
+        final int[] right = this.right;
+        final int[] values = this.values;
+        final long[] results = this.longResults;
+        final Operator[] operators = this.operators;
+        for (int i = 0; i < size; i++) {
+            switch (opcodes[i]) {
+                case Program.PUSH:
+                    results[i] = values[i];
+                    break;
+                case PUSH_LONG:
+                    results[i] = constants[values[i]];
+                    break;
+                case PUSH_DECIMAL:
+                    throw notAnInteger(i);
+                case Program.LOAD:
+                    results[i] = bindings[values[i]];
+                    break;
+                case Program.ADD:
+                    results[i] = results[left[i]] + results[right[i]];
+                    break;
+                case Program.SUB:
+                    results[i] = results[left[i]] - results[right[i]];
+                    break;
+                case Program.MUL:
+                    results[i] = results[left[i]] * results[right[i]];
+                    break;
+                case Program.DIV:
+                    results[i] = results[left[i]] / results[right[i]];
+                    break;
+                case Program.POW:
+                    results[i] = Operator.pow(results[left[i]], results[right[i]]);
+                    break;
+                case Program.NEG:
+                    results[i] = -results[left[i]];
+                    break;
+                case Program.CALL_UNARY:
+                    results[i] = operators[values[i]].applyAsLong(results[left[i]]);
+                    break;
+                case Program.CALL_BINARY:
+                    results[i] = operators[values[i]].applyAsLong(results[left[i]], results[right[i]]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + opcodes[i]);
+            }
+        }
+        return results[root];
+    }
+
+    /**
+     * Evaluates the expression with double arithmetic. Operators have the
+     * same semantics as their double lambdas.
+     *
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    public double evaluateDouble(double[] bindings) {
+        Expression.checkBindings(bindings.length, variableCount);
+        if (doubleResults == null)
+            doubleResults = new double[size];
+        final byte[] opcodes = this.opcodes;
+        final int[] left = this.left;
+        final int[] right = this.right;
+        final int[] values = this.values;
+        final double[] results = this.doubleResults;
+        final Operator[] operators = this.operators;
+        for (int i = 0; i < size; i++) {
+            switch (opcodes[i]) {
+                case Program.PUSH:
+                    results[i] = values[i];
+                    break;
+                case PUSH_LONG:
+                    results[i] = constants[values[i]];
+                    break;
+                case PUSH_DECIMAL:
+                    results[i] = Double.longBitsToDouble(constants[values[i]]);
+                    break;
+                case Program.LOAD:
+                    results[i] = bindings[values[i]];
+                    break;
+                case Program.ADD:
+                    results[i] = results[left[i]] + results[right[i]];
+                    break;
+                case Program.SUB:
+                    results[i] = results[left[i]] - results[right[i]];
+                    break;
+                case Program.MUL:
+                    results[i] = results[left[i]] * results[right[i]];
+                    break;
+                case Program.DIV:
+                    results[i] = results[left[i]] / results[right[i]];
+                    break;
+                case Program.POW:
+                    results[i] = Math.pow(results[left[i]], results[right[i]]);
+                    break;
+                case Program.NEG:
+                    results[i] = -results[left[i]];
+                    break;
+                case Program.CALL_UNARY:
+                    results[i] = operators[values[i]].applyAsDouble(results[left[i]]);
+                    break;
+                case Program.CALL_BINARY:
+                    results[i] = operators[values[i]].applyAsDouble(results[left[i]], results[right[i]]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + opcodes[i]);
+            }
+        }
+        return results[root];
+    }
+
+    private UnsupportedOperationException notAnInteger(int node) {
+        return new UnsupportedOperationException("Decimal literal " + Double.longBitsToDouble(constants[values[node]])
+                + " can only be evaluated as a double.");
+    }
+
+    /**
+     * @return the number of nodes in the pool
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct variables in the expression
+     */
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * @return the names of the variables, indexed by slot
+     */
+    public List<String> getVariableNames() {
+        return Arrays.asList(variables.clone());
+    }
+
+    // String representations, the same as those of the Expression the pool
+    // was built from. Shared nodes are written out at every use.
+
+    public String toPrefix() {
+        return toString(TreeWriter.Notation.PREFIX);
+    }
+
+    public String toLisp() {
+        return toString(TreeWriter.Notation.LISP);
+    }
+
+    public String toPostfix() {
+        return toString(TreeWriter.Notation.POSTFIX);
+    }
+
+    public String toInfix() {
+        return toString(TreeWriter.Notation.INFIX);
+    }
+
+    /**
+     * @param notation the notation to write the expression in
+     * @return the expression as a String
+     */
+    public String toString(TreeWriter.Notation notation) {
+        StringBuilder out = new StringBuilder();
+        try {
+            write(notation, out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the expression to an Appendable. Like TreeWriter, the nodes are
+     * walked with an explicit stack, so pools of any depth can be written.
+     *
+     * @param notation the notation to write the expression in
+     * @param out      where to write the expression
+     * @throws IOException if out throws
+     */
+    public void write(TreeWriter.Notation notation, Appendable out) throws IOException {
+        // The stack of operations being written and, for each, the next operand to write
+        int[] operations = new int[16];
+        int[] nextOperands = new int[16];
+        int top = 0;
+        char[] digits = new char[TreeWriter.MAX_LONG_LENGTH];
+
+        int node = root;
+        while (true) {
+            // Go down until we reach a leaf
+            for (Operator op = getOperator(node); op != null; op = getOperator(node)) {
+                TreeWriter.writeOpen(op, notation, out);
+                if (top == operations.length) {
+                    operations = Arrays.copyOf(operations, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                }
+                operations[top] = node;
+                nextOperands[top] = right[node];
+                top++;
+                node = left[node];
+            }
+            // As in TreeWriter, a negative literal operand is parenthesized in infix
+            boolean parenthesize = notation == TreeWriter.Notation.INFIX && top > 0 && isNegative(node);
+            if (parenthesize)
+                out.append("( ");
+            writeLeaf(node, notation, out, digits);
+            if (parenthesize)
+                out.append(" )");
+
+            // Go back up until we find an operation with operands left to write
+            while (top > 0 && nextOperands[top - 1] == NO_NODE) {
+                top--;
+                TreeWriter.writeClose(getOperator(operations[top]), notation, out);
+            }
+            if (top == 0)
+                return;
+
+            TreeWriter.writeMiddle(getOperator(operations[top - 1]), notation, out);
+            node = nextOperands[top - 1];
+            nextOperands[top - 1] = NO_NODE;
+        }
+    }
+
+    private boolean isNegative(int node) {
+        switch (opcodes[node]) {
+            case Program.PUSH:
+                return values[node] < 0;
+            case PUSH_LONG:
+                return constants[values[node]] < 0;
+            case PUSH_DECIMAL:
+                return Double.longBitsToDouble(constants[values[node]]) < 0;
+            default:
+                return false;
+        }
+    }
+
+    private void writeLeaf(int node, TreeWriter.Notation notation, Appendable out, char[] digits) throws IOException {
+        switch (opcodes[node]) {
+            case Program.PUSH:
+                TreeWriter.writeLong(values[node], out, digits);
+                break;
+            case PUSH_LONG:
+                TreeWriter.writeLong(constants[values[node]], out, digits);
+                break;
+            case PUSH_DECIMAL:
+                TreeWriter.writeDecimal(Double.longBitsToDouble(constants[values[node]]), out);
+                break;
+            case Program.LOAD:
+                TreeWriter.writeVariable(variables[values[node]], notation, registry, out);
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcodes[node]);
+        }
+    }
+
+    /**
+     * @param node the index of a node
+     * @return the operator the node applies, or null if it is a leaf
+     */
+    private Operator getOperator(int node) {
+        switch (opcodes[node]) {
+            case Program.ADD:
+                return OperatorRegistry.getDefault().getOperator(Operator.ADD);
+            case Program.SUB:
+                return OperatorRegistry.getDefault().getOperator(Operator.SUBTRACT);
+            case Program.MUL:
+                return OperatorRegistry.getDefault().getOperator(Operator.MULTIPLY);
+            case Program.DIV:
+                return OperatorRegistry.getDefault().getOperator(Operator.DIVIDE);
+            case Program.POW:
+                return OperatorRegistry.getDefault().getOperator(Operator.POWER);
+            case Program.NEG:
+                return OperatorRegistry.getDefault().getOperator(Operator.NEGATE);
+            case Program.CALL_UNARY:
+            case Program.CALL_BINARY:
+                return operators[values[node]];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Adds the nodes handed to it by the parser, keeping a stack of the
+     * indices of the operands which haven't been used yet
+     */
+    private class Builder implements Parser.Builder {
+
+        private int[] operands = new int[16];
+        private int operandCount;
+
+        @Override
+        public void literal(long value) {
+            if ((int) value == value)
+                push(addNode(Program.PUSH, NO_NODE, NO_NODE, (int) value));
+            else
+                push(addNode(PUSH_LONG, NO_NODE, NO_NODE, constantIndex(value)));
+        }
+
+        @Override
+        public void decimal(double value) {
+            push(addNode(PUSH_DECIMAL, NO_NODE, NO_NODE, constantIndex(Double.doubleToRawLongBits(value))));
+        }
+
+        @Override
+        public void variable(String name, int slot) {
+            if (slot >= variableCount) {
+                variableCount = slot + 1;
+                if (variableCount > variables.length)
+                    variables = Arrays.copyOf(variables, Math.max(variableCount, variables.length * 2));
+            }
+            variables[slot] = name;
+            push(addNode(Program.LOAD, NO_NODE, NO_NODE, slot));
+        }
+
+        @Override
+        public void operation(Operator op) {
+            int opcode = Program.getOpcode(op);
+            int value = 0;
+            if (opcode < 0) {
+                opcode = op.getArity() == 1 ? Program.CALL_UNARY : Program.CALL_BINARY;
+                value = operatorIndex(op);
+            }
+            if (op.getArity() == 1) {
+                operands[operandCount - 1] = addNode(opcode, operands[operandCount - 1], NO_NODE, value);
+            } else {
+                int rhs = operands[--operandCount];
+                operands[operandCount - 1] = addNode(opcode, operands[operandCount - 1], rhs, value);
+            }
+        }
+
+        private void push(int node) {
+            if (operandCount == operands.length)
+                operands = Arrays.copyOf(operands, operandCount * 2);
+            operands[operandCount++] = node;
+        }
+
+        /**
+         * @return the index of the root of a completely built tree
+         */
+        int root() {
+            return operands[0];
+        }
+    }
+}
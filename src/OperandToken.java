@@ -1,51 +1,63 @@
 /**
- * An token which stores an operand, a literal number
- * in this case. Essentially a wrapper for an int.
+ * An token which stores an operand, a literal integer
+ * in this case. The literal is stored as a long, and as the int
+ * and double it converts to, so that evaluating it as any type
+ * is just a field read.
  *
  * @author Samuel Laberge, 2020
  */
 public class OperandToken extends Token {
 
-    private int operand;
+    private final int operand;
+    private final long longOperand;
+    private final double doubleOperand;
 
     public OperandToken(int value) {
-        operand = value;
+        this((long) value);
+    }
+
+    public OperandToken(long value) {
+        operand = (int) value;
+        longOperand = value;
+        doubleOperand = value;
     }
 
     /**
-     * The evaluation of this token is simply its value.
-     *
-     * @return the value of this token
+     * @return the literal value stored in this token, truncated to an int
      */
-    @Override
-    public int evalToken() {
+    public int getValue() {
         return operand;
     }
 
-    // When included in String representations, operands simply
-    // appear as their integer value
-
-    @Override
-    public String postfixString() {
-        return operand + "";
+    /**
+     * @return the literal value stored in this token
+     */
+    public long getLongValue() {
+        return longOperand;
     }
 
+    /**
+     * The evaluation of this token is simply its value.
+     *
+     * @param bindings unused, operands do not depend on variables
+     * @return the value of this token
+     */
     @Override
-    public String prefixString() {
-        return operand + "";
+    public int evalToken(int[] bindings) {
+        return operand;
     }
 
     @Override
-    public String infixString() {
-        return operand + "";
+    public long evalLong(long[] bindings) {
+        return longOperand;
     }
 
     @Override
-    public String lispString() {
-        return operand + "";
+    public double evalDouble(double[] bindings) {
+        return doubleOperand;
     }
 
     public String toString() {
-        return operand + "";
+        return longOperand + "";
     }
 }
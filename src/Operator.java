@@ -0,0 +1,257 @@
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * An operator or function which can appear in an expression: a binary
+ * operator such as +, a prefix unary operator such as the - in -x, or a
+ * named function such as max(x, y). Operators are created by an
+ * {@link OperatorRegistry}, which gives each one a dense integer id, so
+ * that evaluators can dispatch on the id with a switch or an array.
+ * <p>
+ * Each operator has a lambda for each type an expression can be
+ * evaluated as: int, long and double.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public final class Operator {
+
+    // The ids of the standard operators, which are the same in every registry
+    public static final int ADD = 0;
+    public static final int SUBTRACT = 1;
+    public static final int MULTIPLY = 2;
+    public static final int DIVIDE = 3;
+    public static final int POWER = 4;
+    public static final int NEGATE = 5;
+    public static final int MIN = 6;
+    public static final int MAX = 7;
+    public static final int ABS = 8;
+    public static final int MOD = 9;
+
+    private final int id;
+    private final String symbol;
+    private final String name;
+    private final int arity;
+    private final int precedence;
+    private final boolean rightAssociative;
+    private final boolean function;
+
+    // Only the lambdas for the operator's arity are set
+    private final IntBinaryOperator intOp;
+    private final LongBinaryOperator longOp;
+    private final DoubleBinaryOperator doubleOp;
+    private final IntUnaryOperator intUnaryOp;
+    private final LongUnaryOperator longUnaryOp;
+    private final DoubleUnaryOperator doubleUnaryOp;
+
+    /**
+     * Creates a binary operator or function
+     */
+    Operator(int id, String symbol, String name, int precedence, boolean rightAssociative, boolean function,
+             IntBinaryOperator intOp, LongBinaryOperator longOp, DoubleBinaryOperator doubleOp) {
+        this.id = id;
+        this.symbol = symbol;
+        this.name = name;
+        this.arity = 2;
+        this.precedence = precedence;
+        this.rightAssociative = rightAssociative;
+        this.function = function;
+        this.intOp = intOp;
+        this.longOp = longOp;
+        this.doubleOp = doubleOp;
+        this.intUnaryOp = null;
+        this.longUnaryOp = null;
+        this.doubleUnaryOp = null;
+    }
+
+    /**
+     * Creates a unary operator or function
+     */
+    Operator(int id, String symbol, String name, int precedence, boolean function,
+             IntUnaryOperator intOp, LongUnaryOperator longOp, DoubleUnaryOperator doubleOp) {
+        this.id = id;
+        this.symbol = symbol;
+        this.name = name;
+        this.arity = 1;
+        this.precedence = precedence;
+        this.rightAssociative = true;
+        this.function = function;
+        this.intOp = null;
+        this.longOp = null;
+        this.doubleOp = null;
+        this.intUnaryOp = intOp;
+        this.longUnaryOp = longOp;
+        this.doubleUnaryOp = doubleOp;
+    }
+
+    /**
+     * @return the id of this operator in its registry, from 0 to the size of the registry
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return how this operator is written in an infix expression, i.e. - or max
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * @return how this operator is written in prefix and postfix notation,
+     * where unary and binary operators can't share a symbol, i.e. neg for unary -
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of operands, 1 or 2
+     */
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * @return the precedence of this operator, higher binds tighter.
+     * Functions are applied to their parenthesized arguments, so their
+     * precedence is never used.
+     */
+    public int getPrecedence() {
+        return precedence;
+    }
+
+    /**
+     * @return true iff this operator is right associative, i.e. 2 ^ 2 ^ 3 -> 2 ^ ( 2 ^ 3 )
+     */
+    public boolean isRightAssociative() {
+        return rightAssociative;
+    }
+
+    /**
+     * @return true iff this is a named function, called as name(arguments)
+     */
+    public boolean isFunction() {
+        return function;
+    }
+
+    public int applyAsInt(int operand) {
+        return intUnaryOp.applyAsInt(operand);
+    }
+
+    public int applyAsInt(int lhs, int rhs) {
+        return intOp.applyAsInt(lhs, rhs);
+    }
+
+    public long applyAsLong(long operand) {
+        return longUnaryOp.applyAsLong(operand);
+    }
+
+    public long applyAsLong(long lhs, long rhs) {
+        return longOp.applyAsLong(lhs, rhs);
+    }
+
+    public double applyAsDouble(double operand) {
+        return doubleUnaryOp.applyAsDouble(operand);
+    }
+
+    public double applyAsDouble(double lhs, double rhs) {
+        return doubleOp.applyAsDouble(lhs, rhs);
+    }
+
+    /**
+     * Integer exponentiation by squaring. Gives exactly the same result as
+     * (int) Math.pow(base, exponent), including saturating at
+     * Integer.MAX_VALUE or MIN_VALUE when the result doesn't fit in an int,
+     * but without converting to double.
+     *
+     * @param base     the base
+     * @param exponent the exponent
+     * @return base to the power of exponent
+     */
+    public static int pow(int base, int exponent) {
+        if (exponent < 0) {
+            // 1 / base ^ -exponent, truncated
+            if (base == 1)
+                return 1;
+            if (base == -1)
+                return (exponent & 1) == 0 ? 1 : -1;
+            return base == 0 ? Integer.MAX_VALUE : 0;
+        }
+
+        long result = 1;
+        long square = base;
+        int e = exponent;
+        while (true) {
+            if ((e & 1) != 0) {
+                result *= square;
+                if (result > Integer.MAX_VALUE || result < Integer.MIN_VALUE)
+                    return saturate(base, exponent);
+            }
+            e >>>= 1;
+            if (e == 0)
+                return (int) result;
+            square *= square;
+            // There is at least one more multiplication, which will overflow
+            if (square > Integer.MAX_VALUE)
+                return saturate(base, exponent);
+        }
+    }
+
+    private static int saturate(int base, int exponent) {
+        return base < 0 && (exponent & 1) != 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Long exponentiation by squaring. Like {@link #pow(int, int)} the result
+     * saturates at Long.MAX_VALUE or MIN_VALUE when it doesn't fit in a long,
+     * as (long) Math.pow(base, exponent) does, but every result which fits
+     * is exact, where Math.pow rounds results above 2^53.
+     *
+     * @param base     the base
+     * @param exponent the exponent
+     * @return base to the power of exponent
+     */
+    public static long pow(long base, long exponent) {
+        if (exponent < 0) {
+            // 1 / base ^ -exponent, truncated
+            if (base == 1)
+                return 1;
+            if (base == -1)
+                return (exponent & 1) == 0 ? 1 : -1;
+            return base == 0 ? Long.MAX_VALUE : 0;
+        }
+
+        long result = 1;
+        long square = base;
+        long e = exponent;
+        while (true) {
+            if ((e & 1) != 0) {
+                long product = result * square;
+                // The high half of the product is only the sign when it fits
+                if (Math.multiplyHigh(result, square) != product >> 63)
+                    return saturate(base, exponent);
+                result = product;
+            }
+            e >>>= 1;
+            if (e == 0)
+                return result;
+            // There is at least one more multiplication, which will overflow
+            if (Math.multiplyHigh(square, square) != 0 || square * square < 0)
+                return saturate(base, exponent);
+            square *= square;
+        }
+    }
+
+    private static long saturate(long base, long exponent) {
+        return base < 0 && (exponent & 1) != 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+    }
+
+    public String toString() {
+        return symbol;
+    }
+}
@@ -0,0 +1,289 @@
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * The operators and functions an expression can use. Every registry starts
+ * with the standard ones:
+ * <p>
+ * binary + - * / ^, unary -, and the functions min(x, y), max(x, y), abs(x) and mod(x, y)
+ * <p>
+ * and more can be registered. Each operator gets the next dense integer id.
+ * Operator characters are looked up in arrays indexed by the character, and
+ * function names without creating a String, so parsing never hashes.
+ * <p>
+ * Registered operators must be pure functions of their operands, since
+ * expressions may be folded or share subexpressions when optimized. A
+ * registry may be used by many threads once all its operators are registered.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class OperatorRegistry {
+
+    // Operator characters must be ASCII
+    private static final int TABLE_SIZE = 128;
+
+    // The precedence of the standard operators
+    public static final int ADDITIVE = 1;
+    public static final int MULTIPLICATIVE = 2;
+    public static final int EXPONENTIAL = 3;
+
+    private static final OperatorRegistry DEFAULT = new OperatorRegistry(true);
+
+    private Operator[] operators = new Operator[16];
+    private int size;
+
+    // Operator ids by character, null if the character isn't an operator
+    private final Operator[] binaryOperators = new Operator[TABLE_SIZE];
+    private final Operator[] unaryOperators = new Operator[TABLE_SIZE];
+
+    private final boolean frozen;
+
+    /**
+     * Creates a registry holding the standard operators and functions
+     */
+    public OperatorRegistry() {
+        this(false);
+    }
+
+    private OperatorRegistry(boolean frozen) {
+        registerBinary('+', ADDITIVE, false, (x, y) -> x + y, (x, y) -> x + y, (x, y) -> x + y);
+        registerBinary('-', ADDITIVE, false, (x, y) -> x - y, (x, y) -> x - y, (x, y) -> x - y);
+        registerBinary('*', MULTIPLICATIVE, false, (x, y) -> x * y, (x, y) -> x * y, (x, y) -> x * y);
+        registerBinary('/', MULTIPLICATIVE, false, (x, y) -> x / y, (x, y) -> x / y, (x, y) -> x / y);
+        registerBinary('^', EXPONENTIAL, true, Operator::pow, Operator::pow, Math::pow);
+        // -2 ^ 2 is -(2 ^ 2), but -2 * 3 is (-2) * 3
+        registerUnary('-', "neg", EXPONENTIAL, x -> -x, x -> -x, x -> -x);
+        registerFunction("min", Math::min, Math::min, Math::min);
+        registerFunction("max", Math::max, Math::max, Math::max);
+        registerFunction("abs", Math::abs, Math::abs, Math::abs);
+        registerFunction("mod", Math::floorMod, Math::floorMod, (x, y) -> x - Math.floor(x / y) * y);
+        this.frozen = frozen;
+    }
+
+    /**
+     * @return the registry of standard operators used when none is given.
+     * It can't be changed.
+     */
+    public static OperatorRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Registers a binary operator
+     *
+     * @param symbol           the operator's character
+     * @param precedence       at least 1, higher binds tighter. See {@link #ADDITIVE}
+     * @param rightAssociative whether a # b # c is a # (b # c)
+     * @param intOp            the operator on ints
+     * @param longOp           the operator on longs
+     * @param doubleOp         the operator on doubles
+     * @return the new operator
+     * @throws IllegalArgumentException if the symbol can't be used or is already a binary operator
+     */
+    public Operator registerBinary(char symbol, int precedence, boolean rightAssociative, IntBinaryOperator intOp,
+                                   LongBinaryOperator longOp, DoubleBinaryOperator doubleOp) {
+        checkSymbol(symbol, binaryOperators, "binary");
+        checkPrecedence(precedence);
+        String text = String.valueOf(symbol);
+        Operator op = new Operator(size, text, text, precedence, rightAssociative, false, intOp, longOp, doubleOp);
+        binaryOperators[symbol] = op;
+        return add(op);
+    }
+
+    /**
+     * Registers a prefix unary operator. A unary operator may use the same
+     * character as a binary operator, the parser decides which it is from
+     * where it appears, as with 1 - -2.
+     *
+     * @param symbol     the operator's character
+     * @param name       the operator's name in prefix and postfix notation
+     * @param precedence at least 1. Binary operators with a higher precedence
+     *                   are applied first, i.e. -2 ^ 2 is -(2 ^ 2).
+     * @param intOp      the operator on ints
+     * @param longOp     the operator on longs
+     * @param doubleOp   the operator on doubles
+     * @return the new operator
+     * @throws IllegalArgumentException if the symbol can't be used or is already a unary operator
+     */
+    public Operator registerUnary(char symbol, String name, int precedence, IntUnaryOperator intOp,
+                                  LongUnaryOperator longOp, DoubleUnaryOperator doubleOp) {
+        checkSymbol(symbol, unaryOperators, "unary");
+        checkPrecedence(precedence);
+        checkName(name);
+        Operator op = new Operator(size, String.valueOf(symbol), name, precedence, false, intOp, longOp, doubleOp);
+        unaryOperators[symbol] = op;
+        return add(op);
+    }
+
+    /**
+     * Registers a function of one argument, called as name(x)
+     *
+     * @param name     the function's name
+     * @param intOp    the function on ints
+     * @param longOp   the function on longs
+     * @param doubleOp the function on doubles
+     * @return the new function
+     * @throws IllegalArgumentException if the name isn't an identifier or is already a function
+     */
+    public Operator registerFunction(String name, IntUnaryOperator intOp, LongUnaryOperator longOp,
+                                     DoubleUnaryOperator doubleOp) {
+        checkFunctionName(name);
+        return add(new Operator(size, name, name, Integer.MAX_VALUE, true, intOp, longOp, doubleOp));
+    }
+
+    /**
+     * Registers a function of two arguments, called as name(x, y)
+     *
+     * @param name     the function's name
+     * @param intOp    the function on ints
+     * @param longOp   the function on longs
+     * @param doubleOp the function on doubles
+     * @return the new function
+     * @throws IllegalArgumentException if the name isn't an identifier or is already a function
+     */
+    public Operator registerFunction(String name, IntBinaryOperator intOp, LongBinaryOperator longOp,
+                                     DoubleBinaryOperator doubleOp) {
+        checkFunctionName(name);
+        return add(new Operator(size, name, name, Integer.MAX_VALUE, false, true, intOp, longOp, doubleOp));
+    }
+
+    /**
+     * @param id an operator id
+     * @return the operator with the given id
+     * @throws IndexOutOfBoundsException if there is no such operator
+     */
+    public Operator getOperator(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("No operator with id " + id + ".");
+        return operators[id];
+    }
+
+    /**
+     * @return the number of operators, one more than the largest id
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param c a character
+     * @return the binary operator written as c, or null if there isn't one
+     */
+    public Operator getBinary(char c) {
+        return c < TABLE_SIZE ? binaryOperators[c] : null;
+    }
+
+    /**
+     * @param c a character
+     * @return the unary operator written as c, or null if there isn't one
+     */
+    public Operator getUnary(char c) {
+        return c < TABLE_SIZE ? unaryOperators[c] : null;
+    }
+
+    /**
+     * @param name a function name
+     * @return the function with the given name, or null if there isn't one
+     */
+    public Operator getFunction(String name) {
+        return findFunction(name, 0, name.length(), name.hashCode());
+    }
+
+    /**
+     * Finds a function by a name in a CharSequence, without creating a String
+     *
+     * @param input holds the name
+     * @param start the index of the first character of the name
+     * @param end   one past the index of the last character of the name
+     * @param hash  the String hash code of the name
+     * @return the function, or null if there isn't one
+     */
+    Operator findFunction(CharSequence input, int start, int end, int hash) {
+        for (int id = 0; id < size; id++) {
+            Operator op = operators[id];
+            if (op.isFunction() && op.getSymbol().hashCode() == hash && matches(op.getSymbol(), input, start, end))
+                return op;
+        }
+        return null;
+    }
+
+    /**
+     * Finds a function or unary operator by the name it's written as in
+     * prefix and postfix notation, without creating a String. A function
+     * is preferred to a unary operator of the same name.
+     *
+     * @param input holds the name
+     * @param start the index of the first character of the name
+     * @param end   one past the index of the last character of the name
+     * @param hash  the String hash code of the name
+     * @return the function or unary operator, or null if there isn't one
+     */
+    Operator findNamed(CharSequence input, int start, int end, int hash) {
+        Operator function = findFunction(input, start, end, hash);
+        if (function != null)
+            return function;
+        for (int id = 0; id < size; id++) {
+            Operator op = operators[id];
+            if (op.getArity() == 1 && op.getName().hashCode() == hash && matches(op.getName(), input, start, end))
+                return op;
+        }
+        return null;
+    }
+
+    private static boolean matches(String name, CharSequence input, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != input.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+
+    private Operator add(Operator op) {
+        if (size == operators.length)
+            operators = Arrays.copyOf(operators, size * 2);
+        operators[size++] = op;
+        return op;
+    }
+
+    private void checkSymbol(char symbol, Operator[] table, String kind) {
+        checkNotFrozen();
+        if (symbol >= TABLE_SIZE || symbol == '(' || symbol == ')' || symbol == ',' || symbol == '.'
+                || Character.isWhitespace(symbol) || Parser.isIdentifierPart(symbol) || Character.isISOControl(symbol))
+            throw new IllegalArgumentException(symbol + " can't be used as an operator.");
+        if (table[symbol] != null)
+            throw new IllegalArgumentException(symbol + " is already a " + kind + " operator.");
+    }
+
+    private void checkFunctionName(String name) {
+        checkNotFrozen();
+        checkName(name);
+        if (getFunction(name) != null)
+            throw new IllegalArgumentException(name + " is already a function.");
+    }
+
+    private static void checkName(String name) {
+        boolean valid = !name.isEmpty() && Parser.isIdentifierStart(name.charAt(0));
+        for (int i = 1; i < name.length(); i++)
+            valid &= Parser.isIdentifierPart(name.charAt(i));
+        if (!valid)
+            throw new IllegalArgumentException(name + " is not a valid name.");
+    }
+
+    private static void checkPrecedence(int precedence) {
+        if (precedence < 1)
+            throw new IllegalArgumentException("Precedence must be at least 1, found " + precedence + ".");
+    }
+
+    private void checkNotFrozen() {
+        // frozen is only set once the constructor has registered the standard operators
+        if (frozen)
+            throw new UnsupportedOperationException("The default registry can't be changed, create an OperatorRegistry.");
+    }
+}
@@ -1,7 +1,5 @@
-import java.util.function.IntBinaryOperator;
-
 /**
- * A token which holds an operator. This operator's
+ * A token which holds an operator or function. This operator's
  * operands are its children. When this token is evaluated,
  * all the children are evaluated and then the operator is applied
  * to the children.
@@ -10,67 +8,149 @@ import java.util.function.IntBinaryOperator;
  */
 public class OperatorToken extends Token {
 
-    private char opChar;
-    private IntBinaryOperator op;
+    private final Operator operator;
+    // The operands, rhs is null for a unary operator
+    private final Token lhs;
+    private final Token rhs;
+    // The number of nodes in this subtree and its height
+    private final int size;
+    private final int height;
 
-    public OperatorToken(char c) {
-        opChar = c;
-        // Parens don't have a lambda, so this.op will == null
-        // if opChar == '(' or ')'
-        this.op = BinaryOperator.getLambda(c);
+    /**
+     * Creates a token for a unary operator or function of one argument
+     *
+     * @param operator the operator
+     * @param operand  its operand
+     * @throws IllegalArgumentException if the operator doesn't take one operand
+     */
+    public OperatorToken(Operator operator, Token operand) {
+        this(operator, operand, null);
     }
 
     /**
-     * Returns the precedence level of the operator. For example,
-     * multiplication has higher precedence than addition, so
-     * {*}.getPrecedence() > {+}.getPrecedence()
+     * Creates a token for an operator and its operands
      *
-     * @return an integer representing the precedence of this operator
+     * @param operator the operator
+     * @param lhs      its left operand, or only operand of a unary operator
+     * @param rhs      its right operand, null for a unary operator
+     * @throws IllegalArgumentException if the operator takes another number of operands
      */
-    public int getPrecedence() {
-        return BinaryOperator.getPrecedence(opChar);
+    public OperatorToken(Operator operator, Token lhs, Token rhs) {
+        checkOperands(operator, lhs, rhs);
+        this.operator = operator;
+        this.lhs = lhs;
+        this.rhs = rhs;
+        size = 1 + sizeOf(lhs) + (rhs == null ? 0 : sizeOf(rhs));
+        height = 1 + Math.max(heightOf(lhs), rhs == null ? 0 : heightOf(rhs));
     }
 
     /**
-     * Checks to see if this operator is an open parenthesis.
-     * Needed to know when to stop reducing for close parentheses.
+     * Creates a token for one of the standard binary operators
      *
-     * @return true iff this operator is an open parenthesis
+     * @param c   the character representation of the operator
+     * @param lhs its left operand
+     * @param rhs its right operand
+     */
+    public OperatorToken(char c, Token lhs, Token rhs) {
+        this(standardBinary(c), lhs, rhs);
+    }
+
+    private static Operator standardBinary(char c) {
+        Operator op = OperatorRegistry.getDefault().getBinary(c);
+        if (op == null)
+            throw new IllegalArgumentException(c + " is not a valid operator.");
+        return op;
+    }
+
+    private static void checkOperands(Operator operator, Token lhs, Token rhs) {
+        int operands = lhs == null ? 0 : rhs == null ? 1 : 2;
+        if (operands != operator.getArity())
+            throw new IllegalArgumentException(operator.getName() + " takes " + operator.getArity()
+                    + (operator.getArity() == 1 ? " operand" : " operands") + ", found " + operands + ".");
+    }
+
+    /**
+     * @param tok the root of a subtree
+     * @return the number of nodes in the subtree
+     */
+    static int sizeOf(Token tok) {
+        return tok instanceof OperatorToken ? ((OperatorToken) tok).size : 1;
+    }
+
+    /**
+     * @param tok the root of a subtree
+     * @return the height of the subtree, 1 for a single operand
+     */
+    static int heightOf(Token tok) {
+        return tok instanceof OperatorToken ? ((OperatorToken) tok).height : 1;
+    }
+
+    /**
+     * @return the operator this token applies
+     */
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * @return the first operand, the only one of a unary operator
      */
-    public boolean isOpenParen() {
-        return opChar == '(';
+    public Token getLeftOperand() {
+        return lhs;
     }
 
     /**
-     * Checks to see if this operator is a close parenthesis
+     * @return the second operand, or null for a unary operator
+     */
+    public Token getRightOperand() {
+        return rhs;
+    }
+
+    /**
+     * @return the number of nodes in this subtree
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the height of this subtree, 2 for an operation on two operands
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the precedence level of the operator. For example,
+     * multiplication has higher precedence than addition, so
+     * {*}.getPrecedence() > {+}.getPrecedence()
      *
-     * @return true iff this operator is a close parenthesis
+     * @return an integer representing the precedence of this operator
      */
-    public boolean isCloseParen() {
-        return opChar == ')';
+    public int getPrecedence() {
+        return operator.getPrecedence();
     }
 
     /**
      * Whether or not this operator is left associative. All
-     * operators implemented (except exponentiation) are left
+     * standard operators (except exponentiation) are left
      * associative. i.e. 1 + 2 + 3 -> (1 + 2) + 3
      *
      * @return true iff this operator is left associative
      */
     public boolean isLeftAssociative() {
-        return BinaryOperator.isLeftAssociative(opChar);
+        return !operator.isRightAssociative();
     }
 
     /**
      * Whether or not this operator is right associative. Only
-     * implemented right associative operator is exponentiation.
+     * standard right associative operator is exponentiation.
      * i.e. 2 ^ 2 ^ 3 -> 2 ^ ( 2 ^ 3)
      *
      * @return true iff this operator is right associative
-     * ( equiv. to true iff this operator is ^ )
      */
     public boolean isRightAssociative() {
-        return BinaryOperator.isRightAssociative(opChar);
+        return operator.isRightAssociative();
     }
 
     /**
@@ -78,70 +158,78 @@ public class OperatorToken extends Token {
      * Will first evaluate the left subtree, then the right subtree, and
      * then apply this operation to the two operands.
      *
+     * @param bindings the values of the expression's variables, indexed by slot
      * @return the result of this operation on the left and right subtrees
      */
     @Override
-    public int evalToken() {
-        Token leftOperand = this.getChild();
-        if (leftOperand == null) {
-            throw new IllegalStateException("Missing left operand.");
-        }
-        Token rightOperand = leftOperand.getSibling();
-        if (rightOperand == null) {
-            throw new IllegalStateException("Missing right operand.");
-        }
-        return op.applyAsInt(leftOperand.evalToken(), rightOperand.evalToken());
+    public int evalToken(int[] bindings) {
+        if (rhs == null)
+            return operator.applyAsInt(lhs.evalToken(bindings));
+        return operator.applyAsInt(lhs.evalToken(bindings), rhs.evalToken(bindings));
     }
 
     /**
-     * Creates a postfix representation of this operator
-     * lhs rhs op
+     * Evaluates the value of this operator with 64-bit integer arithmetic.
      *
-     * @return a postfix string for this operator
+     * @param bindings the values of the expression's variables, indexed by slot
+     * @return the result of this operation on the left and right subtrees
+     * @see #evalToken(int[])
      */
     @Override
-    public String postfixString() {
-        Token lhs = getChild();
-        Token rhs = getChild().getSibling();
-        return lhs.postfixString() + " " + rhs.postfixString() + " " + opChar;
+    public long evalLong(long[] bindings) {
+        if (rhs == null)
+            return operator.applyAsLong(lhs.evalLong(bindings));
+        return operator.applyAsLong(lhs.evalLong(bindings), rhs.evalLong(bindings));
     }
 
     /**
-     * Creates a prefix representation of this operator
-     * op lhs rhs
+     * Evaluates the value of this operator with double arithmetic.
      *
-     * @return a prefix string for this operator
+     * @param bindings the values of the expression's variables, indexed by slot
+     * @return the result of this operation on the left and right subtrees
+     * @see #evalToken(int[])
      */
     @Override
-    public String prefixString() {
-        Token lhs = getChild();
-        Token rhs = getChild().getSibling();
-        return opChar + " " + lhs.prefixString() + " " + rhs.prefixString();
+    public double evalDouble(double[] bindings) {
+        if (rhs == null)
+            return operator.applyAsDouble(lhs.evalDouble(bindings));
+        return operator.applyAsDouble(lhs.evalDouble(bindings), rhs.evalDouble(bindings));
     }
 
     /**
-     * Creates a lisp-like, prefix representation of this operator
-     * (op lhs rhs)
+     * Applies this unary operator to an already evaluated operand
      *
-     * @return a lisp-like string for this operator
+     * @param operand the value of the operand
+     * @return op operand
      */
-    @Override
-    public String lispString() {
-        Token lhs = getChild();
-        Token rhs = getChild().getSibling();
-        return "( " + opChar + " " + lhs.lispString() + " " + rhs.lispString() + " )";
+    public int apply(int operand) {
+        return operator.applyAsInt(operand);
     }
 
     /**
-     * Creates a infix representation of this operator with parentheses
-     * ( lsh op rhs )
+     * Applies this operator to already evaluated operands
      *
-     * @return an infix string for this operator
+     * @param lhs the value of the left operand
+     * @param rhs the value of the right operand
+     * @return lhs op rhs
      */
-    @Override
-    public String infixString() {
-        Token lhs = getChild();
-        Token rhs = getChild().getSibling();
-        return "( " + lhs.infixString() + " " + opChar + " " + rhs.infixString() + " )";
+    public int apply(int lhs, int rhs) {
+        return operator.applyAsInt(lhs, rhs);
+    }
+
+    public long applyLong(long operand) {
+        return operator.applyAsLong(operand);
+    }
+
+    public long applyLong(long lhs, long rhs) {
+        return operator.applyAsLong(lhs, rhs);
+    }
+
+    public double applyDouble(double operand) {
+        return operator.applyAsDouble(operand);
+    }
+
+    public double applyDouble(double lhs, double rhs) {
+        return operator.applyAsDouble(lhs, rhs);
     }
 }
@@ -0,0 +1,220 @@
+import java.util.Arrays;
+
+/**
+ * An optimization pass over expression trees. Subtrees made up only of
+ * literals are folded into a single literal, and operations which have
+ * no effect are removed:
+ * <p>
+ * (3 * 4) + x   becomes   12 + x
+ * x * 1, 1 * x, x + 0, 0 + x, x - 0, x / 1, x ^ 1   become   x
+ * <p>
+ * Folding uses the operators' own lambdas, so results are the same as
+ * evaluating the original tree, including overflow, truncating division
+ * and the behaviour of ^. An integer operation is only folded when its
+ * int, long and double results are all the same number, i.e. 7 / 2 is
+ * kept since it is 3 as an int but 3.5 as a double. An operation which
+ * throws, such as a division by a literal zero, is never folded, so it
+ * still fails when evaluated.
+ * <p>
+ * The original tree is left untouched, the optimized tree is built
+ * out of new tokens.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class Optimizer {
+
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    /**
+     * Builds an optimized copy of an expression tree
+     *
+     * @param root the root of the expression tree
+     * @return the root of an equivalent, optimized tree
+     */
+    public static Token optimize(Token root) {
+        // Replaying the tree walks it with an explicit stack, so trees of
+        // any depth can be optimized
+        SimplifyingBuilder builder = new SimplifyingBuilder();
+        Parser.replay(root, builder);
+        return builder.operands[0];
+    }
+
+    /**
+     * Rebuilds a tree from its nodes in postfix order, simplifying each
+     * operation as soon as its operands have been built
+     */
+    private static class SimplifyingBuilder implements Parser.Builder {
+        private Token[] operands = new Token[16];
+        private int count;
+
+        @Override
+        public void literal(long value) {
+            push(new OperandToken(value));
+        }
+
+        @Override
+        public void decimal(double value) {
+            push(new DecimalToken(value));
+        }
+
+        @Override
+        public void variable(String name, int slot) {
+            push(new VariableToken(name, slot));
+        }
+
+        @Override
+        public void operation(Operator op) {
+            if (op.getArity() == 1) {
+                operands[count - 1] = simplify(op, operands[count - 1], null);
+            } else {
+                Token rhs = operands[--count];
+                operands[count] = null;
+                operands[count - 1] = simplify(op, operands[count - 1], rhs);
+            }
+        }
+
+        private void push(Token tok) {
+            if (count == operands.length)
+                operands = Arrays.copyOf(operands, count * 2);
+            operands[count++] = tok;
+        }
+    }
+
+    /**
+     * Builds the token for an operation on already optimized operands,
+     * folding or removing the operation when that is safe.
+     *
+     * @param op  the operator
+     * @param lhs the optimized left operand, or only operand of a unary operator
+     * @param rhs the optimized right operand, null for a unary operator
+     * @return a token equivalent to lhs op rhs
+     */
+    private static Token simplify(Operator op, Token lhs, Token rhs) {
+        Token folded = rhs == null ? fold(op, lhs) : fold(op, lhs, rhs);
+        if (folded != null)
+            return folded;
+
+        // Remove identity operations. Only the operand that is kept could
+        // have thrown during evaluation, so dropping the literal is safe.
+        switch (op.getId()) {
+            case Operator.ADD:
+                if (isLiteral(rhs, 0))
+                    return lhs;
+                if (isLiteral(lhs, 0))
+                    return rhs;
+                break;
+            case Operator.MULTIPLY:
+                if (isLiteral(rhs, 1))
+                    return lhs;
+                if (isLiteral(lhs, 1))
+                    return rhs;
+                break;
+            case Operator.SUBTRACT:
+                // x - 0 == x
+                if (isLiteral(rhs, 0))
+                    return lhs;
+                break;
+            case Operator.DIVIDE:
+            case Operator.POWER:
+                // x / 1 == x, and Operator.pow(x, 1) == x for ints and longs
+                if (isLiteral(rhs, 1))
+                    return lhs;
+                break;
+            default:
+                break;
+        }
+
+        return new OperatorToken(op, lhs, rhs);
+    }
+
+    /**
+     * Folds an operation on two literals into a single literal
+     *
+     * @param op  the operator
+     * @param lhs the optimized left operand
+     * @param rhs the optimized right operand
+     * @return the folded literal, or null if the operation can't be folded
+     */
+    private static Token fold(Operator op, Token lhs, Token rhs) {
+        try {
+            if (lhs instanceof OperandToken && rhs instanceof OperandToken) {
+                long lhsValue = ((OperandToken) lhs).getLongValue();
+                long rhsValue = ((OperandToken) rhs).getLongValue();
+                return integer(op.applyAsInt((int) lhsValue, (int) rhsValue), op.applyAsLong(lhsValue, rhsValue),
+                        op.applyAsDouble(lhsValue, rhsValue));
+            }
+            if (isNumber(lhs) && isNumber(rhs))
+                return decimal(op.applyAsDouble(doubleValue(lhs), doubleValue(rhs)));
+        } catch (RuntimeException e) {
+            // Division by zero and the like have to fail when the expression is evaluated
+        }
+        return null;
+    }
+
+    /**
+     * Folds a unary operation on a literal into a single literal
+     *
+     * @param op      the operator
+     * @param operand the optimized operand
+     * @return the folded literal, or null if the operation can't be folded
+     */
+    private static Token fold(Operator op, Token operand) {
+        try {
+            if (operand instanceof OperandToken) {
+                long value = ((OperandToken) operand).getLongValue();
+                return integer(op.applyAsInt((int) value), op.applyAsLong(value), op.applyAsDouble(value));
+            }
+            if (operand instanceof DecimalToken)
+                return decimal(op.applyAsDouble(doubleValue(operand)));
+        } catch (RuntimeException e) {
+            // Fails when the expression is evaluated instead
+        }
+        return null;
+    }
+
+    /**
+     * @return an integer literal with the given results, or null if a
+     * single literal can't give every result
+     */
+    private static Token integer(int intResult, long longResult, double doubleResult) {
+        // 0.0 == -0.0, so compare the bits to keep the sign of a double zero
+        if ((int) longResult != intResult || (double) longResult != doubleResult
+                || Double.doubleToRawLongBits(doubleResult) == NEGATIVE_ZERO)
+            return null;
+        return new OperandToken(longResult);
+    }
+
+    /**
+     * An operation on a decimal can only be evaluated as a double
+     *
+     * @return a decimal literal with the given result, or null if it
+     * can't be written as a literal
+     */
+    private static Token decimal(double result) {
+        if (!Double.isFinite(result) || Double.doubleToRawLongBits(result) == NEGATIVE_ZERO)
+            return null;
+        return new DecimalToken(result);
+    }
+
+    private static boolean isNumber(Token tok) {
+        return tok instanceof OperandToken || tok instanceof DecimalToken;
+    }
+
+    private static double doubleValue(Token tok) {
+        if (tok instanceof OperandToken)
+            return ((OperandToken) tok).getLongValue();
+        return ((DecimalToken) tok).getValue();
+    }
+
+    /**
+     * Decimal literals are never removed as identities, since that could
+     * let an expression be evaluated as an int when it couldn't before.
+     *
+     * @param tok   an optimized token
+     * @param value the value to compare with
+     * @return true iff tok is an integer literal equal to value
+     */
+    private static boolean isLiteral(Token tok, int value) {
+        return tok instanceof OperandToken && ((OperandToken) tok).getLongValue() == value;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Parses and evaluates many independent expressions in parallel using
+ * fork/join. The input is split in half recursively until each task
+ * holds a chunk of expressions large enough that the cost of the task
+ * itself is negligible, and each chunk is evaluated with the Parser its
+ * worker thread keeps for reuse.
+ * <p>
+ * Results are stored by index, so they are in the same order as the input.
+ * An expression which fails to parse or evaluate does not affect the others,
+ * its failure is recorded as an InvalidExpressionException in the BatchResult.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ParallelEvaluator {
+
+    // Never split below this many expressions per task
+    private static final int MIN_CHUNK_SIZE = 64;
+    // Tasks per worker thread. A few tasks per thread lets work stealing
+    // balance out chunks of expensive expressions.
+    private static final int TASKS_PER_THREAD = 8;
+
+    /**
+     * Evaluates every expression using the common fork/join pool
+     *
+     * @param expressions the infix expressions to evaluate
+     * @return the results, in the same order as the expressions
+     */
+    public static BatchResult evaluateAll(List<? extends CharSequence> expressions) {
+        return evaluateAll(expressions, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates every expression using the common fork/join pool
+     *
+     * @param expressions the infix expressions to evaluate
+     * @return the results, in the same order as the expressions
+     */
+    public static BatchResult evaluateAll(Stream<? extends CharSequence> expressions) {
+        return evaluateAll(expressions.collect(Collectors.toList()));
+    }
+
+    /**
+     * Evaluates every expression using the given fork/join pool
+     *
+     * @param expressions the infix expressions to evaluate
+     * @param pool        the pool to run the evaluation in
+     * @return the results, in the same order as the expressions
+     */
+    public static BatchResult evaluateAll(List<? extends CharSequence> expressions, ForkJoinPool pool) {
+        // Copy the input so that indexing it is always cheap and it can't change under us
+        List<CharSequence> input = new ArrayList<>(expressions);
+        BatchResult result = new BatchResult(input.size());
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, input.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+        pool.invoke(new EvaluateTask(input, result, 0, input.size(), chunkSize));
+        return result;
+    }
+
+    /**
+     * Evaluates the expressions in the range [from, to), splitting the range
+     * into subtasks while it is larger than the chunk size.
+     */
+    private static class EvaluateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<CharSequence> input;
+        private final BatchResult result;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        EvaluateTask(List<CharSequence> input, BatchResult result, int from, int to, int chunkSize) {
+            this.input = input;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EvaluateTask(input, result, from, middle, chunkSize),
+                        new EvaluateTask(input, result, middle, to, chunkSize));
+                return;
+            }
+
+            // Each worker thread reuses its own parser
+            Parser parser = Expression.getParser(OperatorRegistry.getDefault());
+            for (int i = from; i < to; i++) {
+                // Evaluated as it is parsed, without building a tree. Malformed
+                // expressions are reported without an exception being thrown.
+                if (!parser.tryParseValue(input.get(i))) {
+                    ParseResult failure = ParseResult.failure(parser);
+                    result.setFailure(i, new InvalidExpressionException(failure.getMessage(), failure.getOffset()));
+                    continue;
+                }
+                try {
+                    result.setValue(i, parser.getValue());
+                } catch (RuntimeException e) {
+                    result.setFailure(i, new InvalidExpressionException(e.getLocalizedMessage(), -1));
+                }
+            }
+        }
+    }
+}
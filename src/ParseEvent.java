@@ -0,0 +1,14 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when an infix expression is parsed into an Expression
+ *
+ * @author Samuel Laberge, 2020
+ */
+@Name("expression.Parse")
+@Label("Expression Parse")
+@Description("Parsing an infix expression into an expression tree")
+class ParseEvent extends ExpressionEvent {
+}
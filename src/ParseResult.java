@@ -0,0 +1,107 @@
+/**
+ * The outcome of parsing an expression without throwing: either the parsed
+ * expression, or what was wrong with it and where. Malformed input is
+ * reported through an ErrorCode rather than an exception, so rejecting it
+ * costs no more than accepting it.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class ParseResult {
+
+    /**
+     * What was wrong with a malformed expression
+     */
+    public enum ErrorCode {
+        // A character which doesn't start any operand, operator or function call
+        UNKNOWN_TOKEN,
+        // A close parenthesis without an open parenthesis before it
+        UNMATCHED_CLOSE_PARENTHESIS,
+        // An open parenthesis which is never closed
+        UNMATCHED_OPEN_PARENTHESIS,
+        // Operands left over, or no operand at all
+        OPERAND_MISMATCH,
+        MISSING_OPERATOR,
+        MISSING_LEFT_OPERAND,
+        MISSING_RIGHT_OPERAND,
+        // An operator of prefix or postfix notation without all of its operands
+        MISSING_OPERANDS,
+        // A function call with the wrong number of arguments
+        WRONG_ARGUMENT_COUNT,
+        // A function call whose arguments aren't single operands separated by commas
+        MALFORMED_ARGUMENTS,
+        UNEXPECTED_COMMA,
+        // A notation which can't be parsed, such as LISP
+        UNSUPPORTED_NOTATION
+    }
+
+    // The result of any valid expression which was only validated
+    static final ParseResult VALID = new ParseResult(null, null, -1, null);
+
+    private final Expression expression;
+    private final ErrorCode error;
+    private final int offset;
+    private final String message;
+
+    private ParseResult(Expression expression, ErrorCode error, int offset, String message) {
+        this.expression = expression;
+        this.error = error;
+        this.offset = offset;
+        this.message = message;
+    }
+
+    static ParseResult success(Expression expression) {
+        return new ParseResult(expression, null, -1, null);
+    }
+
+    /**
+     * @param parser a parser which just failed to parse an expression
+     * @return the error the parser found
+     */
+    static ParseResult failure(Parser parser) {
+        return new ParseResult(null, parser.getError(), (int) parser.getErrorOffset(), parser.getErrorMessage());
+    }
+
+    /**
+     * @return true iff the expression is well formed
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+
+    /**
+     * @return the parsed expression, or null if it is malformed or was only validated
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return what was wrong with the expression, or null if it is well formed
+     */
+    public ErrorCode getError() {
+        return error;
+    }
+
+    /**
+     * @return the index of the start of the token where the error was
+     * found, which is the length of the expression if it ended too soon,
+     * or -1 if it is well formed. An operand missing before a binary
+     * operator, as in 1 + * 2, is reported at that operator.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the same reason an InvalidExpressionException would give, or
+     * null if the expression is well formed
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? "Valid" : error + " at " + offset + ": " + message;
+    }
+}
@@ -0,0 +1,1351 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses infix expressions into expression trees using the
+ * operator-precedence (shunting-yard) algorithm.
+ * <p>
+ * The parser reads directly from a CharSequence and keeps its operator and
+ * operand stacks in arrays which are reused from one parse to the next, so
+ * parsing allocates nothing but the tokens of the resulting tree (and the
+ * name of each distinct variable). It can also read from a Reader through a
+ * small window of characters, which only grows to hold a single token
+ * longer than it, so an expression of any length can be parsed without
+ * holding its text in memory. Operators come from an OperatorRegistry,
+ * are kept on the stack as their ids and only become OperatorTokens when
+ * they are reduced.
+ * <p>
+ * The parser itself only checks the expression and decides the order of
+ * operations. It hands the nodes of the tree to a {@link Builder} in
+ * postfix order, which builds Tokens by default, or other representations
+ * such as a NodePool without creating any Tokens.
+ * <p>
+ * Malformed input doesn't throw inside the parser. The first error is
+ * recorded with its ErrorCode and offset, and parsing stops. The tryParse
+ * methods report it by returning false, only the parse methods turn it
+ * into an exception.
+ * <p>
+ * A character which is both a unary and a binary operator, such as -, is
+ * unary where an operand is expected: at the start, after another operator,
+ * after an open parenthesis and after a comma. A function name followed by
+ * an open parenthesis is a call, its comma separated arguments are reduced
+ * when the call's parenthesis is closed.
+ * <p>
+ * Expressions written in prefix or postfix notation, as TreeWriter writes
+ * them, are parsed in a single pass without precedence or parentheses.
+ * Their operators are written as their names, so unary minus is neg and
+ * functions are written without parentheses or commas, and a - directly
+ * followed by a digit starts a negative literal.
+ * <p>
+ * A Parser may be reused for any number of expressions, but not by
+ * multiple threads at once.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class Parser {
+
+    private final OperatorRegistry registry;
+
+    private CharSequence input;
+    private int index;
+    // The end of the input, or of the characters read so far from a reader
+    private int limit;
+    // The start of the token being read, which must stay in the window
+    private int tokenStart;
+
+    // When reading from a Reader, input is a window over its characters
+    private static final int WINDOW_SIZE = 8192;
+    private Reader reader;
+    private Window window;
+    // The number of characters dropped from the window before its start
+    private long windowOffset;
+
+    // Whether the next token should be an operand, which makes an operator unary
+    private boolean expectOperand;
+
+    // The operator stack holds operator ids, and PAREN for open parentheses
+    private static final int PAREN = -1;
+    private int[] operators = new int[16];
+    private int operatorCount;
+
+    // For an open parenthesis which starts a function call, the number of
+    // operands when it was opened and the number of commas since
+    private int[] callStarts = new int[16];
+    private int[] callCommas = new int[16];
+
+    // In prefix notation, the number of operands each operator on the stack still needs
+    private int[] pendingOperands = new int[16];
+
+    // The number of operands on the operand stack, which is kept by the builder
+    private int operandCount;
+    private Builder builder;
+    private final TokenBuilder tokens = new TokenBuilder();
+    private ValueBuilder values;
+
+    // The number of nodes in the last parsed tree, and characters in its expression
+    private int nodeCount;
+    private long length;
+
+    // The first error in the last parsed expression, where it was found and why
+    private ParseResult.ErrorCode error;
+    private long errorOffset;
+    private String errorMessage;
+    // The offset of the first binary operator read where an operand was
+    // expected, or -1. A missing operand is reported there.
+    private long misplacedOperator;
+
+    // Decimal literals whose digits fit in a double exactly, divided by a
+    // power of ten which is also exact, can be converted without a String
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // The variables seen so far, indexed by slot, along with the hash code
+    // of each name so that names can be looked up without creating a String
+    private final List<String> variables = new ArrayList<>();
+    private int[] variableHashes = new int[16];
+
+    /**
+     * Creates a parser for the standard operators and functions
+     */
+    public Parser() {
+        this(OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Creates a parser for the operators and functions of a registry
+     *
+     * @param registry the operators and functions expressions may use
+     */
+    public Parser(OperatorRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Parses an infix expression into an expression tree.
+     *
+     * @param expr An infix expression. Can include operators, operands,
+     *             variables and parentheses.
+     * @return The root of the expression tree
+     * @throws IllegalArgumentException if the expression is malformed
+     * @throws IllegalStateException    if the expression is malformed
+     */
+    public Token parse(CharSequence expr) {
+        return parse(expr, TreeWriter.Notation.INFIX);
+    }
+
+    /**
+     * Parses an infix expression, handing the nodes of its tree to a
+     * builder in postfix order
+     *
+     * @param expr    An infix expression. Can include operators, operands,
+     *                variables and parentheses.
+     * @param builder receives the nodes of the tree
+     * @throws IllegalArgumentException if the expression is malformed
+     * @throws IllegalStateException    if the expression is malformed
+     */
+    void parse(CharSequence expr, Builder builder) {
+        parse(expr, TreeWriter.Notation.INFIX, builder);
+    }
+
+    /**
+     * Parses an expression written in the given notation into an
+     * expression tree.
+     *
+     * @param expr     An expression in infix, prefix or postfix notation
+     * @param notation the notation of the expression
+     * @return The root of the expression tree
+     * @throws IllegalArgumentException if the expression is malformed, or
+     *                                  the notation is LISP
+     * @throws IllegalStateException    if the expression is malformed
+     */
+    public Token parse(CharSequence expr, TreeWriter.Notation notation) {
+        Token root = tryParse(expr, notation);
+        if (root == null)
+            throwError();
+        return root;
+    }
+
+    /**
+     * Parses an expression written in the given notation into an
+     * expression tree, without throwing if it is malformed
+     *
+     * @param expr     An expression in infix, prefix or postfix notation
+     * @param notation the notation of the expression
+     * @return The root of the expression tree, or null if the expression is
+     * malformed, in which case {@link #getError()} says why
+     */
+    Token tryParse(CharSequence expr, TreeWriter.Notation notation) {
+        try {
+            return tryParse(expr, notation, tokens) ? tokens.root() : null;
+        } finally {
+            // Don't hold on to the tokens between parses
+            tokens.clear();
+        }
+    }
+
+    /**
+     * Parses an expression written in the given notation, handing the
+     * nodes of its tree to a builder in postfix order
+     *
+     * @param expr     An expression in infix, prefix or postfix notation
+     * @param notation the notation of the expression
+     * @param builder  receives the nodes of the tree
+     * @throws IllegalArgumentException if the expression is malformed, or
+     *                                  the notation is LISP
+     * @throws IllegalStateException    if the expression is malformed
+     */
+    void parse(CharSequence expr, TreeWriter.Notation notation, Builder builder) {
+        if (!tryParse(expr, notation, builder))
+            throwError();
+    }
+
+    /**
+     * Parses an expression written in the given notation, handing the
+     * nodes of its tree to a builder in postfix order, without throwing if
+     * it is malformed. The builder may have been given part of the tree
+     * when the error was found.
+     *
+     * @param expr     An expression in infix, prefix or postfix notation
+     * @param notation the notation of the expression
+     * @param builder  receives the nodes of the tree
+     * @return true iff the expression is well formed, otherwise
+     * {@link #getError()} says why
+     */
+    boolean tryParse(CharSequence expr, TreeWriter.Notation notation, Builder builder) {
+        input = expr;
+        limit = expr.length();
+        return start(builder, notation);
+    }
+
+    /**
+     * Checks whether an expression is well formed, without building its tree
+     *
+     * @param expr     An expression in infix, prefix or postfix notation
+     * @param notation the notation of the expression
+     * @return true iff the expression is well formed, otherwise
+     * {@link #getError()} says why
+     */
+    boolean validate(CharSequence expr, TreeWriter.Notation notation) {
+        return tryParse(expr, notation, CHECKER);
+    }
+
+    /**
+     * Parses an expression without variables and evaluates it at the same
+     * time. Each operator is applied to the values of its operands as soon
+     * as it is reduced, so no tree is built and nothing is allocated. The
+     * result and any exception are the same as evaluating the parsed tree:
+     * the expression is checked in full before a failure to evaluate it,
+     * such as a division by zero, is thrown.
+     *
+     * @param expr An infix expression. Can include operators, operands,
+     *             function calls and parentheses.
+     * @return the value of the expression
+     * @throws IllegalArgumentException if the expression is malformed, or
+     *                                  has variables
+     * @throws IllegalStateException    if the expression is malformed
+     * @throws ArithmeticException      if evaluating the expression divides by zero
+     */
+    public int evaluate(CharSequence expr) {
+        if (!tryParseValue(expr))
+            throwError();
+        return getValue();
+    }
+
+    /**
+     * Parses and evaluates an expression, keeping any failure to evaluate
+     * it for {@link #getValue()}. Never throws.
+     *
+     * @param expr an infix expression
+     * @return true iff the expression is well formed, otherwise
+     * {@link #getError()} says why
+     */
+    boolean tryParseValue(CharSequence expr) {
+        if (values == null)
+            values = new ValueBuilder();
+        values.clear();
+        return tryParse(expr, TreeWriter.Notation.INFIX, values);
+    }
+
+    /**
+     * @return the value of the expression given to {@link #tryParseValue(CharSequence)}
+     * @throws IllegalArgumentException if the expression has variables
+     * @throws RuntimeException         the first exception evaluating the expression threw
+     */
+    int getValue() {
+        // Variables are reported before anything else, as when evaluating a tree
+        Expression.checkBindings(Expression.NO_BINDINGS, variables.size());
+        return values.getResult();
+    }
+
+    /**
+     * Parses an infix expression read from a Reader into an expression
+     * tree. The whole expression is read, but only a small window of it is
+     * held at a time.
+     *
+     * @param in the infix expression, which is read to the end but not closed
+     * @return The root of the expression tree
+     * @throws IOException              if reading fails
+     * @throws IllegalArgumentException if the expression is malformed
+     * @throws IllegalStateException    if the expression is malformed
+     */
+    public Token parse(Reader in) throws IOException {
+        Token root = tryParse(in);
+        if (root == null)
+            throwError();
+        return root;
+    }
+
+    /**
+     * Parses an infix expression read from a Reader into an expression
+     * tree, without throwing if it is malformed
+     *
+     * @param in the infix expression, which is read to the end but not closed
+     * @return The root of the expression tree, or null if the expression is
+     * malformed, in which case {@link #getError()} says why
+     * @throws IOException if reading fails
+     */
+    Token tryParse(Reader in) throws IOException {
+        try {
+            return tryParse(in, tokens) ? tokens.root() : null;
+        } finally {
+            tokens.clear();
+        }
+    }
+
+    /**
+     * Parses an infix expression read from a Reader, handing the nodes of
+     * its tree to a builder in postfix order
+     *
+     * @param in      the infix expression, which is read to the end but not closed
+     * @param builder receives the nodes of the tree
+     * @throws IOException              if reading fails
+     * @throws IllegalArgumentException if the expression is malformed
+     * @throws IllegalStateException    if the expression is malformed
+     */
+    void parse(Reader in, Builder builder) throws IOException {
+        if (!tryParse(in, builder))
+            throwError();
+    }
+
+    /**
+     * Parses an infix expression read from a Reader, handing the nodes of
+     * its tree to a builder in postfix order, without throwing if it is
+     * malformed
+     *
+     * @param in      the infix expression, which is read to the end but not closed
+     * @param builder receives the nodes of the tree
+     * @return true iff the expression is well formed, otherwise
+     * {@link #getError()} says why
+     * @throws IOException if reading fails
+     */
+    boolean tryParse(Reader in, Builder builder) throws IOException {
+        if (window == null)
+            window = new Window(WINDOW_SIZE);
+        reader = in;
+        window.length = 0;
+        input = window;
+        limit = 0;
+        try {
+            return start(builder, TreeWriter.Notation.INFIX);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            length = windowOffset + limit;
+            reader = null;
+            // Don't keep a window which grew for a very long token
+            if (window.chars.length > WINDOW_SIZE)
+                window = null;
+        }
+    }
+
+    /**
+     * Parses the input in the given notation
+     *
+     * @return true iff the expression is well formed
+     */
+    private boolean start(Builder builder, TreeWriter.Notation notation) {
+        // The parser is reused, so nothing may be left over from a streamed parse
+        windowOffset = 0;
+        length = limit;
+        error = null;
+        errorMessage = null;
+        misplacedOperator = -1;
+        index = 0;
+        tokenStart = 0;
+        expectOperand = true;
+        operatorCount = 0;
+        operandCount = 0;
+        nodeCount = 0;
+        variables.clear();
+        this.builder = builder;
+        try {
+            switch (notation) {
+                case INFIX:
+                    parseTree();
+                    break;
+                case POSTFIX:
+                    parsePostfix();
+                    break;
+                case PREFIX:
+                    parsePrefix();
+                    break;
+                default:
+                    fail(ParseResult.ErrorCode.UNSUPPORTED_NOTATION, notation + " expressions can't be parsed.");
+            }
+            return error == null;
+        } finally {
+            // Don't hold on to the input or builder between parses
+            input = null;
+            this.builder = null;
+        }
+    }
+
+    /**
+     * Records an error found at the current token. Parsing stops at the
+     * first error, so only one is ever recorded.
+     *
+     * @param code    what is wrong with the expression
+     * @param message the reason an exception for the error would give
+     * @return false, for the step which failed to return
+     */
+    private boolean fail(ParseResult.ErrorCode code, String message) {
+        error = code;
+        errorOffset = windowOffset + tokenStart;
+        if (misplacedOperator >= 0 && (code == ParseResult.ErrorCode.MISSING_LEFT_OPERAND
+                || code == ParseResult.ErrorCode.MISSING_RIGHT_OPERAND))
+            errorOffset = misplacedOperator;
+        errorMessage = message;
+        return false;
+    }
+
+    /**
+     * Throws the error in the last parsed expression, as the exception the
+     * parse methods are documented to throw
+     */
+    private void throwError() {
+        switch (error) {
+            case MISSING_OPERATOR:
+            case MISSING_LEFT_OPERAND:
+            case MISSING_RIGHT_OPERAND:
+                throw new IllegalStateException(errorMessage);
+            default:
+                throw new IllegalArgumentException(errorMessage);
+        }
+    }
+
+    /**
+     * @return what was wrong with the last parsed expression, or null if it was well formed
+     */
+    ParseResult.ErrorCode getError() {
+        return error;
+    }
+
+    /**
+     * @return the index of the token where the error in the last parsed
+     * expression was found, or its length if it ended too soon
+     */
+    long getErrorOffset() {
+        return errorOffset;
+    }
+
+    /**
+     * @return the reason for the error in the last parsed expression
+     */
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * @return the number of characters in the last parsed expression
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the height of the last tree parsed into tokens, 1 for a single operand
+     */
+    public int getHeight() {
+        return tokens.height;
+    }
+
+    /**
+     * @return the number of nodes in the last parsed tree
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the names of the variables in the last parsed expression, indexed by slot
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Runs the operator-precedence algorithm until one operand remains.
+     * This operand is the root of the expression tree.
+     */
+    private void parseTree() {
+        while (hasNextToken()) {
+            tokenStart = index;
+            char c = input.charAt(index);
+            if (Character.isDigit(c)) {
+                // Operands and variables are simply pushed to the operand stack
+                parseNumber(false);
+                pushOperand();
+                expectOperand = false;
+            } else if (isIdentifierStart(c)) {
+                parseIdentifier();
+            } else if (c == '(') {
+                // If the token is an open parenthesis, simply push it to the
+                // operator stack
+                index++;
+                pushParen();
+                expectOperand = true;
+            } else if (c == ')') {
+                index++;
+                if (!closeParen())
+                    return;
+                expectOperand = false;
+            } else if (c == ',') {
+                index++;
+                if (!nextArgument())
+                    return;
+                expectOperand = true;
+            } else {
+                Operator unary = expectOperand ? registry.getUnary(c) : null;
+                if (unary != null) {
+                    // Prefix operators have no left operand, so there's nothing to reduce
+                    index++;
+                    pushOperator(unary.getId());
+                    continue;
+                }
+
+                Operator op = registry.getBinary(c);
+                if (op == null) {
+                    fail(ParseResult.ErrorCode.UNKNOWN_TOKEN, "Unknown token: " + c);
+                    return;
+                }
+                // A binary operator where an operand should be is missing an operand,
+                // which is only found when it is reduced, so remember where it was
+                if (expectOperand && misplacedOperator < 0)
+                    misplacedOperator = windowOffset + tokenStart;
+                index++;
+                // For all other non-paren operators, reduce while the top of the operator
+                // stack has a higher precedence than the next operator in the input
+                while (operatorCount > 0 && reduceForAssociativity(operators[operatorCount - 1], op)) {
+                    if (!reduce())
+                        return;
+                }
+
+                pushOperator(op.getId());
+                expectOperand = true;
+            }
+        }
+
+        // Once we've run out of tokens in the input, reduce until the operator
+        // stack is empty. At the end, there should be one operand remaining, the
+        // root of the expression tree
+        tokenStart = index;
+        while (operatorCount > 0) {
+            if (!reduce())
+                return;
+        }
+
+        if (operandCount != 1)
+            fail(ParseResult.ErrorCode.OPERAND_MISMATCH, "Mismatch in number of operands and operators.");
+    }
+
+    /**
+     * Parses postfix notation. Every operator follows its operands, so it
+     * is handed to the builder as soon as it is read.
+     */
+    private void parsePostfix() {
+        while (hasNextToken()) {
+            tokenStart = index;
+            Operator op = parsePolishToken();
+            if (error != null)
+                return;
+            if (op == null)
+                continue;
+            if (operandCount < op.getArity()) {
+                fail(ParseResult.ErrorCode.MISSING_OPERANDS, "Missing operands for " + op.getName() + ".");
+                return;
+            }
+            builder.operation(op);
+            operandCount -= op.getArity() - 1;
+            nodeCount++;
+        }
+
+        tokenStart = index;
+        if (operandCount != 1)
+            fail(ParseResult.ErrorCode.OPERAND_MISMATCH, "Mismatch in number of operands and operators.");
+    }
+
+    /**
+     * Parses prefix notation. Every operator precedes its operands, so it
+     * waits on the operator stack until they have all been read, then it
+     * is handed to the builder. Completing an operation completes an
+     * operand of the operator below it, and so on down the stack.
+     */
+    private void parsePrefix() {
+        while (hasNextToken()) {
+            tokenStart = index;
+            // Once the root has all of its operands, there can't be more tokens
+            if (operandCount > 0 && operatorCount == 0) {
+                fail(ParseResult.ErrorCode.OPERAND_MISMATCH, "Mismatch in number of operands and operators.");
+                return;
+            }
+            Operator op = parsePolishToken();
+            if (error != null)
+                return;
+            if (op != null) {
+                pushOperator(op.getId());
+                pendingOperands[operatorCount - 1] = op.getArity();
+                continue;
+            }
+
+            while (operatorCount > 0 && --pendingOperands[operatorCount - 1] == 0) {
+                Operator complete = registry.getOperator(operators[--operatorCount]);
+                builder.operation(complete);
+                operandCount -= complete.getArity() - 1;
+                nodeCount++;
+            }
+        }
+
+        tokenStart = index;
+        if (operatorCount > 0)
+            fail(ParseResult.ErrorCode.MISSING_OPERANDS, "Missing operands for "
+                    + registry.getOperator(operators[operatorCount - 1]).getName() + ".");
+        else if (operandCount != 1)
+            fail(ParseResult.ErrorCode.OPERAND_MISMATCH, "Mismatch in number of operands and operators.");
+    }
+
+    /**
+     * Parses a single token of prefix or postfix notation. Operands are
+     * handed to the builder and pushed, operators are returned for the
+     * caller to place.
+     *
+     * @return the operator read, or null if the token was an operand or unknown
+     */
+    private Operator parsePolishToken() {
+        char c = input.charAt(index);
+        boolean negative = c == '-' && hasChar(1) && Character.isDigit(input.charAt(index + 1));
+        if (negative || Character.isDigit(c)) {
+            if (negative)
+                index++;
+            parseNumber(negative);
+            pushOperand();
+            return null;
+        }
+        if (isIdentifierStart(c)) {
+            int hash = readIdentifier();
+            Operator op = registry.findNamed(input, tokenStart, index, hash);
+            if (op != null)
+                return op;
+            int slot = variable(tokenStart, index, hash);
+            builder.variable(variables.get(slot), slot);
+            pushOperand();
+            return null;
+        }
+        if (c == '(') {
+            // A variable with the same name as an operator, written as (name)
+            index++;
+            int start = index;
+            int hash = 0;
+            while (hasChar(0) && (index == start ? isIdentifierStart(input.charAt(index))
+                    : isIdentifierPart(input.charAt(index))))
+                hash = 31 * hash + input.charAt(index++);
+            if (index == start || !hasChar(0) || input.charAt(index) != ')') {
+                fail(ParseResult.ErrorCode.UNKNOWN_TOKEN, "Unknown token: " + c);
+                return null;
+            }
+            int slot = variable(start, index, hash);
+            index++;
+            builder.variable(variables.get(slot), slot);
+            pushOperand();
+            return null;
+        }
+
+        Operator op = registry.getBinary(c);
+        if (op == null)
+            fail(ParseResult.ErrorCode.UNKNOWN_TOKEN, "Unknown token: " + c);
+        else
+            index++;
+        return op;
+    }
+
+    /**
+     * Returns whether or not we should reduce based on the next operator in the input and
+     * the operator on the top of the operators stack. For left associative operators we want
+     * to reduce whenever the top of the stack has a precedence greater than or equal to the next operator.
+     * For right associative, we only reduce when the precedence of the top of the stack is strictly greater
+     * than the precedence of the next operator. Parentheses have the lowest precedence, so they are
+     * never reduced here.
+     *
+     * @param operatorStackTop The id of the operator on the top of the operator stack, or PAREN
+     * @param nextOperator     The next operator in the input
+     * @return true iff we should perform a reduce operation
+     */
+    private boolean reduceForAssociativity(int operatorStackTop, Operator nextOperator) {
+        if (operatorStackTop == PAREN)
+            return false;
+        int topPrecedence = registry.getOperator(operatorStackTop).getPrecedence();
+        if (nextOperator.isRightAssociative()) {
+            return topPrecedence > nextOperator.getPrecedence();
+        }
+        // Operator must be left associative
+        return topPrecedence >= nextOperator.getPrecedence();
+    }
+
+    /**
+     * Handles a close parenthesis: reduces until the matching open
+     * parenthesis, and if it was a function call, reduces the call.
+     *
+     * @return false if the expression is malformed
+     */
+    private boolean closeParen() {
+        // Reduce until we find the opening parenthesis
+        while (operatorCount > 0 && operators[operatorCount - 1] != PAREN) {
+            if (!reduce())
+                return false;
+        }
+
+        if (operatorCount == 0)
+            return fail(ParseResult.ErrorCode.UNMATCHED_CLOSE_PARENTHESIS, "No matching open parentheses found.");
+        // We found it, now get rid of the opening parenthesis
+        operatorCount--;
+
+        Operator function = getCall(operatorCount);
+        if (function != null) {
+            int operandsSince = operandCount - callStarts[operatorCount];
+            int arguments = operandsSince == 0 && callCommas[operatorCount] == 0 ? 0 : callCommas[operatorCount] + 1;
+            if (arguments != function.getArity())
+                return fail(ParseResult.ErrorCode.WRONG_ARGUMENT_COUNT, function.getSymbol() + " takes "
+                        + function.getArity() + (function.getArity() == 1 ? " argument" : " arguments")
+                        + ", found " + arguments + ".");
+            if (operandsSince != arguments)
+                return fail(ParseResult.ErrorCode.MALFORMED_ARGUMENTS,
+                        "Malformed arguments to " + function.getSymbol() + ".");
+            return reduce();
+        }
+        return true;
+    }
+
+    /**
+     * Handles a comma between the arguments of a function call
+     *
+     * @return false if the expression is malformed
+     */
+    private boolean nextArgument() {
+        while (operatorCount > 0 && operators[operatorCount - 1] != PAREN) {
+            if (!reduce())
+                return false;
+        }
+
+        Operator function = operatorCount == 0 ? null : getCall(operatorCount - 1);
+        if (function == null)
+            return fail(ParseResult.ErrorCode.UNEXPECTED_COMMA, "Unexpected , outside of a function call.");
+        // Every argument so far must have been a single operand
+        int paren = operatorCount - 1;
+        if (operandCount - callStarts[paren] != callCommas[paren] + 1)
+            return fail(ParseResult.ErrorCode.MALFORMED_ARGUMENTS,
+                    "Malformed arguments to " + function.getSymbol() + ".");
+        callCommas[paren]++;
+        return true;
+    }
+
+    /**
+     * @param paren the index of an open parenthesis on the operator stack
+     * @return the function the parenthesis calls, or null if it doesn't start a call
+     */
+    private Operator getCall(int paren) {
+        if (paren == 0 || operators[paren - 1] == PAREN)
+            return null;
+        Operator op = registry.getOperator(operators[paren - 1]);
+        return op.isFunction() ? op : null;
+    }
+
+    /**
+     * The reduce subroutine. In reduce, we pop the operator off the top of the operator stack and
+     * pair it with the two operands on the top of the operands stack, or the one operand of a
+     * unary operator. The builder replaces those operands with the operation on them.
+     *
+     * @return false if the expression is malformed
+     */
+    private boolean reduce() {
+        if (operatorCount == 0)
+            return fail(ParseResult.ErrorCode.MISSING_OPERATOR, "Missing operator to reduce");
+        if (operandCount == 0)
+            return fail(ParseResult.ErrorCode.MISSING_RIGHT_OPERAND, "Missing right hand side operand");
+
+        int id = operators[--operatorCount];
+        Operator op = id == PAREN ? null : registry.getOperator(id);
+        if (op != null && op.getArity() == 1) {
+            // Replaces the operand on the top of the stack
+            builder.operation(op);
+            nodeCount++;
+            return true;
+        }
+
+        operandCount--;
+        if (operandCount == 0)
+            return fail(ParseResult.ErrorCode.MISSING_LEFT_OPERAND, "Missing left hand side operand");
+        // Only an open parenthesis which was never closed is reduced
+        if (op == null)
+            return fail(ParseResult.ErrorCode.UNMATCHED_OPEN_PARENTHESIS, "No matching close parentheses found.");
+
+        // Replaces the two operands on the top of the stack
+        builder.operation(op);
+        nodeCount++;
+        return true;
+    }
+
+    private void pushOperator(int id) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+            callStarts = Arrays.copyOf(callStarts, operatorCount * 2);
+            callCommas = Arrays.copyOf(callCommas, operatorCount * 2);
+            pendingOperands = Arrays.copyOf(pendingOperands, operatorCount * 2);
+        }
+        operators[operatorCount++] = id;
+    }
+
+    private void pushParen() {
+        pushOperator(PAREN);
+        callStarts[operatorCount - 1] = operandCount;
+        callCommas[operatorCount - 1] = 0;
+    }
+
+    private void pushOperand() {
+        operandCount++;
+        nodeCount++;
+    }
+
+    /**
+     * Checks whether or not there are any more tokens left in the input.
+     * (i.e. if there are any non-white-space characters left).
+     * This method has the side effect of advancing the input to the next
+     * non-white-space character.
+     *
+     * @return true iff there are more tokens remaining
+     */
+    private boolean hasNextToken() {
+        while (hasChar(0) && Character.isWhitespace(input.charAt(index))) {
+            index++;
+            tokenStart = index;
+        }
+        return hasChar(0);
+    }
+
+    /**
+     * Checks whether there is a character at the given distance from index,
+     * reading more of a streamed input if needed
+     *
+     * @param ahead how far past index the character is
+     * @return true iff input.charAt(index + ahead) exists
+     */
+    private boolean hasChar(int ahead) {
+        return index + ahead < limit || fill(ahead);
+    }
+
+    /**
+     * Reads more characters from the reader into the window, first dropping
+     * the characters before the current token. Fields holding positions in
+     * the window are moved along with its characters.
+     *
+     * @param ahead how far past index a character is needed
+     * @return true iff there is now a character at index + ahead
+     */
+    private boolean fill(int ahead) {
+        if (reader == null)
+            return false;
+        char[] chars = window.chars;
+        if (tokenStart > 0) {
+            System.arraycopy(chars, tokenStart, chars, 0, limit - tokenStart);
+            windowOffset += tokenStart;
+            index -= tokenStart;
+            limit -= tokenStart;
+            tokenStart = 0;
+        }
+        try {
+            while (index + ahead >= limit) {
+                if (limit == chars.length) {
+                    // A single token fills the window
+                    chars = Arrays.copyOf(chars, chars.length * 2);
+                    window.chars = chars;
+                }
+                int read = reader.read(chars, limit, chars.length - limit);
+                if (read < 0)
+                    break;
+                limit += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        window.length = limit;
+        return index + ahead < limit;
+    }
+
+    /**
+     * Parses a number from the input: an integer literal, or a decimal
+     * literal such as 2.5 if the digits are followed by a decimal point and
+     * more digits. An integer too large for a long is parsed as a decimal
+     * literal, rather than wrapping around. The literal is given to the builder.
+     *
+     * @param negative whether the literal is negated, by a - already read
+     */
+    private void parseNumber(boolean negative) {
+        // Relative to tokenStart, which moves if the window is refilled
+        int digitsOffset = index - tokenStart;
+        // Accumulate the negated value, as Long.parseLong does, so that a
+        // negative literal can reach Long.MIN_VALUE
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long num = 0;
+        boolean overflow = false;
+        while (hasChar(0) && Character.isDigit(input.charAt(index))) {
+            int digit = input.charAt(index++) - '0';
+            if (num < limit / 10 || num * 10 < limit + digit)
+                overflow = true;
+            else
+                num = num * 10 - digit;
+        }
+        boolean fraction = hasChar(1) && input.charAt(index) == '.' && Character.isDigit(input.charAt(index + 1));
+        if (fraction || overflow) {
+            if (fraction) {
+                index++;
+                while (hasChar(0) && Character.isDigit(input.charAt(index)))
+                    index++;
+            }
+            double value = parseDecimal(tokenStart + digitsOffset, index);
+            builder.decimal(negative ? -value : value);
+            return;
+        }
+        builder.literal(negative ? num : -num);
+    }
+
+    /**
+     * Converts a decimal literal to the nearest double. Literals whose digits,
+     * ignoring the decimal point, are at most 2^53 and which have at most 22
+     * decimal places are converted by a single correctly rounded division,
+     * without creating a String. Others are given to Double.parseDouble.
+     *
+     * @param start the index of the literal's first digit
+     * @param end   one past the index of the literal's last digit
+     * @return the value of the literal
+     */
+    private double parseDecimal(int start, int end) {
+        long mantissa = 0;
+        int decimalPlaces = 0;
+        boolean afterPoint = false;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c == '.') {
+                afterPoint = true;
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            if (mantissa > MAX_EXACT_MANTISSA)
+                return Double.parseDouble(input.subSequence(start, end).toString());
+            if (afterPoint)
+                decimalPlaces++;
+        }
+        if (decimalPlaces >= POWERS_OF_TEN.length)
+            return Double.parseDouble(input.subSequence(start, end).toString());
+        // Both are exact doubles, so the division is correctly rounded
+        return mantissa / POWERS_OF_TEN[decimalPlaces];
+    }
+
+    /**
+     * Parses an identifier from the input. A function name followed by an
+     * open parenthesis starts a call, any other identifier is a variable.
+     */
+    private void parseIdentifier() {
+        int hash = readIdentifier();
+        int nameLength = index - tokenStart;
+
+        Operator function = registry.findFunction(input, tokenStart, index, hash);
+        if (function != null) {
+            // Skipping whitespace up to the next token changes nothing if
+            // this turns out to be a variable. The name stays in the window.
+            while (hasChar(0) && Character.isWhitespace(input.charAt(index)))
+                index++;
+            if (hasChar(0) && input.charAt(index) == '(') {
+                index++;
+                pushOperator(function.getId());
+                pushParen();
+                expectOperand = true;
+                return;
+            }
+        }
+        int slot = variable(tokenStart, tokenStart + nameLength, hash);
+        builder.variable(variables.get(slot), slot);
+        pushOperand();
+        expectOperand = false;
+    }
+
+    /**
+     * Reads an identifier starting at tokenStart
+     *
+     * @return the hash code of the identifier, the same as String.hashCode()
+     */
+    private int readIdentifier() {
+        int hash = 0;
+        while (hasChar(0) && (index == tokenStart || isIdentifierPart(input.charAt(index))))
+            hash = 31 * hash + input.charAt(index++);
+        return hash;
+    }
+
+    /**
+     * Resolves a variable name to a slot. The first occurrence of each name
+     * is given the next free slot.
+     *
+     * @param start the index of the first character of the name
+     * @param end   one past the index of the last character of the name
+     * @param hash  the hash code of the name
+     * @return the variable's slot
+     */
+    private int variable(int start, int end, int hash) {
+        int slot = findVariable(start, end, hash);
+        if (slot == -1) {
+            slot = variables.size();
+            if (slot == variableHashes.length)
+                variableHashes = Arrays.copyOf(variableHashes, slot * 2);
+            variableHashes[slot] = hash;
+            variables.add(input.subSequence(start, end).toString());
+        }
+        return slot;
+    }
+
+    /**
+     * Finds the slot of a variable which has already been seen.
+     *
+     * @param start the index of the first character of the name
+     * @param end   one past the index of the last character of the name
+     * @param hash  the hash code of the name
+     * @return the variable's slot, or -1 if this is its first occurrence
+     */
+    private int findVariable(int start, int end, int hash) {
+        for (int slot = 0; slot < variables.size(); slot++) {
+            if (variableHashes[slot] == hash && matches(variables.get(slot), start, end))
+                return slot;
+        }
+        return -1;
+    }
+
+    private boolean matches(String name, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != input.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param c character to check
+     * @return true iff c can be the first character of a variable name
+     */
+    static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    /**
+     * @param c character to check
+     * @return true iff c can appear after the first character of a variable name
+     */
+    static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Hands the nodes of an existing tree to a builder in postfix order, as
+     * if it had just been parsed. Walks the tree with an explicit stack, so
+     * trees of any depth can be replayed.
+     *
+     * @param root    the root of the tree
+     * @param builder receives the nodes of the tree
+     */
+    static void replay(Token root, Builder builder) {
+        // The stack of operators whose operands are being replayed and,
+        // for each, the next operand to replay
+        Token[] operators = new Token[16];
+        Token[] nextOperands = new Token[16];
+        int top = 0;
+
+        Token tok = root;
+        while (true) {
+            // Go down the tree until we reach a leaf
+            while (tok instanceof OperatorToken) {
+                Token lhs = ((OperatorToken) tok).getLeftOperand();
+                if (top == operators.length) {
+                    operators = Arrays.copyOf(operators, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                }
+                operators[top] = tok;
+                nextOperands[top] = ((OperatorToken) tok).getRightOperand();
+                top++;
+                tok = lhs;
+            }
+
+            if (tok instanceof OperandToken) {
+                builder.literal(((OperandToken) tok).getLongValue());
+            } else if (tok instanceof DecimalToken) {
+                builder.decimal(((DecimalToken) tok).getValue());
+            } else if (tok instanceof VariableToken) {
+                VariableToken var = (VariableToken) tok;
+                builder.variable(var.getName(), var.getSlot());
+            } else {
+                throw new IllegalStateException("Unknown token: " + tok);
+            }
+
+            // Go back up until we find an operator with operands left to replay
+            while (top > 0 && nextOperands[top - 1] == null) {
+                top--;
+                builder.operation(((OperatorToken) operators[top]).getOperator());
+            }
+            if (top == 0)
+                return;
+
+            tok = nextOperands[top - 1];
+            nextOperands[top - 1] = null;
+        }
+    }
+
+    /**
+     * Evaluates the expression as it is parsed, keeping the int values of
+     * the operands on its stack rather than their trees. Evaluation gives
+     * the same values as Token.evalToken, in the same order, so the first
+     * exception thrown is the same. The exception is kept until the whole
+     * expression has been parsed, and no more operators are applied after it.
+     */
+    private static class ValueBuilder implements Builder {
+
+        private int[] operands = new int[16];
+        private int operandCount;
+        private RuntimeException failure;
+
+        @Override
+        public void literal(long value) {
+            push((int) value);
+        }
+
+        @Override
+        public void decimal(double value) {
+            fail(new UnsupportedOperationException("Decimal literal " + value + " can only be evaluated as a double."));
+            push(0);
+        }
+
+        @Override
+        public void variable(String name, int slot) {
+            // Reported once the expression is parsed, by getValue
+            push(0);
+        }
+
+        @Override
+        public void operation(Operator op) {
+            if (op.getArity() == 1) {
+                if (failure == null)
+                    operands[operandCount - 1] = apply(op, operands[operandCount - 1], 0);
+                return;
+            }
+            operandCount--;
+            if (failure == null)
+                operands[operandCount - 1] = apply(op, operands[operandCount - 1], operands[operandCount]);
+        }
+
+        private int apply(Operator op, int lhs, int rhs) {
+            try {
+                // The standard operators are applied inline, as in Program,
+                // rather than through their lambdas
+                switch (op.getId()) {
+                    case Operator.ADD:
+                        return lhs + rhs;
+                    case Operator.SUBTRACT:
+                        return lhs - rhs;
+                    case Operator.MULTIPLY:
+                        return lhs * rhs;
+                    case Operator.DIVIDE:
+                        // Thrown explicitly, since the JIT may replace an
+                        // often thrown implicit exception with one without
+                        // a message
+                        if (rhs == 0)
+                            throw new ArithmeticException("/ by zero");
+                        return lhs / rhs;
+                    case Operator.POWER:
+                        return Operator.pow(lhs, rhs);
+                    case Operator.NEGATE:
+                        return -lhs;
+                    default:
+                        return op.getArity() == 1 ? op.applyAsInt(lhs) : op.applyAsInt(lhs, rhs);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return 0;
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            if (failure == null)
+                failure = e;
+        }
+
+        private void push(int value) {
+            if (operandCount == operands.length)
+                operands = Arrays.copyOf(operands, operandCount * 2);
+            operands[operandCount++] = value;
+        }
+
+        /**
+         * @return the value of a completely parsed expression
+         */
+        int getResult() {
+            RuntimeException e = failure;
+            if (e != null) {
+                failure = null;
+                throw e;
+            }
+            return operands[0];
+        }
+
+        void clear() {
+            operandCount = 0;
+            failure = null;
+        }
+    }
+
+    /**
+     * The characters of a streamed expression currently held in memory
+     */
+    private static class Window implements CharSequence {
+
+        private char[] chars;
+        private int length;
+
+        Window(int capacity) {
+            chars = new char[capacity];
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    /**
+     * Receives the nodes of a parsed tree in postfix order, so every
+     * operation comes after its operands. The builder keeps its own operand
+     * stack: leaves are pushed onto it, and an operation replaces the one
+     * or two operands on the top of it with itself.
+     */
+    interface Builder {
+
+        void literal(long value);
+
+        void decimal(double value);
+
+        void variable(String name, int slot);
+
+        void operation(Operator op);
+    }
+
+    // Receives the nodes of a tree without building anything, for validate
+    private static final Builder CHECKER = new Builder() {
+        @Override
+        public void literal(long value) {
+        }
+
+        @Override
+        public void decimal(double value) {
+        }
+
+        @Override
+        public void variable(String name, int slot) {
+        }
+
+        @Override
+        public void operation(Operator op) {
+        }
+    };
+
+    /**
+     * Builds the tree out of Tokens. Each OperatorToken is created with its
+     * operands, so the tree is immutable from the start.
+     */
+    private static class TokenBuilder implements Builder {
+
+        private Token[] operands = new Token[16];
+        private int operandCount;
+        private int height;
+
+        @Override
+        public void literal(long value) {
+            push(new OperandToken(value));
+        }
+
+        @Override
+        public void decimal(double value) {
+            push(new DecimalToken(value));
+        }
+
+        @Override
+        public void variable(String name, int slot) {
+            push(new VariableToken(name, slot));
+        }
+
+        @Override
+        public void operation(Operator op) {
+            if (op.getArity() == 1) {
+                operands[operandCount - 1] = new OperatorToken(op, operands[operandCount - 1]);
+                return;
+            }
+            Token rhs = operands[--operandCount];
+            operands[operandCount] = null;
+            operands[operandCount - 1] = new OperatorToken(op, operands[operandCount - 1], rhs);
+        }
+
+        private void push(Token tok) {
+            if (operandCount == operands.length)
+                operands = Arrays.copyOf(operands, operandCount * 2);
+            operands[operandCount++] = tok;
+        }
+
+        /**
+         * @return the root of a completely parsed tree
+         */
+        Token root() {
+            height = OperatorToken.heightOf(operands[0]);
+            return operands[0];
+        }
+
+        void clear() {
+            Arrays.fill(operands, 0, operandCount, null);
+            operandCount = 0;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+import java.util.Arrays;
+
+/**
+ * A compiled form of an expression tree. The tree is lowered once into a
+ * flat postfix program (opcodes with inline literals) which is then run on
+ * a small stack machine. Evaluating a Program does not walk the tree and
+ * does not allocate; the operand stack is sized at compile time.
+ * <p>
+ * For example, 1 + 2 * x is lowered to
+ * <p>
+ * PUSH 1 PUSH 2 MUL_VARIABLE 0 ADD
+ * <p>
+ * A Program owns its operand stack, so a single instance must not be
+ * evaluated by multiple threads at once.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class Program {
+
+    // Opcodes. PUSH is followed by the literal to push and LOAD by the slot
+    // of the variable to push. The binary opcodes pop their two operands
+    // and push the result.
+    public static final int PUSH = 0;
+    public static final int ADD = 1;
+    public static final int SUB = 2;
+    public static final int MUL = 3;
+    public static final int DIV = 4;
+    public static final int POW = 5;
+    public static final int LOAD = 6;
+    public static final int NEG = 7;
+
+    // Operators without an opcode of their own, such as functions and
+    // operators added to an OperatorRegistry, are called through their
+    // lambdas. CALL_UNARY and CALL_BINARY are followed by the index of the
+    // operator in the program's operator table.
+    public static final int CALL_UNARY = 32;
+    public static final int CALL_BINARY = 33;
+
+    // Each binary opcode has a form whose right hand side is a literal
+    // stored inline, i.e. PUSH 2 ADD is emitted as ADD_LITERAL 2. Most
+    // expressions have many literal operands, so this halves the number
+    // of instructions dispatched for them.
+    private static final int LITERAL = 8;
+    public static final int ADD_LITERAL = ADD | LITERAL;
+    public static final int SUB_LITERAL = SUB | LITERAL;
+    public static final int MUL_LITERAL = MUL | LITERAL;
+    public static final int DIV_LITERAL = DIV | LITERAL;
+    public static final int POW_LITERAL = POW | LITERAL;
+
+    // Likewise for a variable right hand side, PUSH 2 LOAD 0 MUL is
+    // emitted as PUSH 2 MUL_VARIABLE 0.
+    private static final int VARIABLE = 16;
+    public static final int ADD_VARIABLE = ADD | VARIABLE;
+    public static final int SUB_VARIABLE = SUB | VARIABLE;
+    public static final int MUL_VARIABLE = MUL | VARIABLE;
+    public static final int DIV_VARIABLE = DIV | VARIABLE;
+    public static final int POW_VARIABLE = POW | VARIABLE;
+
+    private final int[] code;
+    private final Operator[] operators;
+    private final int[] stack;
+    private final int variableCount;
+
+    private Program(int[] code, Operator[] operators, int maxStack, int variableCount) {
+        this.code = code;
+        this.operators = operators;
+        this.stack = new int[maxStack];
+        this.variableCount = variableCount;
+    }
+
+    /**
+     * Lowers an expression tree into a Program.
+     *
+     * @param root the root of the expression tree
+     * @return a Program which evaluates to the same value as the tree
+     */
+    public static Program compile(Token root) {
+        Emitter emitter = new Emitter();
+        emitter.emit(root);
+        return new Program(emitter.toCode(), emitter.toOperators(), emitter.maxDepth, emitter.variableCount);
+    }
+
+    /**
+     * Gets the opcode which implements the given operator
+     *
+     * @param op the operator
+     * @return the opcode for the operator, or -1 if it has to be called
+     * with CALL_UNARY or CALL_BINARY
+     */
+    public static int getOpcode(Operator op) {
+        switch (op.getId()) {
+            case Operator.ADD:
+                return ADD;
+            case Operator.SUBTRACT:
+                return SUB;
+            case Operator.MULTIPLY:
+                return MUL;
+            case Operator.DIVIDE:
+                return DIV;
+            case Operator.POWER:
+                return POW;
+            case Operator.NEGATE:
+                return NEG;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Runs the program and returns the integer result.
+     *
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if the program reads any variables
+     */
+    public int evaluate() {
+        return evaluate(Expression.NO_BINDINGS);
+    }
+
+    /**
+     * Runs the program with the given variable values and returns the
+     * integer result. Operators have the same semantics as their int
+     * lambdas, including integer overflow and an ArithmeticException
+     * on division by zero.
+     *
+     * @param bindings the values of the variables, indexed by slot
+     * @return the result of the evaluated expression
+     * @throws IllegalArgumentException if there are fewer bindings than variables
+     */
+    public int evaluate(int[] bindings) {
+        Expression.checkBindings(bindings, variableCount);
+        final int[] code = this.code;
+        final Operator[] operators = this.operators;
+        final int[] stack = this.stack;
+        // The top of the stack is kept in a local, only the values
+        // below it live in the stack array.
+        int top = 0;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case PUSH:
+                    stack[sp++] = top;
+                    top = code[pc++];
+                    break;
+                case LOAD:
+                    stack[sp++] = top;
+                    top = bindings[code[pc++]];
+                    break;
+                case ADD:
+                    top = stack[--sp] + top;
+                    break;
+                case SUB:
+                    top = stack[--sp] - top;
+                    break;
+                case MUL:
+                    top = stack[--sp] * top;
+                    break;
+                case DIV:
+                    top = stack[--sp] / top;
+                    break;
+                case POW:
+                    top = Operator.pow(stack[--sp], top);
+                    break;
+                case NEG:
+                    top = -top;
+                    break;
+                case CALL_UNARY:
+                    top = operators[code[pc++]].applyAsInt(top);
+                    break;
+                case CALL_BINARY:
+                    top = operators[code[pc++]].applyAsInt(stack[--sp], top);
+                    break;
+                case ADD_LITERAL:
+                    top = top + code[pc++];
+                    break;
+                case SUB_LITERAL:
+                    top = top - code[pc++];
+                    break;
+                case MUL_LITERAL:
+                    top = top * code[pc++];
+                    break;
+                case DIV_LITERAL:
+                    top = top / code[pc++];
+                    break;
+                case POW_LITERAL:
+                    top = Operator.pow(top, code[pc++]);
+                    break;
+                case ADD_VARIABLE:
+                    top = top + bindings[code[pc++]];
+                    break;
+                case SUB_VARIABLE:
+                    top = top - bindings[code[pc++]];
+                    break;
+                case MUL_VARIABLE:
+                    top = top * bindings[code[pc++]];
+                    break;
+                case DIV_VARIABLE:
+                    top = top / bindings[code[pc++]];
+                    break;
+                case POW_VARIABLE:
+                    top = Operator.pow(top, bindings[code[pc++]]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + code[pc - 1]);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @return the number of ints in this program's code
+     */
+    public int length() {
+        return code.length;
+    }
+
+    /**
+     * @return the program's code, which must not be modified
+     */
+    int[] getCode() {
+        return code;
+    }
+
+    /**
+     * @return the operators called by CALL_UNARY and CALL_BINARY, by index
+     */
+    Operator[] getOperators() {
+        return operators;
+    }
+
+    /**
+     * @return the most values the program keeps on its operand stack
+     */
+    int getMaxStack() {
+        return stack.length;
+    }
+
+    /**
+     * @return the number of variable slots the program reads
+     */
+    int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * Walks an expression tree in postfix order and appends the
+     * matching instructions to a growable code buffer. The tree is walked
+     * with an explicit stack, so trees of any depth can be lowered.
+     */
+    private static class Emitter {
+
+        private int[] code = new int[16];
+        private int length;
+        private Operator[] operators = new Operator[0];
+        private int depth;
+        private int maxDepth;
+        private int variableCount;
+
+        void emit(Token root) {
+            // The stack of operators whose operands are being emitted and,
+            // for each, the next operand to emit
+            OperatorToken[] pending = new OperatorToken[16];
+            Token[] nextOperands = new Token[16];
+            int top = 0;
+
+            Token tok = root;
+            while (true) {
+                // Go down the left operands until we reach a leaf
+                while (tok instanceof OperatorToken) {
+                    OperatorToken op = (OperatorToken) tok;
+                    if (top == pending.length) {
+                        pending = Arrays.copyOf(pending, top * 2);
+                        nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                    }
+                    pending[top] = op;
+                    // A right hand side folded into the operator's instruction isn't emitted on its own
+                    nextOperands[top] = isFolded(op) ? null : op.getRightOperand();
+                    top++;
+                    tok = op.getLeftOperand();
+                }
+                emitLeaf(tok);
+
+                // Go back up, emitting every operator whose operands are all emitted
+                while (top > 0 && nextOperands[top - 1] == null) {
+                    top--;
+                    emitOperator(pending[top]);
+                    pending[top] = null;
+                }
+                if (top == 0)
+                    return;
+
+                tok = nextOperands[top - 1];
+                nextOperands[top - 1] = null;
+            }
+        }
+
+        /**
+         * @return true iff the operator's right hand side is a literal or
+         * variable stored inline in the operator's instruction
+         */
+        private static boolean isFolded(OperatorToken tok) {
+            Token rhs = tok.getRightOperand();
+            return getOpcode(tok.getOperator()) >= 0 && (rhs instanceof OperandToken || rhs instanceof VariableToken);
+        }
+
+        private void emitLeaf(Token tok) {
+            if (tok instanceof OperandToken) {
+                append(PUSH);
+                append(((OperandToken) tok).getValue());
+            } else if (tok instanceof VariableToken) {
+                append(LOAD);
+                append(slotOf((VariableToken) tok));
+            } else if (tok instanceof DecimalToken) {
+                throw new UnsupportedOperationException("Decimal literal " + ((DecimalToken) tok).getValue()
+                        + " can only be evaluated as a double.");
+            } else {
+                throw new IllegalStateException("Unknown token: " + tok);
+            }
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void emitOperator(OperatorToken tok) {
+            Operator op = tok.getOperator();
+            int opcode = getOpcode(op);
+            if (op.getArity() == 1) {
+                if (opcode < 0) {
+                    append(CALL_UNARY);
+                    append(indexOf(op));
+                } else {
+                    append(opcode);
+                }
+                return;
+            }
+
+            Token rhs = tok.getRightOperand();
+            if (opcode < 0) {
+                append(CALL_BINARY);
+                append(indexOf(op));
+                depth--;
+            } else if (rhs instanceof OperandToken) {
+                // Fold the literal into the operator instruction
+                append(opcode | LITERAL);
+                append(((OperandToken) rhs).getValue());
+            } else if (rhs instanceof VariableToken) {
+                append(opcode | VARIABLE);
+                append(slotOf((VariableToken) rhs));
+            } else {
+                append(opcode);
+                depth--;
+            }
+        }
+
+        private int slotOf(VariableToken var) {
+            variableCount = Math.max(variableCount, var.getSlot() + 1);
+            return var.getSlot();
+        }
+
+        private int indexOf(Operator op) {
+            for (int i = 0; i < operators.length; i++) {
+                if (operators[i] == op)
+                    return i;
+            }
+            operators = Arrays.copyOf(operators, operators.length + 1);
+            operators[operators.length - 1] = op;
+            return operators.length - 1;
+        }
+
+        private void append(int value) {
+            if (length == code.length)
+                code = Arrays.copyOf(code, length * 2);
+            code[length++] = value;
+        }
+
+        int[] toCode() {
+            return Arrays.copyOf(code, length);
+        }
+
+        Operator[] toOperators() {
+            return operators;
+        }
+    }
+}
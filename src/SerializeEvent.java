@@ -0,0 +1,17 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when an Expression is written out in one of its notations
+ *
+ * @author Samuel Laberge, 2020
+ */
+@Name("expression.Serialize")
+@Label("Expression Serialization")
+@Description("Writing an expression tree in prefix, postfix, lisp or infix notation")
+class SerializeEvent extends ExpressionEvent {
+
+    @Label("Notation")
+    String notation;
+}
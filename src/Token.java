@@ -1,52 +1,65 @@
 /**
  * Represents a token in the Abstract Syntax Tree
- * for the expression.
- * This token can have multiple children. So the first child is stored in the child
- * instance variable and this token's sibling is stored in the sibling instance variable.
+ * for the expression. Operands and variables are leaves, and an
+ * OperatorToken holds its operands.
  * <p>
- * this
- * /
- * /
- * child1 ---> child2
- * <p>
- * This format allows for trees with more than 2 children (although all the operators
- * currently implemented only use 2 operands).
+ * Tokens are immutable: an OperatorToken is given its operands when it is
+ * constructed and keeps them in final fields. So a finished tree can be
+ * shared by any number of threads without synchronization, and building a
+ * new tree over part of an existing one leaves the existing tree as it was.
  *
  * @author Samuel Laberge, 2020
  */
 public abstract class Token {
 
-    private Token child;
-    private Token sibling;
-
-    public Token getChild() {
-        return child;
-    }
-
-    public void setChild(Token t) {
-        child = t;
-    }
+    /**
+     * Evaluates this token and its subtrees.
+     *
+     * @param bindings the values of the expression's variables, indexed by slot
+     * @return the result of the evaluation of this token
+     */
+    public abstract int evalToken(int[] bindings);
 
-    public Token getSibling() {
-        return sibling;
-    }
+    /**
+     * Evaluates this token and its subtrees with 64-bit integer arithmetic.
+     *
+     * @param bindings the values of the expression's variables, indexed by slot
+     * @return the result of the evaluation of this token
+     */
+    public abstract long evalLong(long[] bindings);
 
-    public void setSibling(Token t) {
-        sibling = t;
-    }
+    /**
+     * Evaluates this token and its subtrees with double arithmetic.
+     *
+     * @param bindings the values of the expression's variables, indexed by slot
+     * @return the result of the evaluation of this token
+     */
+    public abstract double evalDouble(double[] bindings);
 
     /**
-     * Evaluates this token and its subtrees.
+     * Evaluates this token and its subtrees, which must not contain variables.
      *
      * @return the result of the evaluation of this token
      */
-    public abstract int evalToken();
+    public int evalToken() {
+        return evalToken(Expression.NO_BINDINGS);
+    }
+
+    // String representations of this token and its subtrees. See TreeWriter.
 
-    public abstract String postfixString();
+    public String postfixString() {
+        return TreeWriter.toString(this, TreeWriter.Notation.POSTFIX);
+    }
 
-    public abstract String prefixString();
+    public String prefixString() {
+        return TreeWriter.toString(this, TreeWriter.Notation.PREFIX);
+    }
 
-    public abstract String infixString();
+    public String infixString() {
+        return TreeWriter.toString(this, TreeWriter.Notation.INFIX);
+    }
 
-    public abstract String lispString();
+    public String lispString() {
+        return TreeWriter.toString(this, TreeWriter.Notation.LISP);
+    }
 }
@@ -0,0 +1,174 @@
+import java.util.Arrays;
+
+/**
+ * Evaluates expression trees without recursion, as ints, longs or doubles. The tree is walked with an
+ * explicit stack of operators and a stack of operand values, so trees of any
+ * depth can be evaluated, i.e. the left-leaning tree of 1 + 1 + ... + 1 with
+ * a million terms.
+ * <p>
+ * Evaluation gives the same results as Token.evalToken, and operands are
+ * evaluated in the same order.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class TreeEvaluator {
+
+    /**
+     * Evaluates a tree
+     *
+     * @param root     the root of the tree
+     * @param bindings the values of the variables, indexed by slot
+     * @param height   the height of the tree if known, used to size the
+     *                 stacks, or 0
+     * @return the result of the evaluation
+     */
+    public static int evaluate(Token root, int[] bindings, int height) {
+        int capacity = Math.max(16, height + 1);
+        // The stack of operators being evaluated and, for each, the next operand to evaluate
+        OperatorToken[] operators = new OperatorToken[capacity];
+        Token[] nextOperands = new Token[capacity];
+        int top = 0;
+        // The values of evaluated operands which are waiting for their operator
+        int[] values = new int[capacity + 1];
+        int valueCount = 0;
+
+        Token tok = root;
+        while (true) {
+            // Go down the tree until we reach a leaf
+            while (tok instanceof OperatorToken) {
+                Token lhs = ((OperatorToken) tok).getLeftOperand();
+
+                if (top == operators.length) {
+                    operators = Arrays.copyOf(operators, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                    values = Arrays.copyOf(values, top * 2 + 1);
+                }
+                operators[top] = (OperatorToken) tok;
+                nextOperands[top] = ((OperatorToken) tok).getRightOperand();
+                top++;
+                tok = lhs;
+            }
+            values[valueCount++] = tok.evalToken(bindings);
+
+            // Go back up, applying every operator whose operands are all evaluated
+            while (top > 0 && nextOperands[top - 1] == null) {
+                OperatorToken op = operators[--top];
+                if (op.getOperator().getArity() == 1) {
+                    values[valueCount - 1] = op.apply(values[valueCount - 1]);
+                } else {
+                    valueCount--;
+                    values[valueCount - 1] = op.apply(values[valueCount - 1], values[valueCount]);
+                }
+            }
+            if (top == 0)
+                return values[0];
+
+            tok = nextOperands[top - 1];
+            nextOperands[top - 1] = null;
+        }
+    }
+
+    /**
+     * Evaluates a tree with 64-bit integer arithmetic, in the same way as
+     * {@link #evaluate(Token, int[], int)}
+     *
+     * @param root     the root of the tree
+     * @param bindings the values of the variables, indexed by slot
+     * @param height   the height of the tree if known, used to size the
+     *                 stacks, or 0
+     * @return the result of the evaluation
+     */
+    public static long evaluateLong(Token root, long[] bindings, int height) {
+        int capacity = Math.max(16, height + 1);
+        OperatorToken[] operators = new OperatorToken[capacity];
+        Token[] nextOperands = new Token[capacity];
+        int top = 0;
+        long[] values = new long[capacity + 1];
+        int valueCount = 0;
+
+        Token tok = root;
+        while (true) {
+            while (tok instanceof OperatorToken) {
+                Token lhs = ((OperatorToken) tok).getLeftOperand();
+
+                if (top == operators.length) {
+                    operators = Arrays.copyOf(operators, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                    values = Arrays.copyOf(values, top * 2 + 1);
+                }
+                operators[top] = (OperatorToken) tok;
+                nextOperands[top] = ((OperatorToken) tok).getRightOperand();
+                top++;
+                tok = lhs;
+            }
+            values[valueCount++] = tok.evalLong(bindings);
+
+            while (top > 0 && nextOperands[top - 1] == null) {
+                OperatorToken op = operators[--top];
+                if (op.getOperator().getArity() == 1) {
+                    values[valueCount - 1] = op.applyLong(values[valueCount - 1]);
+                } else {
+                    valueCount--;
+                    values[valueCount - 1] = op.applyLong(values[valueCount - 1], values[valueCount]);
+                }
+            }
+            if (top == 0)
+                return values[0];
+
+            tok = nextOperands[top - 1];
+            nextOperands[top - 1] = null;
+        }
+    }
+
+    /**
+     * Evaluates a tree with double arithmetic, in the same way as
+     * {@link #evaluate(Token, int[], int)}
+     *
+     * @param root     the root of the tree
+     * @param bindings the values of the variables, indexed by slot
+     * @param height   the height of the tree if known, used to size the
+     *                 stacks, or 0
+     * @return the result of the evaluation
+     */
+    public static double evaluateDouble(Token root, double[] bindings, int height) {
+        int capacity = Math.max(16, height + 1);
+        OperatorToken[] operators = new OperatorToken[capacity];
+        Token[] nextOperands = new Token[capacity];
+        int top = 0;
+        double[] values = new double[capacity + 1];
+        int valueCount = 0;
+
+        Token tok = root;
+        while (true) {
+            while (tok instanceof OperatorToken) {
+                Token lhs = ((OperatorToken) tok).getLeftOperand();
+
+                if (top == operators.length) {
+                    operators = Arrays.copyOf(operators, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                    values = Arrays.copyOf(values, top * 2 + 1);
+                }
+                operators[top] = (OperatorToken) tok;
+                nextOperands[top] = ((OperatorToken) tok).getRightOperand();
+                top++;
+                tok = lhs;
+            }
+            values[valueCount++] = tok.evalDouble(bindings);
+
+            while (top > 0 && nextOperands[top - 1] == null) {
+                OperatorToken op = operators[--top];
+                if (op.getOperator().getArity() == 1) {
+                    values[valueCount - 1] = op.applyDouble(values[valueCount - 1]);
+                } else {
+                    valueCount--;
+                    values[valueCount - 1] = op.applyDouble(values[valueCount - 1], values[valueCount]);
+                }
+            }
+            if (top == 0)
+                return values[0];
+
+            tok = nextOperands[top - 1];
+            nextOperands[top - 1] = null;
+        }
+    }
+}
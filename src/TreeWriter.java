@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Writes expression trees as text in prefix, postfix, lisp or infix notation.
+ * <p>
+ * The tree is walked with an explicit stack rather than recursion, and every
+ * piece of text is appended straight to the output, so writing takes time
+ * linear in the size of the tree and works for trees of any depth. Nothing
+ * is allocated per token, except for decimal literals, which are formatted
+ * through a BigDecimal and a String.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class TreeWriter {
+
+    /**
+     * The notations a tree can be written in, i.e. for 1 + max(2, -x)
+     * <p>
+     * PREFIX:  + 1 max 2 neg x
+     * POSTFIX: 1 2 x neg max +
+     * LISP:    ( + 1 ( max 2 ( neg x ) ) )
+     * INFIX:   ( 1 + max ( 2 , ( - x ) ) )
+     * <p>
+     * In prefix and postfix notation a variable with the same name as a
+     * function or unary operator, such as a variable named max, is written
+     * in parentheses as (max) so that it is read back as a variable.
+     */
+    public enum Notation {
+        PREFIX, POSTFIX, LISP, INFIX
+    }
+
+    // Room for the digits of any long, including the sign
+    static final int MAX_LONG_LENGTH = 20;
+
+    /**
+     * Writes a tree to a String
+     *
+     * @param root     the root of the tree
+     * @param notation the notation to write the tree in
+     * @return the tree as a String
+     */
+    public static String toString(Token root, Notation notation) {
+        return toString(root, notation, OperatorRegistry.getDefault());
+    }
+
+    /**
+     * Writes a tree which will be read back with the given registry to a String
+     *
+     * @param root     the root of the tree
+     * @param notation the notation to write the tree in
+     * @param registry the registry the text will be parsed with
+     * @return the tree as a String
+     */
+    public static String toString(Token root, Notation notation, OperatorRegistry registry) {
+        StringBuilder out = new StringBuilder();
+        try {
+            write(root, notation, registry, out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a tree to an Appendable
+     *
+     * @param root     the root of the tree
+     * @param notation the notation to write the tree in
+     * @param out      where to write the tree
+     * @throws IOException if out throws
+     */
+    public static void write(Token root, Notation notation, Appendable out) throws IOException {
+        write(root, notation, OperatorRegistry.getDefault(), out);
+    }
+
+    /**
+     * Writes a tree which will be read back with the given registry to an Appendable
+     *
+     * @param root     the root of the tree
+     * @param notation the notation to write the tree in
+     * @param registry the registry the text will be parsed with
+     * @param out      where to write the tree
+     * @throws IOException if out throws
+     */
+    public static void write(Token root, Notation notation, OperatorRegistry registry, Appendable out)
+            throws IOException {
+        // The stack of operators being written and, for each, the next operand to write
+        Token[] operators = new Token[16];
+        Token[] nextOperands = new Token[16];
+        int top = 0;
+        char[] digits = new char[MAX_LONG_LENGTH];
+
+        Token tok = root;
+        while (true) {
+            // Go down the tree until we reach a leaf
+            while (tok instanceof OperatorToken) {
+                Token lhs = ((OperatorToken) tok).getLeftOperand();
+
+                writeOpen(((OperatorToken) tok).getOperator(), notation, out);
+                if (top == operators.length) {
+                    operators = Arrays.copyOf(operators, top * 2);
+                    nextOperands = Arrays.copyOf(nextOperands, top * 2);
+                }
+                operators[top] = tok;
+                nextOperands[top] = ((OperatorToken) tok).getRightOperand();
+                top++;
+                tok = lhs;
+            }
+            // A negative literal operand is parenthesized in infix, otherwise
+            // (-3) ^ x would be written as -3 ^ x and read back as -(3 ^ x)
+            boolean parenthesize = notation == Notation.INFIX && top > 0 && isNegative(tok);
+            if (parenthesize)
+                out.append("( ");
+            writeLeaf(tok, notation, registry, out, digits);
+            if (parenthesize)
+                out.append(" )");
+
+            // Go back up until we find an operator with operands left to write
+            while (top > 0 && nextOperands[top - 1] == null) {
+                top--;
+                writeClose(((OperatorToken) operators[top]).getOperator(), notation, out);
+                operators[top] = null;
+            }
+            if (top == 0)
+                return;
+
+            writeMiddle(((OperatorToken) operators[top - 1]).getOperator(), notation, out);
+            tok = nextOperands[top - 1];
+            nextOperands[top - 1] = null;
+        }
+    }
+
+    // Text written before the first operand
+    static void writeOpen(Operator op, Notation notation, Appendable out) throws IOException {
+        switch (notation) {
+            case PREFIX:
+                out.append(op.getName()).append(' ');
+                break;
+            case LISP:
+                out.append("( ").append(op.getName()).append(' ');
+                break;
+            case INFIX:
+                if (op.isFunction())
+                    out.append(op.getSymbol()).append(" ( ");
+                else if (op.getArity() == 1)
+                    out.append("( ").append(op.getSymbol()).append(' ');
+                else
+                    out.append("( ");
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Text written between operands
+    static void writeMiddle(Operator op, Notation notation, Appendable out) throws IOException {
+        if (notation != Notation.INFIX)
+            out.append(' ');
+        else if (op.isFunction())
+            out.append(" , ");
+        else
+            out.append(' ').append(op.getSymbol()).append(' ');
+    }
+
+    // Text written after the last operand
+    static void writeClose(Operator op, Notation notation, Appendable out) throws IOException {
+        switch (notation) {
+            case POSTFIX:
+                out.append(' ').append(op.getName());
+                break;
+            case LISP:
+            case INFIX:
+                out.append(" )");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeLeaf(Token tok, Notation notation, OperatorRegistry registry, Appendable out,
+                                  char[] digits) throws IOException {
+        if (tok instanceof OperandToken) {
+            writeLong(((OperandToken) tok).getLongValue(), out, digits);
+        } else if (tok instanceof DecimalToken) {
+            writeDecimal(((DecimalToken) tok).getValue(), out);
+        } else if (tok instanceof VariableToken) {
+            writeVariable(((VariableToken) tok).getName(), notation, registry, out);
+        } else {
+            throw new IllegalStateException("Unknown token: " + tok);
+        }
+    }
+
+    private static boolean isNegative(Token tok) {
+        if (tok instanceof OperandToken)
+            return ((OperandToken) tok).getLongValue() < 0;
+        return tok instanceof DecimalToken && ((DecimalToken) tok).getValue() < 0;
+    }
+
+    /**
+     * Writes a variable name, in parentheses if the registry would read it
+     * as a function or unary operator in prefix or postfix notation
+     *
+     * @param name     the variable's name
+     * @param notation the notation being written
+     * @param registry the registry the text will be parsed with
+     * @param out      where to write the name
+     */
+    static void writeVariable(String name, Notation notation, OperatorRegistry registry, Appendable out)
+            throws IOException {
+        if ((notation == Notation.PREFIX || notation == Notation.POSTFIX)
+                && registry.findNamed(name, 0, name.length(), name.hashCode()) != null)
+            out.append('(').append(name).append(')');
+        else
+            out.append(name);
+    }
+
+    /**
+     * Writes the decimal digits of a long without creating a String
+     *
+     * @param value  the long to write
+     * @param out    where to write it
+     * @param digits scratch space for the digits
+     */
+    static void writeLong(long value, Appendable out, char[] digits) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(value);
+            return;
+        }
+        // Work with the negative value so that Long.MIN_VALUE has no special case
+        boolean negative = value < 0;
+        if (!negative)
+            value = -value;
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (negative)
+            digits[--start] = '-';
+        for (int i = start; i < digits.length; i++)
+            out.append(digits[i]);
+    }
+
+    /**
+     * Writes a decimal literal so that it parses back to the same double,
+     * without an exponent and always with a decimal point. Unlike integer
+     * literals, this allocates: the shortest digits of a double come from
+     * Double.toString.
+     *
+     * @param value the double to write
+     * @param out   where to write it
+     */
+    static void writeDecimal(double value, Appendable out) throws IOException {
+        String text = BigDecimal.valueOf(value).toPlainString();
+        out.append(text);
+        if (text.indexOf('.') < 0)
+            out.append(".0");
+    }
+}
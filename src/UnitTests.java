@@ -1,5 +1,41 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * JUnit unit tests for Expression Evaluator
@@ -65,4 +101,1376 @@ public class UnitTests {
         assertEquals(6561, new Expression("3 ^ 2 ^ 3").evaluate());
     }
 
+    @Test
+    public void testProgramMatchesTree(){
+        // Compiled programs must give exactly the same result as the tree walker
+        String[] expressions = {
+                "3", "1 + 1", "5 - 7", "5 / 3", "2 ^ 8", "2 ^ 2 ^ 3",
+                "3 - 7 * ( 4 + ( 25 / (3 + 2)) - 2)", "1+2+5-2*5-3/2",
+                "2147483647 + 1", "65536 * 65536", "2 ^ 40", "(2 - 5) ^ 31",
+                "2 ^ (1 - 2)", "((((1))))"
+        };
+        for (String expression : expressions) {
+            Expression e = new Expression(expression);
+            assertEquals(expression, e.evaluate(), e.toProgram().evaluate());
+        }
+    }
+
+    @Test
+    public void testProgramDivisionByZero(){
+        // Division by zero must still fail at evaluation time
+        Program p = new Expression("1 + 4 / (2 - 2)").toProgram();
+        try {
+            p.evaluate();
+            fail("Expected an ArithmeticException");
+        } catch (ArithmeticException expected) {
+            // Same behaviour as the tree walker
+        }
+    }
+
+    @Test
+    public void testCompiledMatchesTree(){
+        // Generated classes must give exactly the same result as the tree walker
+        String[] expressions = {
+                "3", "0", "1 + 1", "5 - 7", "5 / 3", "2 ^ 8", "2 ^ 2 ^ 3",
+                "3 - 7 * ( 4 + ( 25 / (3 + 2)) - 2)", "100 * 1000 + 70000 * 2",
+                "2147483647 + 1", "65536 * 65536", "2 ^ 40", "(2 - 5) ^ 31",
+                "2 ^ (1 - 2)", "((((1))))"
+        };
+        for (String expression : expressions) {
+            Expression e = new Expression(expression);
+            assertEquals(expression, e.evaluate(), e.compile().getAsInt());
+        }
+    }
+
+    @Test
+    public void testCompiledLargeExpression(){
+        // Expressions too large to JIT compile still evaluate correctly
+        StringBuilder expression = new StringBuilder("1");
+        for (int i = 0; i < 5000; i++)
+            expression.append(" + 100000");
+        Expression e = new Expression(expression.toString());
+        assertEquals(e.evaluate(), e.compile().getAsInt());
+    }
+
+    @Test
+    public void testCompiledClassesAreUnloaded(){
+        // Once a compiled expression is unreachable its class must be collectable
+        WeakReference<Class<?>> generated = new WeakReference<>(new Expression("1 + 2 * 3").compile().getClass());
+        for (int i = 0; i < 10 && generated.get() != null; i++)
+            System.gc();
+        assertNull(generated.get());
+    }
+
+    @Test
+    public void testExpressionCache(){
+        // Repeated lookups return the same parsed expression
+        ExpressionCache cache = new ExpressionCache(2);
+        Expression first = cache.get("1 + 2");
+        assertSame(first, cache.get("1 + 2"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // Going over the maximum size evicts the entry that wasn't reused
+        cache.get("3 * 4");
+        cache.get("5 - 6");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(first, cache.get("1 + 2"));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpressionCacheConcurrentUse() throws Exception {
+        // Expressions shared through the cache evaluate correctly on every thread
+        ExpressionCache cache = new ExpressionCache(16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        int n = i % 32;
+                        assertEquals(n * 7 + 1, cache.get(n + " * 7 + 1").evaluate());
+                    }
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.size() <= 16);
+        assertEquals(8 * 20_000, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void testVariables(){
+        // Variables are given slots in the order they first appear
+        Expression e = new Expression("x * y + x - rate_2");
+        assertEquals(3, e.getVariableCount());
+        assertEquals(0, e.getSlot("x"));
+        assertEquals(1, e.getSlot("y"));
+        assertEquals(2, e.getSlot("rate_2"));
+        assertEquals(-1, e.getSlot("z"));
+        assertEquals("( ( ( x * y ) + x ) - rate_2 )", e.toInfix());
+
+        // One parsed expression can be evaluated against many bindings
+        assertEquals(3 * 4 + 3 - 5, e.evaluate(new int[]{3, 4, 5}));
+        assertEquals(-7, e.evaluate(new int[]{0, 100, 7}));
+    }
+
+    @Test
+    public void testVariablesAllEvaluators(){
+        // The tree, Program and compiled class agree for every binding
+        Expression e = new Expression("(a + 2) * b - a / (b + 1) + 2 ^ a");
+        Program p = e.toProgram();
+        CompiledExpression c = e.compile();
+        for (int a = -3; a <= 10; a++) {
+            for (int b = 0; b <= 10; b++) {
+                int[] bindings = {a, b};
+                int expected = e.evaluate(bindings);
+                assertEquals(expected, p.evaluate(bindings));
+                assertEquals(expected, c.evaluate(bindings));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingBindings(){
+        // Every variable must be given a value
+        new Expression("x + y").evaluate(new int[]{1});
+    }
+
+    @Test
+    public void testColumnEvaluation(){
+        // Batch evaluation gives the same results as evaluating row by row,
+        // including overflow and truncating division
+        Expression e = new Expression("(a + 7) * b - a / (b * b + 1) + 2 ^ (b / 100000000) + 65536 * a");
+        Random random = new Random(42);
+        int rows = 5000;
+        int[][] columns = new int[2][rows];
+        for (int row = 0; row < rows; row++) {
+            columns[0][row] = random.nextInt();
+            columns[1][row] = random.nextInt();
+        }
+
+        int[] out = new int[rows];
+        e.evaluate(columns, out, 100, rows);
+        for (int row = 100; row < rows; row++)
+            assertEquals(e.evaluate(new int[]{columns[0][row], columns[1][row]}), out[row]);
+        assertEquals(0, out[99]);
+
+        try {
+            new Expression("a * 2.5").evaluate(columns, out, 0, rows);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testColumnDivisionByZero(){
+        // A zero divisor in any row fails the same way as scalar evaluation
+        int[][] columns = {{1, 2, 3}, {1, 0, 1}};
+        new Expression("a / b").evaluate(columns, new int[3], 0, 3);
+    }
+
+    @Test
+    public void testConstantFolding(){
+        // Constant subtrees are folded and identities removed
+        assertEquals("( 12 + x )", new Expression("(3 * 4) + x").optimize().toInfix());
+        assertEquals("x", new Expression("(x * 1 + 0) / 1 ^ 1 - (2 - 2)").optimize().toInfix());
+        assertEquals("( x * y )", new Expression("1 * x * (0 + y)").optimize().toInfix());
+        assertEquals("2147483648", new Expression("2147483647 + 1").optimize().toInfix());
+        assertEquals("2", new Expression("8 / 4").optimize().toInfix());
+        // Folding must give the same result as an int, a long and a double
+        assertEquals("( 2 ^ 40 )", new Expression("2 ^ 40").optimize().toInfix());
+        assertEquals("( 7 / 4 )", new Expression("7 / 4").optimize().toInfix());
+        assertEquals("7.5", new Expression("3 * 2.5").optimize().toInfix());
+
+        // A negative zero double isn't folded to the integer 0
+        for (String expr : new String[]{"1 / -0", "1 / (0 * -1)", "1 / (0 / -5)", "x / -(3 - 3)"}) {
+            Expression original = new Expression(expr);
+            assertEquals(expr, original.evaluateDouble(new double[]{1}),
+                    original.optimize().evaluateDouble(new double[]{1}), 0);
+        }
+        assertEquals(Double.NEGATIVE_INFINITY, new Expression("1 / -0").optimize().evaluateDouble(), 0);
+
+        // Folded negative literals are read back as the same operand
+        Expression negative = new Expression("(-3) ^ x + (-2.5) * x").optimize();
+        assertEquals("( ( ( -3 ) ^ x ) + ( ( -2.5 ) * x ) )", negative.toInfix());
+        assertEquals(negative.toInfix(), negative.toNodePool(false).toInfix());
+        assertEquals(negative.evaluateDouble(new double[]{2}),
+                new Expression(negative.toInfix()).evaluateDouble(new double[]{2}), 0);
+
+        // Variables keep their slots
+        Expression e = new Expression("a * (2 + 3) - b / (1 * 1)").optimize();
+        assertEquals(1, e.getSlot("b"));
+        assertEquals(3 * 5 - 7, e.evaluate(new int[]{3, 7}));
+    }
+
+    @Test
+    public void testConstantFoldingKeepsDivisionByZero(){
+        // Division by zero must still throw when the expression is evaluated
+        Expression e = new Expression("x + 1 / (3 - 3)").optimize();
+        assertEquals("( x + ( 1 / 0 ) )", e.toInfix());
+        try {
+            e.evaluate(new int[]{1});
+            fail("Expected an ArithmeticException");
+        } catch (ArithmeticException expected) {
+            // Same behaviour as the unoptimized expression
+        }
+    }
+
+    @Test
+    public void testSharedSubexpressions(){
+        // Identical subtrees are stored once
+        Expression e = new Expression("(a + b) * (a + b) + (a + b)");
+        NodePool tree = e.toNodePool(false);
+        NodePool dag = e.toNodePool(true);
+        assertEquals(11, tree.size());
+        assertEquals(5, dag.size());
+
+        for (int a = -5; a <= 5; a++) {
+            for (int b = -5; b <= 5; b++) {
+                int[] bindings = {a, b};
+                assertEquals(e.evaluate(bindings), tree.evaluate(bindings));
+                assertEquals(e.evaluate(bindings), dag.evaluate(bindings));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedSubexpressionsLargeExpression(){
+        // Size grows with the number of distinct subexpressions, not the tree
+        String term = "(x * 3 + 7 / (y + 1))";
+        String expression = term;
+        for (int i = 0; i < 10; i++)
+            expression = "(" + expression + " + " + expression + ") - " + term;
+
+        Expression e = new Expression(expression);
+        NodePool dag = e.toNodePool(true);
+        assertTrue(dag.size() < 40);
+        assertEquals(e.evaluate(new int[]{11, 4}), dag.evaluate(new int[]{11, 4}));
+    }
+
+    @Test
+    public void testInvalidExpressionMessages(){
+        // Malformed expressions report why they failed to parse
+        assertInvalid("1 + $", "Unknown token: $");
+        assertInvalid("1 + 2)", "No matching open parentheses found.");
+        assertInvalid("1 2", "Mismatch in number of operands and operators.");
+        assertInvalid("", "Mismatch in number of operands and operators.");
+        assertInvalid("1 +", "Missing left hand side operand");
+        assertInvalid("*", "Missing right hand side operand");
+    }
+
+    @Test
+    public void testParseCharSequence(){
+        // Any CharSequence can be parsed without first building a String
+        StringBuilder expression = new StringBuilder("x * (y + 2)");
+        assertEquals(24, new Expression(expression).evaluate(new int[]{4, 4}));
+        assertEquals(7, new Expression(CharBuffer.wrap(new char[]{'3', '+', '4'})).evaluate());
+    }
+
+    private static void assertInvalid(String expression, String reason){
+        try {
+            new Expression(expression);
+            fail("Expected " + expression + " to be invalid");
+        } catch (InvalidExpressionException e) {
+            assertEquals("Invalid expression.\nReason: " + reason, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBulkEvaluation() throws IOException {
+        // Each line gets a result or an error, errors don't stop the run
+        String input = "1 + 2\n2 ^ 2 ^ 3\r\n1 +\n0 - 2147483647 - 1\n7 / 0\nx\n(9)";
+        String expected = "3\n256\nERROR: Missing left hand side operand\n-2147483648\n"
+                + "ERROR: / by zero\nERROR: Expected 1 variable bindings, found 0.\n9\n";
+        assertEquals(expected, runBulk(input, 1 << 20));
+        // Lines which span windows are still evaluated
+        assertEquals(expected, runBulk(input, 24));
+    }
+
+    @Test
+    public void testBulkEvaluationLongLine() throws IOException {
+        // A line which doesn't fit in a window is reported and skipped
+        String input = "1 + 1\n1 + 2 + 3 + 4 + 5 + 6\n40 + 2\n";
+        assertEquals("2\nERROR: Line is longer than 8 bytes.\n42\n", runBulk(input, 8));
+    }
+
+    private static String runBulk(String input, int windowSize) throws IOException {
+        Path file = Files.createTempFile("expressions", ".txt");
+        try {
+            Files.write(file, input.getBytes(StandardCharsets.US_ASCII));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new BulkEvaluator(windowSize).evaluate(file, Channels.newChannel(output));
+            return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testParallelEvaluation(){
+        // Results keep the input order, and failures are kept per expression
+        List<String> expressions = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++)
+            expressions.add(i % 1000 == 0 ? i + " / 0" : i + " * 2 + 1");
+
+        BatchResult result = ParallelEvaluator.evaluateAll(expressions, new ForkJoinPool(4));
+        assertEquals(10_000, result.size());
+        assertEquals(10, result.getFailureCount());
+        for (int i = 0; i < 10_000; i++) {
+            if (i % 1000 == 0) {
+                assertEquals("Invalid expression.\nReason: / by zero", result.getFailure(i).getMessage());
+            } else {
+                assertTrue(result.isSuccess(i));
+                assertEquals(i * 2 + 1, result.getValue(i));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelEvaluationStream(){
+        // Streams of expressions are evaluated the same way
+        BatchResult result = ParallelEvaluator.evaluateAll(IntStream.range(0, 500).mapToObj(i -> i + " - 1 +"));
+        assertEquals(500, result.getFailureCount());
+        result = Expression.evaluateAll(List.of("2 ^ 10", "(1", "1 + * 2"));
+        assertEquals(1024, result.getValue(0));
+        assertFalse(result.isSuccess(1));
+        // Malformed expressions fail the same way as tryParse reports them
+        ParseResult expected = Expression.tryParse("1 + * 2");
+        assertEquals("Invalid expression.\nReason: " + expected.getMessage(), result.getFailure(2).getMessage());
+        assertEquals(expected.getOffset(), result.getFailure(2).getOffset());
+        assertEquals(4, result.getFailure(2).getOffset());
+    }
+
+    @Test
+    public void testStringRepresentations() throws IOException {
+        // Every notation, both as a String and written to an Appendable
+        Expression e = new Expression("3 - x * (4 + 25) ^ 2 ^ 0");
+        assertEquals("( 3 - ( x * ( ( 4 + 25 ) ^ ( 2 ^ 0 ) ) ) )", e.toInfix());
+        assertEquals("3 x 4 25 + 2 0 ^ ^ * -", e.toPostfix());
+        assertEquals("- 3 * x ^ + 4 25 ^ 2 0", e.toPrefix());
+        assertEquals("( - 3 ( * x ( ^ ( + 4 25 ) ( ^ 2 0 ) ) ) )", e.toLisp());
+        assertEquals("2147483648", new Expression("2147483647 + 1").optimize().toPostfix());
+
+        StringWriter out = new StringWriter();
+        e.writePostfix(out);
+        out.append('|');
+        new Expression("0 - 2147483647 - 1").optimize().writeInfix(out);
+        assertEquals("3 x 4 25 + 2 0 ^ ^ * -|-2147483648", out.toString());
+    }
+
+    @Test
+    public void testVeryDeepExpressions() throws IOException {
+        // Deep trees evaluate and serialize without overflowing the call stack
+        int terms = 200_000;
+        StringBuilder leftLeaning = new StringBuilder("1");
+        StringBuilder rightLeaning = new StringBuilder();
+        for (int i = 1; i < terms; i++) {
+            leftLeaning.append("+1");
+            rightLeaning.append("1^");
+        }
+        rightLeaning.append("1");
+
+        Expression left = new Expression(leftLeaning);
+        assertEquals(terms, left.evaluate());
+        StringBuilder postfix = new StringBuilder();
+        left.writePostfix(postfix);
+        assertEquals(terms * 2 - 1 + (terms - 1) * 2, postfix.length());
+        assertEquals(terms * 4 - 3 + (terms - 1) * 4, left.toInfix().length());
+
+        Expression right = new Expression(rightLeaning);
+        assertEquals(1, right.evaluate());
+        assertTrue(right.toLisp().startsWith("( ^ 1 ( ^ 1 "));
+
+        // They are also lowered, compiled and optimized without recursion
+        Expression chain = new Expression("x" + leftLeaning.substring(1));
+        int[] x = {1};
+        assertEquals(terms, chain.toProgram().evaluate(x));
+        assertEquals(terms, chain.compile().evaluate(x));
+        assertEquals(terms, chain.optimize().evaluate(x));
+        assertEquals(1, right.toProgram().evaluate(new int[0]));
+        assertEquals(1, right.compile().evaluate(new int[0]));
+        assertEquals("1", right.optimize().toInfix());
+        int[] out = new int[2];
+        chain.evaluate(new int[][]{{1, 2}}, out, 0, 2);
+        assertEquals(terms, out[0]);
+        assertEquals(terms + 1, out[1]);
+    }
+
+    @Test
+    public void testMetrics() {
+        Metrics.reset();
+        // Nothing is recorded while metrics are disabled
+        new Expression("1 + 2").evaluate();
+        assertEquals(0, Metrics.getCount(Metrics.Operation.PARSE));
+
+        Metrics.setEnabled(true);
+        try {
+            Expression e = new Expression("6 / x");
+            assertInvalid("1 +", "Missing left hand side operand");
+            assertEquals(3, e.evaluate(new int[]{2}));
+            try {
+                e.evaluate(new int[]{0});
+                fail();
+            } catch (ArithmeticException expected) {
+            }
+            e.toInfix();
+            e.optimize().toLisp();
+        } finally {
+            Metrics.setEnabled(false);
+        }
+
+        assertEquals(2, Metrics.getCount(Metrics.Operation.PARSE));
+        assertEquals(1, Metrics.getFailureCount(Metrics.Operation.PARSE));
+        assertEquals(2, Metrics.getCount(Metrics.Operation.EVALUATE));
+        assertEquals(1, Metrics.getFailureCount(Metrics.Operation.EVALUATE));
+        assertEquals(2, Metrics.getCount(Metrics.Operation.SERIALIZE));
+        assertEquals(0, Metrics.getFailureCount(Metrics.Operation.SERIALIZE));
+
+        long total = 0;
+        for (long count : Metrics.getLatencyHistogram(Metrics.Operation.EVALUATE))
+            total += count;
+        assertEquals(2, total);
+        assertTrue(Metrics.getLatencyPercentile(Metrics.Operation.EVALUATE, 100)
+                >= Metrics.getLatencyPercentile(Metrics.Operation.EVALUATE, 50));
+
+        Metrics.reset();
+        assertEquals(0, Metrics.getCount(Metrics.Operation.EVALUATE));
+        assertEquals(0, Metrics.getTotalNanos(Metrics.Operation.EVALUATE));
+        assertEquals(0, Metrics.getLatencyPercentile(Metrics.Operation.EVALUATE, 99));
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("expressions", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("expression.Parse").withoutThreshold();
+            recording.enable("expression.Evaluate").withoutThreshold();
+            recording.enable("expression.Serialize").withoutThreshold();
+            recording.start();
+            Expression e = new Expression("1 + 2 * 3");
+            e.evaluate();
+            e.toPostfix();
+            assertInvalid("1 +", "Missing left hand side operand");
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            List<String> names = new ArrayList<>();
+            for (RecordedEvent event : events)
+                names.add(event.getEventType().getName());
+            assertEquals(List.of("expression.Parse", "expression.Evaluate",
+                    "expression.Serialize", "expression.Parse"), names);
+
+            assertEquals(9, events.get(0).getInt("length"));
+            assertEquals(5, events.get(1).getInt("nodeCount"));
+            assertNull(events.get(1).getString("failure"));
+            assertEquals("POSTFIX", events.get(2).getString("notation"));
+            assertEquals("Missing left hand side operand", events.get(3).getString("failure"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLongAndDoubleEvaluation() {
+        Expression e = new Expression("3000000000 * 2 + 7 / 2");
+        assertEquals((int) 3000000000L * 2 + 3, e.evaluate());
+        assertEquals(6000000003L, e.evaluateLong());
+        assertEquals(6000000003.5, e.evaluateDouble(), 0);
+
+        assertEquals(1L << 62, new Expression("2 ^ 62").evaluateLong());
+        assertEquals(Double.POSITIVE_INFINITY, new Expression("1 / 0").evaluateDouble(), 0);
+        try {
+            new Expression("1 / (2 - 2)").evaluateLong();
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+
+        Expression vars = new Expression("x * y - x");
+        assertEquals(3L << 40, vars.evaluateLong(new long[]{1L << 40, 4}));
+        assertEquals(0.5, vars.evaluateDouble(new double[]{0.25, 3}), 0);
+    }
+
+    @Test
+    public void testDecimalLiterals() {
+        assertEquals(0.1 + 0.2, new Expression("0.1 + 0.2").evaluateDouble(), 0);
+        assertEquals(12.5, new Expression("2.5 * 5").evaluateDouble(), 0);
+        assertEquals(0.1234567890123456789, new Expression("0.1234567890123456789").evaluateDouble(), 0);
+        assertEquals(1e-30, new Expression("0.000000000000000000000000000001").evaluateDouble(), 0);
+        assertEquals("( 1.5 + 0.25 )", new Expression("1.50 + 00.250").toInfix());
+        assertInvalid("1. + 2", "Unknown token: .");
+        assertInvalid(".5", "Unknown token: .");
+
+        // Decimal literals don't have an integer value
+        try {
+            new Expression("2.5 * 2").evaluate();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            new Expression("2.5 * 2").evaluateLong();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        // The same from the lowered and compiled forms
+        String[][] decimals = {{"2.5 * 2", "2.5"}, {"x + 0.5", "0.5"}};
+        for (String[] test : decimals) {
+            try {
+                new Expression(test[0]).toProgram();
+                fail(test[0]);
+            } catch (UnsupportedOperationException e) {
+                assertEquals("Decimal literal " + test[1] + " can only be evaluated as a double.", e.getMessage());
+            }
+            try {
+                new Expression(test[0]).compile();
+                fail(test[0]);
+            } catch (UnsupportedOperationException e) {
+                assertEquals("Decimal literal " + test[1] + " can only be evaluated as a double.", e.getMessage());
+            }
+        }
+
+        // Integers too large for a long are decimals rather than wrapping around
+        assertEquals(Long.MAX_VALUE, new Expression("9223372036854775807").evaluateLong());
+        assertEquals(Long.MIN_VALUE, new Expression("-9223372036854775808", TreeWriter.Notation.POSTFIX).evaluateLong());
+        assertEquals(1e20, new Expression("99999999999999999999").evaluateDouble(), 0);
+        assertEquals(-9223372036854775809.0, new Expression("-9223372036854775809", TreeWriter.Notation.POSTFIX)
+                .evaluateDouble(), 0);
+        try {
+            new Expression("99999999999999999999").evaluateLong();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        // Folded decimals are written so that they parse back to the same value
+        Expression big = new Expression("100000000000.0 * 100000000000").optimize();
+        assertEquals("10000000000000000000000.0", big.toInfix());
+        assertEquals(1e22, new Expression(big.toInfix()).evaluateDouble(), 0);
+    }
+
+    @Test
+    public void testVeryDeepLongAndDoubleExpressions() {
+        StringBuilder expr = new StringBuilder("4000000000");
+        for (int i = 1; i < 100_000; i++)
+            expr.append("+0.5");
+        Expression e = new Expression(expr);
+        assertEquals(4000000000.0 + 99_999 * 0.5, e.evaluateDouble(), 0);
+        assertEquals(8000000000L, new Expression(expr.toString().replace("+0.5", "+0")
+                + "+4000000000").evaluateLong());
+    }
+
+    @Test
+    public void testUnaryMinus() {
+        // Unary minus binds looser than ^ but tighter than * and /
+        assertEquals(-4, new Expression("-2 ^ 2").evaluate());
+        assertEquals(-6, new Expression("2 * -3").evaluate());
+        assertEquals(3, new Expression("1 - -2").evaluate());
+        assertEquals(3, new Expression("--3").evaluate());
+        assertEquals(-3, new Expression("-(1 + 2)").evaluate());
+        assertEquals(-7, new Expression("-x - 2").evaluate(new int[]{5}));
+
+        Expression e = new Expression("2 * -3");
+        assertEquals("( 2 * ( - 3 ) )", e.toInfix());
+        assertEquals("* 2 neg 3", e.toPrefix());
+        assertEquals("2 3 neg *", e.toPostfix());
+        assertEquals("( * 2 ( neg 3 ) )", e.toLisp());
+        assertEquals(-6, new Expression(e.toInfix()).evaluate());
+        assertInvalid("1 -", "Missing left hand side operand");
+        assertInvalid("-", "Missing right hand side operand");
+    }
+
+    @Test
+    public void testFunctions() {
+        assertEquals(7, new Expression("max(1, 2) + abs(-5)").evaluate());
+        assertEquals(-3, new Expression("min(2 * 3, -3)").evaluate());
+        assertEquals(2, new Expression("mod(-7, 3)").evaluate());
+        assertEquals(5, new Expression("max(min(x, 10), abs(y))").evaluate(new int[]{5, -2}));
+        assertEquals(-2.5, new Expression("min(0.5, -2.5)").evaluateDouble(), 0);
+        assertEquals(1L << 40, new Expression("abs(-1099511627776)").evaluateLong());
+
+        Expression e = new Expression("max(1, 2 + 3) * 2");
+        assertEquals("( max ( 1 , ( 2 + 3 ) ) * 2 )", e.toInfix());
+        assertEquals("* max 1 + 2 3 2", e.toPrefix());
+        assertEquals("1 2 3 + max 2 *", e.toPostfix());
+        assertEquals("( * ( max 1 ( + 2 3 ) ) 2 )", e.toLisp());
+        assertEquals(10, new Expression(e.toInfix()).evaluate());
+
+        // A function name is only a function when it is called
+        assertEquals(6, new Expression("max + 1").evaluate(new int[]{5}));
+
+        assertInvalid("max(1)", "max takes 2 arguments, found 1.");
+        assertInvalid("abs(1, 2)", "abs takes 1 argument, found 2.");
+        assertInvalid("max()", "max takes 2 arguments, found 0.");
+        assertInvalid("max(1,)", "Malformed arguments to max.");
+        assertInvalid("1 , 2", "Unexpected , outside of a function call.");
+        assertInvalid("1 (2", "No matching close parentheses found.");
+    }
+
+    @Test
+    public void testCustomOperators() {
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.registerBinary('%', OperatorRegistry.MULTIPLICATIVE, false, (x, y) -> x % y, (x, y) -> x % y,
+                (x, y) -> x % y);
+        registry.registerUnary('~', "not", OperatorRegistry.EXPONENTIAL, x -> ~x, x -> ~x, x -> -x - 1);
+        registry.registerFunction("clamp", x -> Math.max(0, Math.min(x, 100)), x -> Math.max(0, Math.min(x, 100)),
+                x -> Math.max(0, Math.min(x, 100)));
+        assertEquals(13, registry.size());
+
+        Expression e = new Expression("1 + 7 % 4 * 2 + clamp(~x)", registry);
+        assertEquals(1 + 7 % 4 * 2 + 4, e.evaluate(new int[]{-5}));
+        assertEquals(1 + 7 % 4 * 2, e.evaluate(new int[]{5}));
+        assertEquals("+ + 1 * % 7 4 2 clamp not x", e.toPrefix());
+        assertEquals(e.evaluate(new int[]{-5}), e.optimize().evaluate(new int[]{-5}));
+        assertEquals(e.evaluate(new int[]{-5}), e.toProgram().evaluate(new int[]{-5}));
+        assertEquals(e.evaluate(new int[]{-5}), e.toNodePool(true).evaluate(new int[]{-5}));
+        assertEquals(e.evaluate(new int[]{-5}), e.compile().evaluate(new int[]{-5}));
+        assertEquals("1", new Expression("7 % 2", registry).optimize().toInfix());
+
+        // The default registry doesn't have them
+        assertInvalid("7 % 2", "Unknown token: %");
+        try {
+            OperatorRegistry.getDefault().registerFunction("twice", x -> 2 * x, x -> 2 * x, x -> 2 * x);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            registry.registerBinary('+', 1, false, (x, y) -> x, (x, y) -> x, (x, y) -> x);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            registry.registerBinary('(', 1, false, (x, y) -> x, (x, y) -> x, (x, y) -> x);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testPowMatchesMathPow() {
+        // The exact integer ^ gives the same result as (int) Math.pow
+        int[] edges = {0, 1, -1, 2, -2, 3, 10, 31, 32, 33, 46340, 46341, -46341, 65536,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1000, 1000};
+        for (int base : edges) {
+            for (int exponent : edges)
+                assertEquals(base + " ^ " + exponent, (int) Math.pow(base, exponent), Operator.pow(base, exponent));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int base = random.nextInt(41) - 20;
+            int exponent = random.nextInt(80) - 10;
+            assertEquals(base + " ^ " + exponent, (int) Math.pow(base, exponent), Operator.pow(base, exponent));
+        }
+
+        // The long ^ is exact wherever the result fits, and saturates like (long) Math.pow otherwise
+        for (int i = 0; i < 100_000; i++) {
+            long base = random.nextInt(2001) - 1000;
+            int exponent = random.nextInt(80);
+            BigInteger exact = BigInteger.valueOf(base).pow(exponent);
+            long expected = exact.bitLength() < 64 ? exact.longValue() : (long) Math.pow(base, exponent);
+            assertEquals(base + " ^ " + exponent, expected, Operator.pow(base, exponent));
+        }
+        assertEquals(Long.MIN_VALUE, Operator.pow(-2L, 63L));
+        assertEquals(Long.MAX_VALUE, Operator.pow(2L, 63L));
+        assertEquals(Long.MAX_VALUE, Operator.pow(0L, -1L));
+        assertEquals(4052555153018976267L, new Expression("3 ^ 39").evaluateLong());
+        assertEquals(4052555153018976267L, NodePool.parse("x ^ 39", false).evaluateLong(new long[]{3}));
+    }
+
+    @Test
+    public void testEnginesAgreeOnFunctions() {
+        // Every way of evaluating gives the same results for the new operators
+        String[] expressions = {"-x ^ 2", "max(x, y) - min(x, -y)", "mod(x, y) * abs(x - y)",
+                "-(x + 3) * -y", "max(abs(x), 2 ^ y)", "mod(x, 7) + -2"};
+        int[][] rows = {{3, 4}, {-5, 2}, {0, 7}, {-1000, -3}, {12345, 9}};
+        for (String expression : expressions) {
+            Expression e = new Expression(expression);
+            int[][] columns = new int[2][rows.length];
+            for (int row = 0; row < rows.length; row++) {
+                columns[0][row] = rows[row][0];
+                columns[1][row] = rows[row][1];
+            }
+            int[] out = new int[rows.length];
+            e.evaluate(columns, out, 0, rows.length);
+            for (int row = 0; row < rows.length; row++) {
+                int expected = e.evaluate(rows[row]);
+                assertEquals(expression, expected, e.toProgram().evaluate(rows[row]));
+                assertEquals(expression, expected, e.toNodePool(true).evaluate(rows[row]));
+                assertEquals(expression, expected, e.compile().evaluate(rows[row]));
+                assertEquals(expression, expected, e.optimize().evaluate(rows[row]));
+                assertEquals(expression, expected, out[row]);
+                assertEquals(expression, (long) expected, e.evaluateLong(new long[]{rows[row][0], rows[row][1]}));
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalEvaluation() {
+        IncrementalEvaluator sheet = new IncrementalEvaluator();
+        int total = sheet.add(new Expression("price * quantity + shipping"));
+        int discounted = sheet.add(new Expression("price * quantity - price * quantity / 10"));
+        assertEquals(Arrays.asList("price", "quantity", "shipping"), sheet.getInputNames());
+        // price * quantity is shared by both formulas
+        assertEquals(8, sheet.getNodeCount());
+
+        sheet.set("price", 12);
+        sheet.set("quantity", 5);
+        assertEquals(60, sheet.get(total));
+        assertEquals(54, sheet.get(discounted));
+        assertEquals(8, sheet.getEvaluatedNodeCount());
+
+        // Only the shipping input and the + above it are evaluated again
+        sheet.set("shipping", 5);
+        assertTrue(sheet.isStale(total));
+        assertFalse(sheet.isStale(discounted));
+        assertEquals(65, sheet.get(total));
+        assertEquals(54, sheet.get(discounted));
+        assertEquals(10, sheet.getEvaluatedNodeCount());
+
+        // Setting an input to its current value invalidates nothing
+        sheet.set(sheet.getInput("price"), 12);
+        assertFalse(sheet.isStale(total));
+
+        sheet.set("quantity", 0);
+        try {
+            sheet.add(new Expression("shipping / quantity"));
+            sheet.get(2);
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+        sheet.set("quantity", 1);
+        assertEquals(5, sheet.get(2));
+
+        // Formulas of any depth are added without recursion
+        StringBuilder chain = new StringBuilder("price");
+        for (int i = 1; i < 200_000; i++)
+            chain.append("+1");
+        int deep = sheet.add(new Expression(chain));
+        assertEquals(12 + 199_999, sheet.get(deep));
+        try {
+            sheet.add(new Expression("price * 1.5"));
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testIncrementalMatchesFullEvaluation() {
+        // Random updates always give the same values as evaluating from scratch
+        String[] formulas = {"a + b * c", "max(a, -b) ^ 2", "(a + b * c) * (a + b * c) - d", "mod(d, 7) + abs(c)",
+                "a * a * a - b", "d"};
+        IncrementalEvaluator sheet = new IncrementalEvaluator();
+        List<Expression> expressions = new ArrayList<>();
+        for (String formula : formulas) {
+            Expression e = new Expression(formula);
+            expressions.add(e);
+            assertEquals(expressions.size() - 1, sheet.add(e));
+        }
+        String[] names = {"a", "b", "c", "d"};
+        int[] values = new int[names.length];
+        Random random = new Random(7);
+        for (int tick = 0; tick < 10_000; tick++) {
+            int input = random.nextInt(names.length);
+            values[input] = random.nextInt(200) - 100;
+            sheet.set(names[input], values[input]);
+            int formula = random.nextInt(formulas.length);
+            Expression e = expressions.get(formula);
+            int[] bindings = new int[e.getVariableCount()];
+            for (int slot = 0; slot < bindings.length; slot++)
+                bindings[slot] = values[Arrays.asList(names).indexOf(e.getVariableNames().get(slot))];
+            assertEquals(formulas[formula], e.evaluate(bindings), sheet.get(formula));
+        }
+    }
+
+    @Test
+    public void testBinaryEncoding() throws IOException {
+        String[] expressions = {"3", "3 - x * (4 + 25) ^ 2 ^ 0", "max(a, -b) + mod(c, 7) * abs(a)", "0.1 + 2.5",
+                "4000000000 * x + -9223372036854775807", "x * y + x"};
+        List<Expression> originals = new ArrayList<>();
+        for (String expression : expressions)
+            originals.add(new Expression(expression));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ExpressionCodec.write(originals, bytes);
+        List<Expression> loaded = ExpressionCodec.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(originals.size(), loaded.size());
+        for (int i = 0; i < originals.size(); i++) {
+            Expression original = originals.get(i);
+            Expression copy = loaded.get(i);
+            assertEquals(original.toLisp(), copy.toLisp());
+            assertEquals(original.getVariableNames(), copy.getVariableNames());
+            double[] bindings = new double[original.getVariableCount()];
+            Arrays.fill(bindings, 3);
+            assertEquals(original.evaluateDouble(bindings), copy.evaluateDouble(bindings), 0);
+        }
+
+        // A single expression, optimized before it is written, through a ByteBuffer
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        new Expression("(2 * 3) * x + y * 1").optimize().writeTo(buffer);
+        buffer.flip();
+        Expression e = Expression.readFrom(buffer);
+        assertEquals("( ( 6 * x ) + y )", e.toInfix());
+        assertEquals(17, e.evaluate(new int[]{2, 5}));
+        assertFalse(buffer.hasRemaining());
+
+        // Operators added to a registry are found again by symbol
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.registerBinary('%', OperatorRegistry.MULTIPLICATIVE, false, (x, y) -> x % y, (x, y) -> x % y,
+                (x, y) -> x % y);
+        bytes.reset();
+        ExpressionCodec.write(Collections.singletonList(new Expression("7 % x", registry)), bytes);
+        assertEquals(1, ExpressionCodec.read(ByteBuffer.wrap(bytes.toByteArray()), registry).get(0)
+                .evaluate(new int[]{3}));
+        try {
+            ExpressionCodec.read(ByteBuffer.wrap(bytes.toByteArray()));
+            fail();
+        } catch (IOException expected) {
+            assertEquals("Unknown operator: %.", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testBinaryEncodingCorpusFile() throws IOException {
+        // A whole corpus loads from one file, including trees too deep to recurse over
+        List<Expression> corpus = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            corpus.add(new Expression("x" + (i % 10) + " * " + i + " + y"));
+        StringBuilder deep = new StringBuilder("1");
+        for (int i = 0; i < 100_000; i++)
+            deep.append(" - 1");
+        corpus.add(new Expression(deep));
+
+        Path file = Files.createTempFile("expressions", ".bin");
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                ExpressionCodec.write(corpus, out);
+            }
+            List<Expression> loaded = ExpressionCodec.read(file);
+            assertEquals(corpus.size(), loaded.size());
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i * 2 + 5, loaded.get(i).evaluate(new int[]{2, 5}));
+            assertEquals(-99_999, loaded.get(1000).evaluate());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBinaryEncodingRejectsBadData() {
+        byte[][] inputs = {{}, {'E', 'X', 'P', 'R', 9}, {'T', 'E', 'X', 'T', 1, 0, 0, 0},
+                {'E', 'X', 'P', 'R', 1, 0, 0, 1, 0, 1, 16}, {'E', 'X', 'P', 'R', 1, 0, 0, 1, 0, 2, 0, 2, 0, 4},
+                // Counts larger than the data, which mustn't be allocated
+                {'E', 'X', 'P', 'R', 1, -1, -1, -1, -1, 7}, {'E', 'X', 'P', 'R', 1, 0, -1, -1, -1, -1, 7},
+                {'E', 'X', 'P', 'R', 1, 0, 0, -1, -1, -1, -1, 7}};
+        for (byte[] input : inputs) {
+            try {
+                ExpressionCodec.read(ByteBuffer.wrap(input));
+                fail(Arrays.toString(input));
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testNodePoolParsing() throws IOException {
+        // Pools parsed directly behave exactly like the parsed Expression
+        String[] expressions = {"3", "3 - x * (4 + 25) ^ 2 ^ 0", "max(a, -b) + mod(c, 7) * abs(a)",
+                "4000000000 * x + 2147483648 - -9223372036854775807", "(x + y) * (x + y) - 2.5 / x"};
+        for (String expression : expressions) {
+            Expression e = new Expression(expression);
+            for (boolean intern : new boolean[]{false, true}) {
+                NodePool pool = NodePool.parse(expression, intern);
+                assertEquals(e.getVariableNames(), pool.getVariableNames());
+                assertEquals(e.toPrefix(), pool.toPrefix());
+                assertEquals(e.toPostfix(), pool.toPostfix());
+                assertEquals(e.toLisp(), pool.toLisp());
+                assertEquals(e.toInfix(), pool.toInfix());
+                StringWriter out = new StringWriter();
+                pool.write(TreeWriter.Notation.INFIX, out);
+                assertEquals(e.toInfix(), out.toString());
+                assertEquals(e.toInfix(), e.toNodePool(intern).toInfix());
+
+                double[] doubles = new double[e.getVariableCount()];
+                long[] longs = new long[e.getVariableCount()];
+                Arrays.fill(doubles, 3);
+                Arrays.fill(longs, 3);
+                assertEquals(expression, e.evaluateDouble(doubles), pool.evaluateDouble(doubles), 0);
+                if (expression.contains(".")) {
+                    try {
+                        pool.evaluateLong(longs);
+                        fail();
+                    } catch (UnsupportedOperationException expected) {
+                        assertEquals("Decimal literal 2.5 can only be evaluated as a double.", expected.getMessage());
+                    }
+                } else {
+                    assertEquals(expression, e.evaluateLong(longs), pool.evaluateLong(longs));
+                    assertEquals(expression, e.evaluate(new int[e.getVariableCount()]),
+                            pool.evaluate(new int[e.getVariableCount()]));
+                }
+            }
+        }
+
+        // Parse errors are the same as for an Expression
+        try {
+            NodePool.parse("1 + * 2", false);
+            fail();
+        } catch (InvalidExpressionException e) {
+            assertEquals("Invalid expression.\nReason: Missing left hand side operand", e.getMessage());
+        }
+
+        // Operators from a registry
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.registerBinary('%', OperatorRegistry.MULTIPLICATIVE, false, (x, y) -> x % y, (x, y) -> x % y,
+                (x, y) -> x % y);
+        NodePool pool = NodePool.parse("x % 4 + x % 4", registry, true);
+        assertEquals(4, pool.size());
+        assertEquals(6, pool.evaluate(new int[]{7}));
+        assertEquals("( ( x % 4 ) + ( x % 4 ) )", pool.toInfix());
+    }
+
+    @Test
+    public void testVeryDeepNodePool() {
+        // Deep expressions are parsed, evaluated and written without recursion
+        StringBuilder expr = new StringBuilder();
+        for (int i = 0; i < 100_000; i++)
+            expr.append("(1 + ");
+        expr.append("x");
+        for (int i = 0; i < 100_000; i++)
+            expr.append(")");
+        NodePool pool = NodePool.parse(expr, false);
+        assertEquals(100_001 + 100_000, pool.size());
+        assertEquals(100_005, pool.evaluate(new int[]{5}));
+        assertTrue(pool.toPostfix().endsWith("x" + " +".repeat(100_000)));
+        // Every 1 is the same node
+        assertEquals(100_002, NodePool.parse(expr, true).size());
+        assertEquals(100_005, new Expression(expr).toNodePool(false).evaluate(new int[]{5}));
+    }
+
+    @Test
+    public void testExpressionStore() throws IOException {
+        // Small segments, so that the expressions spread over several of them
+        String[] expressions = {"3", "3 - x * (4 + 25) ^ 2 ^ 0", "max(a, -b) + mod(c, 7) * abs(a)",
+                "x * y + x / 2", "-(x + 1) * min(y, 3)"};
+        List<Expression> originals = new ArrayList<>();
+        ExpressionStore store = ExpressionStore.allocate(256);
+        for (int i = 0; i < 200; i++) {
+            Expression e = new Expression(expressions[i % expressions.length]);
+            originals.add(e);
+            assertEquals(i, store.add(e));
+        }
+        assertEquals(200, store.size());
+        assertTrue(store.getByteSize() > 256);
+        for (int i = 0; i < 200; i++) {
+            Expression e = originals.get(i);
+            int[] bindings = new int[e.getVariableCount()];
+            Arrays.fill(bindings, i - 100);
+            assertEquals(e.evaluate(bindings), store.evaluate(i, bindings));
+            assertEquals(e.getVariableNames(), store.getVariableNames(i));
+        }
+        assertEquals(3, store.evaluate(0));
+
+        try {
+            store.add(new Expression("2.5 * x"));
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            store.evaluate(200);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        store.close();
+        try {
+            store.evaluate(0);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("Expression store is closed.", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testExpressionStoreFile() throws IOException {
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.registerBinary('%', OperatorRegistry.MULTIPLICATIVE, false, (x, y) -> x % y, (x, y) -> x % y,
+                (x, y) -> x % y);
+        Path file = Files.createTempFile("expressions", ".store");
+        try {
+            try (ExpressionStore store = ExpressionStore.create(file, 512)) {
+                for (int i = 0; i < 100; i++)
+                    store.add(new Expression("x" + (i % 10) + " * " + i + " + max(y, 3)"));
+            }
+
+            // Reopened without parsing, and more expressions can be added
+            try (ExpressionStore store = ExpressionStore.open(file, registry)) {
+                assertEquals(100, store.size());
+                for (int i = 0; i < 100; i++)
+                    assertEquals(i * 2 + 5, store.evaluate(i, new int[]{2, 5}));
+                assertEquals(Arrays.asList("x7", "y"), store.getVariableNames(57));
+                assertEquals(100, store.add(new Expression("17 % x", registry)));
+            }
+            try (ExpressionStore store = ExpressionStore.open(file, registry)) {
+                assertEquals(101, store.size());
+                assertEquals(2, store.evaluate(100, new int[]{5}));
+            }
+            // The default registry has no %
+            try {
+                ExpressionStore.open(file).close();
+                fail();
+            } catch (IOException expected) {
+                assertEquals("Unknown operator: %.", expected.getMessage());
+            }
+
+            Files.write(file, new byte[]{'E', 'X', 'P', 'R', 1, 0, 0, 0});
+            try {
+                ExpressionStore.open(file).close();
+                fail();
+            } catch (IOException expected) {
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testForkJoinEvaluation() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int[] bindings = {3, -7};
+        // A balanced tree of 2^14 leaves, under a chain of operators with small operands
+        StringBuilder expr = new StringBuilder(balanced(14));
+        for (int i = 0; i < 5000; i++)
+            expr.insert(0, "(" + (i % 3 == 0 ? "y - " : "-")).append(i % 3 == 0 ? ")" : " * 3)");
+        Expression e = new Expression(expr);
+        int result = e.evaluate(bindings);
+        assertEquals(result, e.evaluateParallel(bindings, pool, 100));
+        assertEquals(result, e.evaluateParallel(bindings, pool, 1));
+        assertEquals(result, e.evaluateParallel(bindings));
+        Expression optimized = new Expression(balanced(14)).optimize();
+        assertEquals(optimized.evaluate(bindings), optimized.evaluateParallel(bindings, pool, 100));
+
+        // Chains too deep to evaluate recursively
+        StringBuilder deep = new StringBuilder(balanced(10));
+        for (int i = 0; i < 100_000; i++)
+            deep.append(" - x");
+        Expression chain = new Expression(deep);
+        assertEquals(chain.evaluate(bindings), chain.evaluateParallel(bindings, pool, 50));
+
+        // Small expressions and failures in forked tasks
+        assertEquals(16, new Expression("x * x + 7").evaluateParallel(bindings, pool, 1000));
+        try {
+            new Expression(balanced(10) + " / (" + balanced(10) + " - " + balanced(10) + ")")
+                    .evaluateParallel(bindings, pool, 100);
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * @return a balanced expression with 2^depth leaves
+     */
+    private static String balanced(int depth) {
+        if (depth == 0)
+            return "x";
+        String half = balanced(depth - 1);
+        return "(" + half + (depth % 2 == 0 ? " + " : " * ") + half + " - y)";
+    }
+
+    @Test
+    public void testStreamingParse() throws IOException {
+        // The same trees as parsing the whole String, including for tokens
+        // and expressions longer than the parser's window
+        StringBuilder longName = new StringBuilder("v");
+        for (int i = 0; i < 20_000; i++)
+            longName.append(i % 10);
+        StringBuilder longSum = new StringBuilder("0");
+        for (int i = 0; i < 10_000; i++)
+            longSum.append(" + max (x").append(i % 7).append(", 2.5) * ").append(i);
+        String[] expressions = {"3", " 3 - x * (4 + 25) ^ 2 ^ 0 ", "max (a, -b) + mod(c, 7) * abs(a)",
+                "max + 1", "0.1 + 2.5 / x", longName + " * 2 - " + longName, longSum.toString()};
+        for (String expr : expressions) {
+            Expression expected = new Expression(expr);
+            double[] bindings = new double[expected.getVariableCount()];
+            Arrays.fill(bindings, 3);
+            for (Reader in : new Reader[]{new StringReader(expr), trickle(expr)}) {
+                Expression e = Expression.parse(in);
+                assertEquals(expected.toLisp(), e.toLisp());
+                assertEquals(expected.getVariableNames(), e.getVariableNames());
+                assertEquals(expected.evaluateDouble(bindings), e.evaluateDouble(bindings), 0);
+            }
+            NodePool pool = NodePool.parse(trickle(expr), OperatorRegistry.getDefault(), true);
+            assertEquals(expected.evaluateDouble(bindings), pool.evaluateDouble(bindings), 0);
+        }
+        Expression e = Expression.parse(Channels.newChannel(
+                new ByteArrayInputStream("2 * (y + 1)".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(8, e.evaluate(new int[]{3}));
+
+        // Errors are the same as for Strings
+        for (String invalid : new String[]{"(1 + 2", "1 +", "2 $ 3", "max(1)", longSum + " )"}) {
+            try {
+                Expression.parse(trickle(invalid));
+                fail(invalid);
+            } catch (InvalidExpressionException expected) {
+                try {
+                    new Expression(invalid);
+                    fail(invalid);
+                } catch (InvalidExpressionException parsed) {
+                    assertEquals(parsed.getMessage(), expected.getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDirectEvaluation() {
+        // The same values and the same errors as evaluating the parsed tree
+        List<String> expressions = new ArrayList<>(Arrays.asList("3", "3 - 2 * (4 + 25) ^ 2 ^ 0",
+                "max(1, -7) + mod(-9, 7) * abs(-3)", "4000000000 + 1", "1 / 0", "x + 1 / 0", "1 / 0 + (2",
+                "2.5 + 1 / 0", "1 / 0 + 2.5", "(1 / 0) ^ -1", "2 ^ -1", "", "1 +", "max(1)", "7 $ 2"));
+        StringBuilder deep = new StringBuilder("1");
+        for (int i = 0; i < 100_000; i++)
+            deep.append(" - 1");
+        expressions.add(deep.toString());
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder expr = new StringBuilder(String.valueOf(random.nextInt(5)));
+            for (int j = 0; j < 6; j++)
+                expr.append(" +-*/^".charAt(random.nextInt(5) + 1)).append(random.nextInt(5));
+            expressions.add(expr.toString());
+        }
+
+        for (String expr : expressions) {
+            String expected;
+            try {
+                expected = String.valueOf(new Expression(expr).evaluate());
+            } catch (RuntimeException e) {
+                expected = e.getClass().getName() + ": " + e.getMessage();
+            }
+            String actual;
+            try {
+                actual = String.valueOf(Expression.evaluate(expr));
+            } catch (RuntimeException e) {
+                actual = e.getClass().getName() + ": " + e.getMessage();
+            }
+            assertEquals(expr, expected, actual);
+        }
+
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.registerBinary('%', OperatorRegistry.MULTIPLICATIVE, false, (x, y) -> x % y, (x, y) -> x % y,
+                (x, y) -> x % y);
+        assertEquals(2, Expression.evaluate("17 % 5", registry));
+    }
+
+    @Test
+    public void testPrefixAndPostfixParse() {
+        // What toPrefix and toPostfix write parses back to the same tree
+        String[] expressions = {"3", "3 - x * (4 + 25) ^ 2 ^ 0", "max(a, -b) + mod(c, 7) * abs(-a)", "-(x - 1)",
+                "0.1 + 2.5 / x - -2.5", "min(x, y) - max(y, x) * 1000000000000", "neg + 1", "min + abs(min)"};
+        for (String expr : expressions) {
+            Expression expected = new Expression(expr);
+            for (Expression folded : new Expression[]{expected, expected.optimize()}) {
+                Expression prefix = new Expression(folded.toPrefix(), TreeWriter.Notation.PREFIX);
+                Expression postfix = new Expression(folded.toPostfix(), TreeWriter.Notation.POSTFIX);
+                assertEquals(folded.toLisp(), prefix.toLisp());
+                assertEquals(folded.toLisp(), postfix.toLisp());
+                assertEquals(folded.getVariableNames(), postfix.getVariableNames());
+                assertEquals(folded.evaluateDouble(new double[]{2, 3, 5}), prefix.evaluateDouble(new double[]{2, 3, 5}), 0);
+            }
+        }
+        assertEquals(-2, new Expression("  3 neg 1 + ", TreeWriter.Notation.POSTFIX).evaluate());
+        assertEquals(6, new Expression("max -1 * 2 3", TreeWriter.Notation.PREFIX).evaluate());
+
+        // Named unary operators and functions of a registry
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.registerUnary('~', "not", OperatorRegistry.EXPONENTIAL, x -> ~x, x -> ~x, x -> -x - 1);
+        registry.registerFunction("clamp", x -> Math.max(0, Math.min(x, 100)), x -> Math.max(0, Math.min(x, 100)),
+                x -> Math.max(0, Math.min(x, 100)));
+        Expression custom = new Expression("clamp(~x) * 2", registry);
+        assertEquals(custom.toLisp(), new Expression("x not clamp 2 *", TreeWriter.Notation.POSTFIX, registry).toLisp());
+        assertEquals(custom.toLisp(), new Expression(custom.toPrefix(), TreeWriter.Notation.PREFIX, registry).toLisp());
+
+        // Variables named like an operator are written in parentheses
+        assertEquals("(neg) 1 +", new Expression("neg + 1").toPostfix());
+        assertEquals("+ (min) abs (min)", new Expression("min + abs(min)").toNodePool(true).toPrefix());
+        Expression named = new Expression("not * clamp", registry);
+        assertEquals("(not) (clamp) *", named.toPostfix());
+        assertEquals("not clamp *", new Expression("not * clamp").toPostfix());
+        assertEquals(named.toLisp(), new Expression(named.toPostfix(), TreeWriter.Notation.POSTFIX, registry).toLisp());
+
+        // Trees too deep to parse recursively
+        StringBuilder prefix = new StringBuilder();
+        StringBuilder postfix = new StringBuilder("1");
+        for (int i = 0; i < 100_000; i++) {
+            prefix.append("- ");
+            postfix.append(" 1 -");
+        }
+        prefix.append('1');
+        for (int i = 0; i < 100_000; i++)
+            prefix.append(" 1");
+        assertEquals(1 - 100_000, new Expression(postfix, TreeWriter.Notation.POSTFIX).evaluate());
+        assertEquals(1 - 100_000, new Expression(prefix, TreeWriter.Notation.PREFIX).evaluate());
+
+        String[][] invalid = {
+                {"POSTFIX", "1 +", "Missing operands for +."},
+                {"POSTFIX", "1 2", "Mismatch in number of operands and operators."},
+                {"POSTFIX", "", "Mismatch in number of operands and operators."},
+                {"POSTFIX", "1 2 $", "Unknown token: $"},
+                {"POSTFIX", "1 max", "Missing operands for max."},
+                {"PREFIX", "+ 1", "Missing operands for +."},
+                {"PREFIX", "+ 1 2 3", "Mismatch in number of operands and operators."},
+                {"PREFIX", "( + 1 2 )", "Unknown token: ("},
+                {"POSTFIX", "(x 1 +", "Unknown token: ("}};
+        for (String[] test : invalid) {
+            try {
+                new Expression(test[1], TreeWriter.Notation.valueOf(test[0]));
+                fail(test[1]);
+            } catch (InvalidExpressionException e) {
+                assertEquals("Invalid expression.\nReason: " + test[2], e.getMessage());
+            }
+        }
+        try {
+            new Expression("( + 1 2 )", TreeWriter.Notation.LISP);
+            fail();
+        } catch (InvalidExpressionException expected) {
+        }
+    }
+
+    @Test
+    public void testTryParse() throws IOException {
+        ParseResult result = Expression.tryParse("2 * (x + 1)");
+        assertTrue(result.isValid());
+        assertNull(result.getError());
+        assertEquals(-1, result.getOffset());
+        assertEquals(8, result.getExpression().evaluate(new int[]{3}));
+        assertSame(ParseResult.VALID, Expression.validate("max(1, 2) ^ -x"));
+        assertTrue(Expression.validate("+ 1 neg 2", TreeWriter.Notation.PREFIX, OperatorRegistry.getDefault())
+                .isValid());
+
+        // Each error, where it was found, and the same reason as the exception
+        Object[][] invalid = {
+                {"1 + 2 $ 3", ParseResult.ErrorCode.UNKNOWN_TOKEN, 6},
+                {"(1 + 2))", ParseResult.ErrorCode.UNMATCHED_CLOSE_PARENTHESIS, 7},
+                {"1 (2", ParseResult.ErrorCode.UNMATCHED_OPEN_PARENTHESIS, 4},
+                {"", ParseResult.ErrorCode.OPERAND_MISMATCH, 0},
+                {"1 + ", ParseResult.ErrorCode.MISSING_LEFT_OPERAND, 4},
+                {"* 2", ParseResult.ErrorCode.MISSING_LEFT_OPERAND, 0},
+                {"1 + * 2", ParseResult.ErrorCode.MISSING_LEFT_OPERAND, 4},
+                {"max(1)", ParseResult.ErrorCode.WRONG_ARGUMENT_COUNT, 5},
+                {"max(1 2, 3)", ParseResult.ErrorCode.MALFORMED_ARGUMENTS, 7},
+                {"1, 2", ParseResult.ErrorCode.UNEXPECTED_COMMA, 1}};
+        for (Object[] test : invalid) {
+            String expr = (String) test[0];
+            result = Expression.tryParse(expr);
+            assertFalse(expr, result.isValid());
+            assertNull(result.getExpression());
+            assertEquals(expr, test[1], result.getError());
+            assertEquals(expr, test[2], result.getOffset());
+            assertEquals(result.toString(), Expression.validate(expr).toString());
+            try {
+                new Expression(expr);
+                fail(expr);
+            } catch (InvalidExpressionException e) {
+                assertEquals("Invalid expression.\nReason: " + result.getMessage(), e.getMessage());
+            }
+        }
+        assertEquals(ParseResult.ErrorCode.MISSING_OPERANDS,
+                Expression.validate("1 +", TreeWriter.Notation.POSTFIX, OperatorRegistry.getDefault()).getError());
+        assertEquals(ParseResult.ErrorCode.UNSUPPORTED_NOTATION,
+                Expression.validate("( + 1 2 )", TreeWriter.Notation.LISP, OperatorRegistry.getDefault()).getError());
+
+        // The parser is usable again after an error
+        assertEquals(3, Expression.tryParse("1 + 2").getExpression().evaluate());
+
+        // Offsets start from zero again after streaming a long expression on the same thread
+        StringBuilder streamed = new StringBuilder("1");
+        for (int i = 0; i < 20_000; i++)
+            streamed.append(" + 1");
+        assertEquals(20_001, Expression.parse(new StringReader(streamed.toString())).evaluate());
+        assertEquals(4, Expression.tryParse("1 + * 2").getOffset());
+        assertEquals(6, Expression.tryParse("1 + 2 $ 3").getOffset());
+    }
+
+    @Test
+    public void testConcurrentEvaluation() throws Exception {
+        // Expressions shared by many threads without any synchronization of
+        // their own, including a chain too deep to evaluate recursively
+        StringBuilder deep = new StringBuilder("x");
+        for (int i = 0; i < 2000; i++)
+            deep.append(i % 2 == 0 ? " + y" : " - 1");
+        Expression[] shared = {new Expression("max(x, -y) * (x + 3) ^ 2 - mod(y, 7)"), new Expression(deep)};
+        int[][] values = new int[shared.length][1000];
+        for (int e = 0; e < shared.length; e++) {
+            for (int i = 0; i < 1000; i++)
+                values[e][i] = shared[e].evaluate(new int[]{i, i * 3 - 500});
+        }
+
+        int threads = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < 100; round++) {
+                        int i = (seed * 31 + round * 7) % 1000;
+                        int[] bindings = {i, i * 3 - 500};
+                        for (int e = 0; e < shared.length; e++)
+                            assertEquals(values[e][i], shared[e].evaluate(bindings));
+                        if (round % 25 == 0)
+                            assertEquals(values[1][i], shared[1].evaluateParallel(bindings, pool, 100));
+                    }
+                    return null;
+                }));
+            }
+            // Start every thread at once so that they really share the trees
+            start.countDown();
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            executor.shutdown();
+            pool.shutdown();
+        }
+
+        // Building new trees over the operands of a tree leaves it as it was
+        Expression e = new Expression("1 + -x");
+        OperatorToken root = (OperatorToken) e.getTree();
+        Token rhs = root.getRightOperand();
+        Token unaryOperand = ((OperatorToken) rhs).getLeftOperand();
+        Token reuse = new OperatorToken('*', rhs, new OperandToken(100));
+        new OperatorToken('-', unaryOperand, root.getLeftOperand());
+        new OperatorToken('+', root.getLeftOperand(), rhs);
+        assertEquals("1 x neg +", e.toPostfix());
+        assertEquals(4, root.getSize());
+        assertEquals(-1, e.evaluate(new int[]{2}));
+        assertEquals(-200, reuse.evalToken(new int[]{2}));
+
+        Token sum = new OperatorToken('+', new OperandToken(1), new VariableToken("x", 0));
+        assertEquals(3, sum.evalToken(new int[]{2}));
+        assertEquals(3, ((OperatorToken) sum).getSize());
+        try {
+            new OperatorToken(OperatorRegistry.getDefault().getOperator(Operator.NEGATE), sum, new OperandToken(2));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            assertEquals("neg takes 1 operand, found 2.", expected.getMessage());
+        }
+    }
+
+    /**
+     * @return a Reader which hands out one character per read, so that
+     * tokens are split across reads
+     */
+    private static Reader trickle(String text) {
+        return new StringReader(text) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+        };
+    }
+
 }
@@ -0,0 +1,56 @@
+/**
+ * A token which stores a variable. Each distinct variable in an expression
+ * is assigned a slot when the expression is parsed, and its value is read
+ * from that index of the bindings array during evaluation.
+ *
+ * @author Samuel Laberge, 2020
+ */
+public class VariableToken extends Token {
+
+    private final String name;
+    private final int slot;
+
+    public VariableToken(String name, int slot) {
+        this.name = name;
+        this.slot = slot;
+    }
+
+    /**
+     * @return the name of this variable as written in the expression
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the index of this variable's value in the bindings array
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * The evaluation of this token is the value bound to its slot.
+     *
+     * @param bindings the values of the expression's variables, indexed by slot
+     * @return the value of this variable
+     */
+    @Override
+    public int evalToken(int[] bindings) {
+        return bindings[slot];
+    }
+
+    @Override
+    public long evalLong(long[] bindings) {
+        return bindings[slot];
+    }
+
+    @Override
+    public double evalDouble(double[] bindings) {
+        return bindings[slot];
+    }
+
+    public String toString() {
+        return name;
+    }
+}